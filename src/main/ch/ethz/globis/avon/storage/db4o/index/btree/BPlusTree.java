@@ -10,32 +10,86 @@
  */
 package ch.ethz.globis.avon.storage.db4o.index.btree;
 
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryNotificationInfo;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.ref.WeakReference;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
+import javax.management.ListenerNotFoundException;
+import javax.management.Notification;
+import javax.management.NotificationEmitter;
+import javax.management.NotificationListener;
+
+import com.db4o.ObjectContainer;
 import com.db4o.activation.ActivationPurpose;
 import com.db4o.activation.Activator;
+import com.db4o.config.EmbeddedConfiguration;
 import com.db4o.ta.Activatable;
 
 /**
  * Implementation of a B+ tree.
  * Access to the tree is managed by a ReentrantReadWriteLock. It allows several parallel read-operations.
  * If one write-operation is going on in the tree, it is locked for all other operations.
+ * In combining mode, concurrent write-operations are collected and applied in batches by whichever
+ * thread currently holds the write lock.
  *
  * @author Christoph Zimmerli &lt;zimmerch@ethz.ch&gt;
  * @version 1.0
  */
 public class BPlusTree<T extends Comparable<T>> implements Activatable {
 
+   /**
+    * A node size that works well for trees kept in memory, see
+    * {@link #forNodeSize(int, int, int)}. Larger nodes slow down searching within the nodes.
+    */
+   public static final int DEFAULT_NODE_BYTES = 512;
+
+   private static final double COMPACTION_FILL_FACTOR = 0.9;
+   private static final int TREND_LIMIT = 8;
+   private static final int TREND_THRESHOLD = 4;
+   private static final int REFERENCE_BYTES = 4;
+   private static final int BUDGET_CHECKS = 16;
+
    private BPlusTreeNode<T> root;
    private int order;
+   private int internalOrder;
+   private int leafMinimum;
+   private BPlusTreeSplitPolicy splitPolicy;
+   private int preloadLevels;
    private final transient ReentrantReadWriteLock rwl;
    private final transient Lock readLock;
    private final transient Lock writeLock;
+   private final transient BPlusTreeCombiner<T> combiner;
+   private transient volatile boolean combining;
+   private transient BPlusTreeNode<T> lastLeaf;
+   private transient T lastInsertedKey;
+   private transient boolean hasLastInsertedKey;
+   private transient int insertTrend;
+   private final transient BPlusTreeKey<T> replacement;
+   private final transient ThreadLocal<BPlusTreeActivations> lastQuery;
+   private transient BPlusTreeNode<T> flushedRoot;
+   private transient boolean changed;
+   private final transient List<BPlusTreeNode<T>> dropped;
+   private transient ObjectContainer releaseContainer;
+   private transient volatile int nodeBudget;
+   private final transient AtomicInteger operationsSinceCheck;
+   private transient HeapListener heapListener;
    private transient Activator activator;
 
    /**
@@ -47,13 +101,67 @@ public class BPlusTree<T extends Comparable<T>> implements Activatable {
     *          The tree's order.
     */
    public BPlusTree(final int order) {
+      this(order, order);
+   }
+
+   /**
+    * Creates a new BPlusTree with different orders for leaves and internal nodes.
+    * Leaves hold the values along with the keys, whereas internal nodes hold nothing but
+    * separator keys and child references. A higher internal order makes the tree shallower,
+    * so fewer nodes are visited on the way to a leaf.
+    *
+    * @param leafOrder
+    *          The order of the leaves, at least 2.
+    * @param internalOrder
+    *          The order of the internal nodes, at least 2.
+    */
+   public BPlusTree(final int leafOrder, final int internalOrder) {
       this();
-      if (order < 2) {
-         throw new IllegalArgumentException("Order must be at least '2'. Given: '" + order
-               + "'");
+      if (leafOrder < 2) {
+         throw new IllegalArgumentException("Order must be at least '2'. Given: '"
+               + leafOrder + "'");
+      }
+      if (internalOrder < 2) {
+         throw new IllegalArgumentException("Internal order must be at least '2'. Given: '"
+               + internalOrder + "'");
+      }
+      this.order = leafOrder;
+      this.internalOrder = internalOrder;
+      this.leafMinimum = leafOrder - 1;
+      this.splitPolicy = BPlusTreeSplitPolicy.MEDIAN;
+      this.root = new BPlusTreeNode<T>(leafOrder, true);
+   }
+
+   /**
+    * Creates a new BPlusTree whose nodes occupy about the given number of bytes when full.
+    * The orders of leaves and internal nodes are derived from the size of a key and of a
+    * value slot: a leaf slot holds a key and a value, an internal slot holds a key and a child
+    * reference. The sizes are estimates, e.g. 4 bytes for a reference to an Integer key, or the
+    * average size of a String key if the keys are to be counted in.
+    *
+    * @param nodeBytes
+    *          The size of a full node in bytes.
+    * @param keyBytes
+    *          The size of a key in bytes.
+    * @param valueBytes
+    *          The size of the value slot of a leaf entry in bytes.
+    * @return A new, empty tree.
+    */
+   public static <T extends Comparable<T>> BPlusTree<T> forNodeSize(final int nodeBytes,
+         final int keyBytes, final int valueBytes) {
+      if (keyBytes < 1 || valueBytes < 1) {
+         throw new IllegalArgumentException("Key and value sizes must be at least '1'. "
+               + "Given: '" + keyBytes + "', '" + valueBytes + "'");
+      }
+      // a full node of order n holds 2*n slots.
+      final int leafOrder = nodeBytes / (2 * (keyBytes + valueBytes));
+      final int internalOrder = nodeBytes / (2 * (keyBytes + BPlusTree.REFERENCE_BYTES));
+      if (leafOrder < 2) {
+         throw new IllegalArgumentException("Node size of '" + nodeBytes
+               + "' bytes is too small for keys of '" + keyBytes + "' and values of '"
+               + valueBytes + "' bytes");
       }
-      this.order = order;
-      this.root = new BPlusTreeNode<T>(order, true);
+      return new BPlusTree<T>(leafOrder, Math.max(2, internalOrder));
    }
 
    /**
@@ -63,6 +171,98 @@ public class BPlusTree<T extends Comparable<T>> implements Activatable {
       this.rwl = new ReentrantReadWriteLock();
       this.readLock = this.rwl.readLock();
       this.writeLock = this.rwl.writeLock();
+      this.combiner = new BPlusTreeCombiner<T>(this, this.writeLock, 2 * Runtime
+            .getRuntime().availableProcessors());
+      this.combining = false;
+      this.replacement = new BPlusTreeKey<T>();
+      this.lastQuery = new ThreadLocal<BPlusTreeActivations>();
+      this.operationsSinceCheck = new AtomicInteger();
+      this.dropped = new ArrayList<BPlusTreeNode<T>>();
+   }
+
+   /**
+    * Switches combining mode on or off.
+    * In combining mode, threads calling {@link #insert(Object, Object)} or
+    * {@link #remove(Object, Object)} publish their operation instead of queueing for the write
+    * lock. The thread that gets hold of the lock applies all published operations in the order
+    * of their keys, sharing the descents from the root among operations on the same leaf.
+    * This pays off if many threads write to the tree at the same time.
+    * The combining mode is not stored in the database.
+    *
+    * @param combining
+    *          <b>true</b> to switch combining on, <b>false</b> to switch it off.
+    */
+   public void setCombining(final boolean combining) {
+      this.combining = combining;
+   }
+
+   /**
+    * Sets the number of keys below which a leaf is re-balanced after a removal.
+    * By default, leaves are merged with or refilled from their siblings as soon as they hold
+    * fewer than order - 1 keys. With a lower minimum, removals leave small leaves as they are,
+    * which avoids merging and splitting the same leaves over and over again if keys are
+    * removed and inserted alternately. A minimum of 1 keeps every leaf until its last key has
+    * been removed. Leaves below order - 1 keys can be merged later on by calling
+    * {@link #rebalance()}. Internal nodes are always re-balanced immediately.
+    *
+    * @param leafMinimum
+    *          The minimum number of keys in a leaf, between 1 and order - 1.
+    */
+   public void setLeafMinimum(final int leafMinimum) {
+      if (leafMinimum < 1 || leafMinimum > this.order - 1) {
+         throw new IllegalArgumentException("Leaf minimum must be between '1' and '"
+               + (this.order - 1) + "'. Given: '" + leafMinimum + "'");
+      }
+      this.activate(ActivationPurpose.WRITE);
+      this.writeLock.lock();
+      try {
+         this.leafMinimum = leafMinimum;
+         this.changed = true;
+      } finally {
+         this.writeLock.unlock();
+      }
+   }
+
+   /**
+    * Sets the policy that determines where nodes are split when they overflow.
+    * By default, nodes are split at the median. If keys are mostly inserted in ascending
+    * order, {@link BPlusTreeSplitPolicy#RIGHT_BIASED} leaves fuller nodes behind, and
+    * {@link BPlusTreeSplitPolicy#LEFT_BIASED} does so for descending keys. How full depends
+    * on the leaf minimum: with a minimum of 1, leaves are left completely full.
+    *
+    * @param splitPolicy
+    *          The split policy to be used from now on.
+    */
+   public void setSplitPolicy(final BPlusTreeSplitPolicy splitPolicy) {
+      if (splitPolicy == null) {
+         throw new IllegalArgumentException("Split policy must not be null");
+      }
+      this.activate(ActivationPurpose.WRITE);
+      this.writeLock.lock();
+      try {
+         this.splitPolicy = splitPolicy;
+         this.changed = true;
+      } finally {
+         this.writeLock.unlock();
+      }
+   }
+
+   /**
+    * Merges or re-balances all leaves that hold fewer than order - 1 keys, i.e. the leaves
+    * left behind by removals with a lower leaf minimum (see {@link #setLeafMinimum(int)}).
+    * This visits the whole tree and holds the write lock meanwhile. It is meant to be called
+    * periodically, e.g. by a background thread, rather than after every removal.
+    */
+   public void rebalance() {
+      this.activate(ActivationPurpose.WRITE);
+      this.writeLock.lock();
+      try {
+         this.lastLeaf = null;
+         this.root.rebalanceSubtree();
+         this.collapseRoot();
+      } finally {
+         this.writeLock.unlock();
+      }
    }
 
    /**
@@ -72,13 +272,16 @@ public class BPlusTree<T extends Comparable<T>> implements Activatable {
     *          If the tree is not consistent.
     */
    public void checkIntegrity() throws IntegrityException {
-      this.activate(ActivationPurpose.WRITE);
+      this.activate(ActivationPurpose.READ);
       this.readLock.lock();
+      this.startQuery();
       try {
          final Collection<T> internalKeys = new ArrayList<T>();
-         this.root.checkSubtreeIntegrity(internalKeys);
+         this.root.checkSubtreeIntegrity(internalKeys, this.leafMinimum());
       } finally {
+         this.finishQuery();
          this.readLock.unlock();
+         this.checkNodeBudget();
       }
    }
 
@@ -90,8 +293,7 @@ public class BPlusTree<T extends Comparable<T>> implements Activatable {
     * @return <b>true</b> if the index contains the key. <b>false</b> otherwise.
     */
    public boolean contains(final T key) {
-      final Iterator<Object> result = this.get(key);
-      return result.hasNext();
+      return !this.search(key).isEmpty();
    }
 
    /**
@@ -102,24 +304,38 @@ public class BPlusTree<T extends Comparable<T>> implements Activatable {
     * @return The entries associated with the given key.
     */
    public Iterator<Object> get(final T key) {
-      this.activate(ActivationPurpose.WRITE);
+      final List<Object> entries = this.search(key);
+      if (entries.isEmpty()) {
+         return Collections.emptyIterator();
+      }
+      return entries.iterator();
+   }
+
+   private List<Object> search(final T key) {
+      this.activate(ActivationPurpose.READ);
       this.readLock.lock();
+      this.startQuery();
       try {
-         return this.root.search(key).iterator();
+         return this.root.search(key);
       } finally {
+         this.finishQuery();
          this.readLock.unlock();
+         this.checkNodeBudget();
       }
    }
 
    private List<Object> inOrderList() {
-      this.activate(ActivationPurpose.WRITE);
+      this.activate(ActivationPurpose.READ);
       this.readLock.lock();
+      this.startQuery();
       try {
          final ArrayList<Object> list = new ArrayList<Object>();
          this.root.inOrder(list);
          return list;
       } finally {
+         this.finishQuery();
          this.readLock.unlock();
+         this.checkNodeBudget();
       }
    }
 
@@ -142,6 +358,441 @@ public class BPlusTree<T extends Comparable<T>> implements Activatable {
       return this.inOrderList().iterator();
    }
 
+   /**
+    * Writes all entries of the index to a snapshot file, from which the index can be
+    * restored with {@link #readSnapshot(Path, BPlusTreeSerializer, BPlusTreeSerializer,
+    * double)}. The snapshot is a sorted run of keys and their values in blocks with
+    * checksums. It is written while holding the read lock, and replaces an existing file
+    * only once it is complete.
+    *
+    * @param path
+    *          The file to be written.
+    * @param keySerializer
+    *          Converts the keys to bytes.
+    * @param valueSerializer
+    *          Converts the values to bytes.
+    * @throws IOException
+    *           If writing the file fails.
+    */
+   @SuppressWarnings("unchecked")
+   public void writeSnapshot(final Path path, final BPlusTreeSerializer<T> keySerializer,
+         final BPlusTreeSerializer<?> valueSerializer) throws IOException {
+      this.activate(ActivationPurpose.READ);
+      this.readLock.lock();
+      try {
+         BPlusTreeSnapshot.write(this.root, path, keySerializer,
+               (BPlusTreeSerializer<Object>) valueSerializer);
+      } finally {
+         this.readLock.unlock();
+      }
+   }
+
+   /**
+    * Replaces all entries in the index with the entries of a snapshot written by
+    * {@link #writeSnapshot(Path, BPlusTreeSerializer, BPlusTreeSerializer)}. The snapshot
+    * is read sequentially and the tree is built bottom-up like by
+    * {@link #bulkLoad(Iterator, double)}. If the snapshot is damaged, the index is left
+    * unchanged.
+    *
+    * @param path
+    *          The snapshot file.
+    * @param keySerializer
+    *          Converts the bytes back to keys.
+    * @param valueSerializer
+    *          Converts the bytes back to values.
+    * @param fillFactor
+    *          The fraction of each node's capacity to be filled, 0 &lt; fillFactor &lt;= 1.
+    * @throws IOException
+    *           If the file cannot be read, is not a snapshot or is damaged.
+    */
+   @SuppressWarnings("unchecked")
+   public void readSnapshot(final Path path, final BPlusTreeSerializer<T> keySerializer,
+         final BPlusTreeSerializer<?> valueSerializer, final double fillFactor)
+         throws IOException {
+      final BPlusTreeSnapshot.Reader<T> reader = new BPlusTreeSnapshot.Reader<T>(path,
+            keySerializer, (BPlusTreeSerializer<Object>) valueSerializer);
+      try {
+         this.bulkLoad(reader, fillFactor);
+      } catch (final BPlusTreeSnapshot.ReadFailure e) {
+         throw e.getCause();
+      } finally {
+         reader.close();
+      }
+   }
+
+   /**
+    * Writes the entries of the index to an immutable page file, to be opened with
+    * {@link BPlusTreeMappedPageStore}. The nodes are packed into full pages, level by
+    * level.
+    * The entries are read from the leaves while the pages are written, and writers are
+    * blocked in the meantime. The file is written under a temporary name and then renamed
+    * atomically, so that processes that have mapped an earlier version of the file can
+    * continue to use it.
+    *
+    * @param file
+    *          The file to be written. An existing file is replaced.
+    * @param pageSize
+    *          The size of the pages, between 256 and 65536 bytes.
+    * @param keySerializer
+    *          Converts the keys to bytes.
+    * @param valueSerializer
+    *          Converts the values to bytes.
+    * @throws IOException
+    *           If writing the file fails.
+    */
+   public void writeMapped(final File file, final int pageSize,
+         final BPlusTreeSerializer<T> keySerializer,
+         final BPlusTreeSerializer<?> valueSerializer) throws IOException {
+      final Path temporary = file.toPath().resolveSibling(file.getName() + ".tmp");
+      Files.deleteIfExists(temporary);
+      this.activate(ActivationPurpose.READ);
+      this.readLock.lock();
+      this.startQuery();
+      try {
+         final BPlusTreeFilePageStore store = new BPlusTreeFilePageStore(temporary.toFile(),
+               pageSize);
+         try {
+            new PagedBPlusTree<T>(store, keySerializer, valueSerializer).bulkLoad(this.root
+                  .entries(), 1);
+         } finally {
+            store.close();
+         }
+      } finally {
+         this.finishQuery();
+         this.readLock.unlock();
+         this.checkNodeBudget();
+      }
+      Files.move(temporary, file.toPath(), StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   /**
+    * Prepares a db4o configuration for storing trees. Constructors of the tree are called,
+    * so that a tree read from the database gets a new read-write lock. Nodes are stored
+    * with their keys and values in arrays, and the fields in which earlier versions stored
+    * key objects and value lists are renamed, so that such nodes can still be read, see
+    * {@link #migrate(ObjectContainer)}.
+    *
+    * @param configuration
+    *          The configuration to be used for opening the database.
+    */
+   public static void configure(final EmbeddedConfiguration configuration) {
+      configuration.common().objectClass(BPlusTree.class).callConstructor(true);
+      configuration.common().objectClass(BPlusTreeNode.class).objectField("keys").rename(
+            "legacyKeys");
+      configuration.common().objectClass(BPlusTreeNode.class).objectField("entries")
+            .rename("legacyEntries");
+   }
+
+   /**
+    * Converts the nodes of a tree that has been stored by an earlier version, with a
+    * database object for each key and for the values of each key, into nodes that hold
+    * their keys and values in arrays. The converted nodes are stored in the given
+    * container and the objects they replace are deleted, so the conversion is complete
+    * with the next commit. Nodes that are not converted explicitly are converted when they
+    * are stored the next time.
+    *
+    * @param container
+    *          The container holding the tree, opened with a configuration prepared by
+    *          {@link #configure(EmbeddedConfiguration)}.
+    */
+   public void migrate(final ObjectContainer container) {
+      this.activate(ActivationPurpose.WRITE);
+      this.writeLock.lock();
+      try {
+         this.root.migrate(container);
+      } finally {
+         this.writeLock.unlock();
+      }
+   }
+
+   /**
+    * Stores the nodes that have been changed since they have been stored or activated,
+    * and the tree itself if its root or its settings have changed. Nodes are changed by
+    * inserts, removals, splits, merges and redistributions, and the cost of flushing is
+    * proportional to the number of changed nodes rather than to the size of the tree.
+    * Together with a commit, this replaces storing the tree with a deep update depth:
+    *
+    * <pre>
+    * tree.flush(container);
+    * container.commit();
+    * </pre>
+    *
+    * The subtrees removed by {@link #removeRange(Comparable, Comparable)} since the last
+    * flush are deleted from the container, which reads those of their nodes that are not
+    * active once.
+    *
+    * @param container
+    *          The container holding the tree.
+    * @return The number of nodes stored.
+    */
+   public int flush(final ObjectContainer container) {
+      this.activate(ActivationPurpose.READ);
+      this.writeLock.lock();
+      try {
+         for (final BPlusTreeNode<T> node : this.dropped) {
+            node.delete(container);
+         }
+         this.dropped.clear();
+         if (this.changed || this.root != this.flushedRoot) {
+            container.store(this);
+            this.flushedRoot = this.root;
+            this.changed = false;
+         }
+         return this.root.flush(container);
+      } finally {
+         this.writeLock.unlock();
+      }
+   }
+
+   /*****************************************************************************************
+    * Preloading
+    ****************************************************************************************/
+
+   /**
+    * Activates the nodes of the given number of levels from the root down, so that the
+    * first queries after opening the database do not activate them one at a time. The
+    * nodes are activated one after the other, as db4o reads the objects of an embedded
+    * container one at a time, and activating a node with a larger depth would follow the
+    * references to its parent and its neighbours. Preloaded nodes count as used by
+    * {@link #release(ObjectContainer, int)}.
+    *
+    * @param levels
+    *          The number of levels, 1 for the root only.
+    * @return The number of nodes activated.
+    */
+   public int preload(final int levels) {
+      if (levels < 0) {
+         throw new IllegalArgumentException("Number of levels must not be negative. "
+               + "Given: '" + levels + "'");
+      }
+      this.activate(ActivationPurpose.READ);
+      this.readLock.lock();
+      try {
+         return levels == 0 ? 0 : this.root.preload(levels);
+      } finally {
+         this.readLock.unlock();
+      }
+   }
+
+   /**
+    * Makes the tree preload the given number of levels, as by {@link #preload(int)},
+    * whenever db4o activates it, i.e. when it is read from the database after opening it.
+    * The setting is stored with the tree.
+    *
+    * @param levels
+    *          The number of levels, or 0 to preload nothing.
+    */
+   public void setPreloadLevels(final int levels) {
+      if (levels < 0) {
+         throw new IllegalArgumentException("Number of levels must not be negative. "
+               + "Given: '" + levels + "'");
+      }
+      this.activate(ActivationPurpose.WRITE);
+      this.writeLock.lock();
+      try {
+         this.preloadLevels = levels;
+         this.changed = true;
+      } finally {
+         this.writeLock.unlock();
+      }
+   }
+
+   /**
+    * Called by db4o after the tree has been activated. Preloads the levels set by
+    * {@link #setPreloadLevels(int)}.
+    *
+    * @param container
+    *          The container holding the tree.
+    */
+   public void objectOnActivate(final ObjectContainer container) {
+      if (this.preloadLevels > 0) {
+         this.preload(this.preloadLevels);
+      }
+   }
+
+   /*****************************************************************************************
+    * Releasing nodes
+    ****************************************************************************************/
+
+   /**
+    * Deactivates nodes of the tree until at most the given number of nodes is active.
+    * Subtrees that have not been used since the last release and whose nodes have not
+    * changed since they have been stored are deactivated first. Subtrees that have been
+    * used since get a second chance, so that the nodes of recent queries, and the upper
+    * levels of the tree in particular, stay in memory. Changed nodes are never deactivated,
+    * since their changes would be lost; call {@link #flush(ObjectContainer)} or commit
+    * before. Deactivated nodes are activated again as soon as a query or an update reaches
+    * them.
+    *
+    * @param container
+    *          The container holding the tree.
+    * @param nodeBudget
+    *          The number of nodes that may stay active.
+    * @return The number of nodes deactivated.
+    */
+   public int release(final ObjectContainer container, final int nodeBudget) {
+      this.activate(ActivationPurpose.READ);
+      this.writeLock.lock();
+      try {
+         return this.releaseNodes(container, nodeBudget);
+      } finally {
+         this.writeLock.unlock();
+      }
+   }
+
+   /**
+    * Keeps the number of active nodes close to the given budget. Every
+    * <code>nodeBudget / 16</code> queries and updates, the active nodes are counted and
+    * released as by {@link #release(ObjectContainer, int)} if there are more than the
+    * budget allows. The check is skipped if another thread is using the tree at that
+    * moment.
+    *
+    * @param container
+    *          The container holding the tree.
+    * @param nodeBudget
+    *          The number of nodes that may stay active, or 0 to switch the budget off.
+    */
+   public void setNodeBudget(final ObjectContainer container, final int nodeBudget) {
+      if (nodeBudget < 0) {
+         throw new IllegalArgumentException("Node budget must not be negative. Given: '"
+               + nodeBudget + "'");
+      }
+      this.writeLock.lock();
+      try {
+         this.releaseContainer = container;
+         this.nodeBudget = nodeBudget;
+         this.operationsSinceCheck.set(0);
+      } finally {
+         this.writeLock.unlock();
+      }
+   }
+
+   /**
+    * Releases half of the active nodes of the tree, as by
+    * {@link #release(ObjectContainer, int)}, whenever the heap is still fuller than the
+    * given fraction after a garbage collection. This sets the collection usage threshold of
+    * the heap memory pools, which is shared by all listeners in the virtual machine.
+    * <p>
+    * The listener refers to the tree and the container weakly and removes itself from the
+    * memory bean at the next notification after the tree has been garbage collected or the
+    * container has been closed. Pass 0 to remove it right away.
+    *
+    * @param container
+    *          The container holding the tree.
+    * @param heapFraction
+    *          The fraction of the heap above which nodes are released, between 0 and 1, or
+    *          0 to stop listening.
+    */
+   public void releaseOnHeapUsage(final ObjectContainer container,
+         final double heapFraction) {
+      if (heapFraction < 0 || heapFraction >= 1) {
+         throw new IllegalArgumentException("Heap fraction must be at least '0' and less "
+               + "than '1'. Given: '" + heapFraction + "'");
+      }
+      final NotificationEmitter emitter = (NotificationEmitter) ManagementFactory
+            .getMemoryMXBean();
+      if (this.heapListener != null) {
+         try {
+            emitter.removeNotificationListener(this.heapListener);
+         } catch (final ListenerNotFoundException e) {
+            // already removed.
+         }
+         this.heapListener = null;
+      }
+      if (heapFraction == 0) {
+         return;
+      }
+      for (final MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+         if (pool.getType() == MemoryType.HEAP && pool.isCollectionUsageThresholdSupported()
+               && pool.getUsage().getMax() > 0) {
+            pool.setCollectionUsageThreshold((long) (pool.getUsage().getMax()
+                  * heapFraction));
+         }
+      }
+      this.heapListener = new HeapListener(this, container, emitter);
+      emitter.addNotificationListener(this.heapListener, null, null);
+   }
+
+   /**
+    * Releases half of the active nodes of the tree when the heap is full, see
+    * {@link BPlusTree#releaseOnHeapUsage(ObjectContainer, double)}. The tree and the
+    * container are referenced weakly, so that the listener, which is registered with the
+    * memory bean of the virtual machine, does not keep them in memory.
+    */
+   private static final class HeapListener implements NotificationListener {
+
+      private final WeakReference<BPlusTree<?>> tree;
+      private final WeakReference<ObjectContainer> container;
+      private final NotificationEmitter emitter;
+
+      HeapListener(final BPlusTree<?> tree, final ObjectContainer container,
+            final NotificationEmitter emitter) {
+         this.tree = new WeakReference<BPlusTree<?>>(tree);
+         this.container = new WeakReference<ObjectContainer>(container);
+         this.emitter = emitter;
+      }
+
+      @Override
+      public void handleNotification(final Notification notification,
+            final Object handback) {
+         if (!MemoryNotificationInfo.MEMORY_COLLECTION_THRESHOLD_EXCEEDED.equals(
+               notification.getType())) {
+            return;
+         }
+         final BPlusTree<?> tree = this.tree.get();
+         final ObjectContainer container = this.container.get();
+         if (tree == null || container == null || container.ext().isClosed()) {
+            try {
+               this.emitter.removeNotificationListener(this);
+            } catch (final ListenerNotFoundException e) {
+               // already removed.
+            }
+            return;
+         }
+         tree.activate(ActivationPurpose.READ);
+         tree.writeLock.lock();
+         try {
+            tree.releaseNodes(container, tree.root.activeNodes() / 2);
+         } finally {
+            tree.writeLock.unlock();
+         }
+      }
+   }
+
+   private int releaseNodes(final ObjectContainer container, final int nodeBudget) {
+      final int active = this.root.activeNodes();
+      int released = 0;
+      // a second pass deactivates the subtrees that only got a second chance in the first.
+      for (int pass = 0; pass < 2 && active - released > nodeBudget; pass++) {
+         released += this.root.release(container, active - released - nodeBudget);
+      }
+      return released;
+   }
+
+   /**
+    * Releases nodes if the node budget has been exceeded. Must be called without holding a
+    * lock.
+    */
+   private void checkNodeBudget() {
+      final int nodeBudget = this.nodeBudget;
+      if (nodeBudget == 0
+            || this.operationsSinceCheck.incrementAndGet() < Math.max(1, nodeBudget
+                  / BPlusTree.BUDGET_CHECKS)) {
+         return;
+      }
+      this.operationsSinceCheck.set(0);
+      if (this.writeLock.tryLock()) {
+         try {
+            if (this.nodeBudget > 0) {
+               this.releaseNodes(this.releaseContainer, this.nodeBudget);
+            }
+         } finally {
+            this.writeLock.unlock();
+         }
+      }
+   }
+
 
    /**
     * Inserts the given key/value pair into the tree.
@@ -152,15 +803,34 @@ public class BPlusTree<T extends Comparable<T>> implements Activatable {
     *          The value associated with the key.
     */
    public void insert(final Object key, final Object value) {
+      @SuppressWarnings("unchecked")
+      final T typedKey = (T) key;
       this.activate(ActivationPurpose.WRITE);
+      if (this.combining) {
+         this.combiner.execute(new BPlusTreeOperation<T>(true, typedKey, value));
+         this.checkNodeBudget();
+         return;
+      }
       this.writeLock.lock();
       try {
-         final BPlusTreeNode<T> newRoot = this.root.insert((T) key, value);
+         // keys that are not smaller than any key in the tree are appended to the rightmost
+         // leaf directly, without descending from the root.
+         final BPlusTreeSplitPolicy policy = this.splitPolicy(typedKey);
+         final BPlusTreeNode<T> newRoot;
+         final BPlusTreeNode<T> leaf = this.lastLeaf();
+         if (leaf.acceptsAppend(typedKey)) {
+            newRoot = leaf.append(typedKey, value, policy, this.leafMinimum(),
+                  this.internalOrder());
+         } else {
+            newRoot = this.root.insert(typedKey, value, policy, this.leafMinimum(),
+                  this.internalOrder());
+         }
          if (newRoot != null) {
             this.root = newRoot;
          }
       } finally {
          this.writeLock.unlock();
+         this.checkNodeBudget();
       }
    }
 
@@ -173,18 +843,433 @@ public class BPlusTree<T extends Comparable<T>> implements Activatable {
     *          The value associated with the key.
     */
    public void remove(final Object key, final Object value) {
+      @SuppressWarnings("unchecked")
+      final T typedKey = (T) key;
       this.activate(ActivationPurpose.WRITE);
+      if (this.combining) {
+         this.combiner.execute(new BPlusTreeOperation<T>(false, typedKey, value));
+         this.checkNodeBudget();
+         return;
+      }
       this.writeLock.lock();
       try {
-         final BPlusTreeNode<T> newRoot = this.root.remove((T) key, value);
+         this.lastLeaf = null;
+         final BPlusTreeNode<T> newRoot = this.root.remove(typedKey, value, this
+               .leafMinimum(), this.replacement);
          if (newRoot != null) {
             this.root = newRoot;
          }
+      } finally {
+         this.writeLock.unlock();
+         this.checkNodeBudget();
+      }
+   }
+
+   /**
+    * Inserts all given key/value pairs into the tree.
+    * This is considerably faster than calling {@link #insert(Object, Object)} for each pair:
+    * the write lock is taken only once and the pairs are inserted in the order of their keys,
+    * such that consecutive keys falling into the same leaf share one descent from the root.
+    * If inserting a pair fails, the remaining pairs are inserted nevertheless and the first
+    * failure is thrown afterwards.
+    *
+    * @param entries
+    *          The key/value pairs to be added to the tree.
+    */
+   public void insertAll(final Collection<? extends Map.Entry<? extends T, ?>> entries) {
+      this.applyAll(true, entries);
+   }
+
+   /**
+    * Removes all given key/value pairs from the tree.
+    * Like {@link #insertAll(Collection)}, this takes the write lock only once and removes the
+    * pairs in the order of their keys. Removals that need no re-balancing share one descent
+    * from the root with their neighbours in the same leaf.
+    * If removing a pair fails, the remaining pairs are removed nevertheless and the first
+    * failure is thrown afterwards.
+    *
+    * @param entries
+    *          The key/value pairs to be removed from the tree.
+    */
+   public void removeAll(final Collection<? extends Map.Entry<? extends T, ?>> entries) {
+      this.applyAll(false, entries);
+   }
+
+   private void applyAll(final boolean isInsert,
+         final Collection<? extends Map.Entry<? extends T, ?>> entries) {
+      final List<BPlusTreeOperation<T>> operations = new ArrayList<BPlusTreeOperation<T>>(
+            entries.size());
+      for (final Map.Entry<? extends T, ?> entry : entries) {
+         operations.add(new BPlusTreeOperation<T>(isInsert, entry.getKey(), entry.getValue()));
+      }
+      this.activate(ActivationPurpose.WRITE);
+      this.writeLock.lock();
+      try {
+         this.apply(operations);
+      } finally {
+         this.writeLock.unlock();
+      }
+      for (final BPlusTreeOperation<T> operation : operations) {
+         operation.rethrow();
+      }
+   }
+
+   /**
+    * Applies the given operations to the tree in the order of their keys and marks them as
+    * done. Consecutive operations on the same leaf share one descent from the root.
+    * A failing operation does not affect the others, its failure is recorded in the operation.
+    * Must be called while holding the write lock.
+    *
+    * @param operations
+    *           The operations to be applied.
+    */
+   void apply(final List<BPlusTreeOperation<T>> operations) {
+      boolean sorted = true;
+      try {
+         Collections.sort(operations, BPlusTreeOperation.<T> keyOrder());
+      } catch (final ClassCastException e) {
+         // keys of different types can't be ordered. apply the operations as they are, each
+         // one will fail or succeed the same way it does when applied on its own.
+         sorted = false;
+      }
+      BPlusTreeSplitPolicy policy = this.splitPolicy;
+      if (policy == null) {
+         policy = BPlusTreeSplitPolicy.MEDIAN;
+      } else if (policy == BPlusTreeSplitPolicy.ADAPTIVE) {
+         // the operations are applied in ascending order of their keys.
+         policy = sorted ? BPlusTreeSplitPolicy.RIGHT_BIASED : BPlusTreeSplitPolicy.MEDIAN;
+      }
+      BPlusTreeNode<T> leaf = null;
+      for (final BPlusTreeOperation<T> operation : operations) {
+         try {
+            if (leaf != null && sorted) {
+               leaf = leaf.coveringLeaf(operation.key());
+            } else {
+               leaf = null;
+            }
+            if (leaf == null) {
+               leaf = this.root.findLeaf(operation.key());
+            }
+            if (operation.isInsert()) {
+               // a split leaves the leaf responsible for a prefix of its former keys and its
+               // new right neighbour for the rest, so both can be used for the following keys.
+               final BPlusTreeNode<T> newRoot = leaf.insertIntoLeaf(operation.key(),
+                     operation.value(), policy, this.leafMinimum(), this.internalOrder());
+               if (newRoot != null) {
+                  this.root = newRoot;
+               }
+            } else if (!leaf.removeFromLeaf(operation.key(), operation.value(), this
+                  .leafMinimum())) {
+               // the removal needs re-balancing, which may remove the leaf from the tree.
+               leaf = null;
+               this.lastLeaf = null;
+               final BPlusTreeNode<T> newRoot = this.root.remove(operation.key(), operation
+                     .value(), this.leafMinimum(), this.replacement);
+               if (newRoot != null) {
+                  this.root = newRoot;
+               }
+            }
+         } catch (final RuntimeException e) {
+            leaf = null;
+            operation.fail(e);
+         }
+         operation.complete();
+      }
+   }
+
+   /**
+    * Replaces all entries in the index with the given key/value pairs.
+    * The tree is built bottom-up: the leaves are filled sequentially and the internal levels
+    * are built on top of them. This takes time linear in the number of pairs and is much
+    * faster than inserting the pairs one by one, which also leaves most nodes half full.
+    * The new tree is built without holding the lock, so the index can be read until the new
+    * tree replaces the old one.
+    *
+    * @param sorted
+    *          The key/value pairs to be stored, sorted ascending by key.
+    * @param fillFactor
+    *          The fraction of each node's capacity to be filled, 0 &lt; fillFactor &lt;= 1.
+    *          A smaller fill factor leaves more room for later inserts. Nodes are never
+    *          filled below the minimum size required by the tree's order.
+    * @throws IllegalArgumentException
+    *           If the pairs are not sorted or the fill factor is out of range.
+    */
+   public void bulkLoad(final Iterator<? extends Map.Entry<? extends T, ?>> sorted,
+         final double fillFactor) {
+      this.bulkLoad(sorted, fillFactor, false);
+   }
+
+   /**
+    * Replaces all entries in the index with the given key/value pairs, like
+    * {@link #bulkLoad(Iterator, double)}.
+    *
+    * @param entries
+    *          The key/value pairs to be stored.
+    * @param fillFactor
+    *          The fraction of each node's capacity to be filled, 0 &lt; fillFactor &lt;= 1.
+    * @param sort
+    *          <b>true</b> if the pairs are not sorted yet. They are then collected and sorted
+    *          in memory before the tree is built.
+    * @throws IllegalArgumentException
+    *           If the pairs are not sorted and sort is <b>false</b>, or if the fill factor is
+    *           out of range.
+    */
+   public void bulkLoad(final Iterator<? extends Map.Entry<? extends T, ?>> entries,
+         final double fillFactor, final boolean sort) {
+      this.activate(ActivationPurpose.WRITE);
+      final BPlusTreeLoader<T> loader = new BPlusTreeLoader<T>(this.order,
+            this.internalOrder(), fillFactor);
+      Iterator<? extends Map.Entry<? extends T, ?>> sorted = entries;
+      if (sort) {
+         final List<Map.Entry<? extends T, ?>> list = new ArrayList<Map.Entry<? extends T, ?>>();
+         while (entries.hasNext()) {
+            list.add(entries.next());
+         }
+         Collections.sort(list, BPlusTreeLoader.ENTRY_ORDER);
+         sorted = list.iterator();
+      }
+      final BPlusTreeNode<T> newRoot = loader.load(sorted);
+      this.writeLock.lock();
+      try {
+         this.root = newRoot;
+         this.lastLeaf = null;
+      } finally {
+         this.writeLock.unlock();
+      }
+   }
+
+   /**
+    * Replaces all entries in the index with the given key/value pairs, like
+    * {@link #bulkLoad(Iterator, double)}, using several threads.
+    * The pairs are partitioned by key ranges. The partitions are sorted and turned into runs
+    * of leaves in parallel, and the internal levels on top of them are built in parallel as
+    * well.
+    *
+    * @param entries
+    *          The key/value pairs to be stored, in any order.
+    * @param fillFactor
+    *          The fraction of each node's capacity to be filled, 0 &lt; fillFactor &lt;= 1.
+    * @param pool
+    *          The pool whose threads build the tree.
+    * @throws IllegalArgumentException
+    *           If the fill factor is out of range.
+    */
+   public void bulkLoadParallel(final Collection<? extends Map.Entry<? extends T, ?>> entries,
+         final double fillFactor, final ForkJoinPool pool) {
+      this.activate(ActivationPurpose.WRITE);
+      final BPlusTreeLoader<T> loader = new BPlusTreeLoader<T>(this.order,
+            this.internalOrder(), fillFactor);
+      final BPlusTreeNode<T> newRoot = loader.loadParallel(
+            new ArrayList<Map.Entry<? extends T, ?>>(entries), pool);
+      this.writeLock.lock();
+      try {
+         this.root = newRoot;
+         this.lastLeaf = null;
+      } finally {
+         this.writeLock.unlock();
+      }
+   }
+
+   /**
+    * Removes all entries with keys k where low &lt;= k &lt; high from the tree.
+    * Subtrees that lie completely inside the range are dropped at once, only the leaves on
+    * the boundaries of the range are visited, and only the nodes on the paths to them are
+    * re-balanced. The time needed therefore hardly depends on the number of entries removed.
+    * If the tree is stored in a database, the removed nodes are deleted from it by the next
+    * {@link #flush(ObjectContainer)}.
+    *
+    * @param low
+    *          The smallest key to be removed.
+    * @param high
+    *          The smallest key greater than low that is not to be removed.
+    * @throws IllegalArgumentException
+    *           If low is greater than high.
+    */
+   public void removeRange(final T low, final T high) {
+      if (BPlusTreeKey.compare(low, high) > 0) {
+         throw new IllegalArgumentException("Lower bound '" + low
+               + "' is greater than upper bound '" + high + "'");
+      }
+      this.activate(ActivationPurpose.WRITE);
+      this.writeLock.lock();
+      try {
+         if (BPlusTreeKey.compare(low, high) == 0) {
+            return;
+         }
+         // unlink the leaves between the boundary leaves from the leaf level.
+         final BPlusTreeNode<T> first = this.root.findLeaf(low);
+         final BPlusTreeNode<T> last = this.root.findLeaf(high);
+         if (first != last) {
+            first.linkNext(last);
+         }
+         this.lastLeaf = null;
+         final List<BPlusTreeNode<T>> dropped = new ArrayList<BPlusTreeNode<T>>();
+         if (this.root.removeRange(low, high, dropped)) {
+            dropped.add(this.root);
+            this.root = new BPlusTreeNode<T>(this.order, true);
+         }
+         BPlusTreeNode<T> collapsed = this.root;
+         this.collapseRoot();
+         while (collapsed != this.root) {
+            final BPlusTreeNode<T> child = collapsed.singleChild();
+            collapsed.releaseChildren();
+            dropped.add(collapsed);
+            collapsed = child;
+         }
+         // only nodes of a tree bound to a database need to be deleted.
+         if (this.activator != null) {
+            this.dropped.addAll(dropped);
+         }
       } finally {
          this.writeLock.unlock();
       }
    }
 
+   /**
+    * Compacts the tree, filling the nodes up to 90% of their capacity.
+    *
+    * @see #compact(double)
+    */
+   public void compact() {
+      this.compact(BPlusTree.COMPACTION_FILL_FACTOR);
+   }
+
+   /**
+    * Compacts the tree by moving the keys of adjacent nodes together and dropping the nodes
+    * that become empty. The leaves are compacted first, then the internal levels from the
+    * bottom up, which reduces the height of the tree where possible.
+    * The work is done in small steps, each of which packs the children of a single node and
+    * holds the write lock only meanwhile, so other threads can keep on using the tree.
+    *
+    * @param fillFactor
+    *          The fraction of the node capacity to be used, 0 &lt; fillFactor &lt;= 1.
+    */
+   public void compact(final double fillFactor) {
+      final BPlusTreeLoader<T> loader = new BPlusTreeLoader<T>(this.order,
+            this.internalOrder(), fillFactor);
+      this.activate(ActivationPurpose.WRITE);
+      int height = 1;
+      while (this.compactLevel(loader, height)) {
+         height++;
+      }
+   }
+
+   /**
+    * Packs the children of all nodes at the given height, from left to right, one node per
+    * step.
+    *
+    * @return <b>false</b> if the tree is not high enough for the given height.
+    */
+   private boolean compactLevel(final BPlusTreeLoader<T> loader, final int height) {
+      T last = null;
+      boolean started = false;
+      while (true) {
+         this.writeLock.lock();
+         try {
+            final int depth = this.root.height() - height;
+            if (depth < 0) {
+               return false;
+            }
+            final BPlusTreeNode<T> node = this.root.findNode(last, started, depth);
+            final T largest = node.largestKey();
+            if (started && BPlusTreeKey.compare(largest, last) <= 0) {
+               // the last node on this level has been packed already.
+               return true;
+            }
+            if (node.packChildren(loader)) {
+               this.lastLeaf = null;
+               node.repairAncestors();
+               this.collapseRoot();
+            }
+            last = largest;
+            started = true;
+         } finally {
+            this.writeLock.unlock();
+         }
+         // give waiting threads a chance to get hold of the lock.
+         Thread.yield();
+      }
+   }
+
+   /**
+    * Collapses the root as long as it has a single child only. Must be called while holding
+    * the write lock.
+    */
+   private void collapseRoot() {
+      BPlusTreeNode<T> child = this.root.singleChild();
+      while (child != null) {
+         child.promoteToRoot();
+         this.root = child;
+         child = this.root.singleChild();
+      }
+   }
+
+   /**
+    * Returns the rightmost leaf of the tree. It is cached between calls, since it only moves
+    * to the right while keys are inserted. Operations that may remove leaves from the tree
+    * must reset the cache. Must be called while holding the write lock.
+    */
+   private BPlusTreeNode<T> lastLeaf() {
+      if (this.lastLeaf == null) {
+         this.lastLeaf = this.root.lastLeaf();
+      } else {
+         this.lastLeaf = this.lastLeaf.lastLeaf();
+      }
+      return this.lastLeaf;
+   }
+
+   /**
+    * Returns the split policy for inserting the given key. Trees stored before the split
+    * policy could be configured use {@link BPlusTreeSplitPolicy#MEDIAN}. For
+    * {@link BPlusTreeSplitPolicy#ADAPTIVE}, the key is recorded, and a biased policy is
+    * returned if most of the recently inserted keys have been ascending or descending.
+    * Must be called while holding the write lock.
+    *
+    * @param key
+    *           The key to be inserted.
+    */
+   private BPlusTreeSplitPolicy splitPolicy(final T key) {
+      if (this.splitPolicy == null) {
+         return BPlusTreeSplitPolicy.MEDIAN;
+      }
+      if (this.splitPolicy != BPlusTreeSplitPolicy.ADAPTIVE) {
+         return this.splitPolicy;
+      }
+      if (this.hasLastInsertedKey) {
+         final int comparison = BPlusTreeKey.compare(key, this.lastInsertedKey);
+         if (comparison > 0) {
+            this.insertTrend = Math.min(this.insertTrend + 1, BPlusTree.TREND_LIMIT);
+         } else if (comparison < 0) {
+            this.insertTrend = Math.max(this.insertTrend - 1, -BPlusTree.TREND_LIMIT);
+         }
+      }
+      this.lastInsertedKey = key;
+      this.hasLastInsertedKey = true;
+      if (this.insertTrend >= BPlusTree.TREND_THRESHOLD) {
+         return BPlusTreeSplitPolicy.RIGHT_BIASED;
+      }
+      if (this.insertTrend <= -BPlusTree.TREND_THRESHOLD) {
+         return BPlusTreeSplitPolicy.LEFT_BIASED;
+      }
+      return BPlusTreeSplitPolicy.MEDIAN;
+   }
+
+   /**
+    * Returns the number of keys below which a leaf is re-balanced. Trees stored before the
+    * leaf minimum could be configured use the default of order - 1.
+    */
+   private int leafMinimum() {
+      return this.leafMinimum > 0 ? this.leafMinimum : this.order - 1;
+   }
+
+   /**
+    * Returns the order of the internal nodes. Trees stored before leaves and internal nodes
+    * could have different orders use the leaf order for both.
+    */
+   private int internalOrder() {
+      return this.internalOrder > 0 ? this.internalOrder : this.order;
+   }
+
    /**
     * Removes all entries from the index.
     */
@@ -193,6 +1278,7 @@ public class BPlusTree<T extends Comparable<T>> implements Activatable {
       this.writeLock.lock();
       try {
          this.root = new BPlusTreeNode<T>(this.order, true);
+         this.lastLeaf = null;
       } finally {
          this.writeLock.unlock();
       }
@@ -225,14 +1311,17 @@ public class BPlusTree<T extends Comparable<T>> implements Activatable {
    }
 
    private Iterator<Object> greater(final T key, final boolean equal) {
-      this.activate(ActivationPurpose.WRITE);
+      this.activate(ActivationPurpose.READ);
       this.readLock.lock();
+      this.startQuery();
       try {
          final ArrayList<Object> list = new ArrayList<Object>();
          this.root.greater(key, list, equal, true);
          return list.iterator();
       } finally {
+         this.finishQuery();
          this.readLock.unlock();
+         this.checkNodeBudget();
       }
    }
 
@@ -263,14 +1352,17 @@ public class BPlusTree<T extends Comparable<T>> implements Activatable {
    }
 
    private Iterator<Object> less(final T key, final boolean equal) {
-      this.activate(ActivationPurpose.WRITE);
+      this.activate(ActivationPurpose.READ);
       this.readLock.lock();
+      this.startQuery();
       try {
          final ArrayList<Object> list = new ArrayList<Object>();
          this.root.less(key, list, equal, true);
          return list.iterator();
       } finally {
+         this.finishQuery();
          this.readLock.unlock();
+         this.checkNodeBudget();
       }
    }
 
@@ -297,14 +1389,17 @@ public class BPlusTree<T extends Comparable<T>> implements Activatable {
     *         given key.
     */
    public Iterator<Object> notEqual(final T key) {
-      this.activate(ActivationPurpose.WRITE);
+      this.activate(ActivationPurpose.READ);
       this.readLock.lock();
+      this.startQuery();
       try {
          final ArrayList<Object> list = new ArrayList<Object>();
          this.root.notEqual(key, list);
          return list.iterator();
       } finally {
+         this.finishQuery();
          this.readLock.unlock();
+         this.checkNodeBudget();
       }
    }
 
@@ -319,15 +1414,18 @@ public class BPlusTree<T extends Comparable<T>> implements Activatable {
     *         of the index.
     */
    public Iterator<Object> in2(final Collection<T> keys) {
-      this.activate(ActivationPurpose.WRITE);
+      this.activate(ActivationPurpose.READ);
       this.readLock.lock();
+      this.startQuery();
       try {
          final ArrayList<Object> list = new ArrayList<Object>();
          this.root.inOrder(list);
          list.retainAll(keys);
          return list.iterator();
       } finally {
+         this.finishQuery();
          this.readLock.unlock();
+         this.checkNodeBudget();
       }
    }
 
@@ -340,8 +1438,9 @@ public class BPlusTree<T extends Comparable<T>> implements Activatable {
     * @return An iterator containing all elements in the index that are like the given key.
     */
    public Iterator<Object> like(final T key) {
-      this.activate(ActivationPurpose.WRITE);
+      this.activate(ActivationPurpose.READ);
       this.readLock.lock();
+      this.startQuery();
       try {
          final ArrayList<Object> list = new ArrayList<Object>();
          this.root.inOrder(list);
@@ -354,10 +1453,54 @@ public class BPlusTree<T extends Comparable<T>> implements Activatable {
          }
          return list.iterator();
       } finally {
+         this.finishQuery();
          this.readLock.unlock();
+         this.checkNodeBudget();
       }
    }
 
+   /*****************************************************************************************
+    * Activation statistics
+    ****************************************************************************************/
+
+   /**
+    * Returns how often the last query of the calling thread asked db4o to activate one of
+    * the nodes of this tree. Every node that a query reads asks for it once, whether the
+    * node is already active or not, so a lookup of a single key asks once per level of the
+    * tree. Nodes that are not stored in db4o are not counted.
+    *
+    * @return The number of nodes visited by the last query, or 0 if the calling thread has
+    *         not queried this tree yet.
+    */
+   public long lastQueryVisits() {
+      final BPlusTreeActivations activations = this.lastQuery.get();
+      return activations == null ? 0 : activations.visited();
+   }
+
+   /**
+    * Returns the number of nodes that db4o had to activate, i.e. read from the database,
+    * during the last query of the calling thread.
+    *
+    * @return The number of nodes activated by the last query, or 0 if the calling thread has
+    *         not queried this tree yet.
+    */
+   public long lastQueryActivations() {
+      final BPlusTreeActivations activations = this.lastQuery.get();
+      return activations == null ? 0 : activations.activated();
+   }
+
+   private void startQuery() {
+      BPlusTreeActivations activations = this.lastQuery.get();
+      if (activations == null) {
+         activations = new BPlusTreeActivations();
+         this.lastQuery.set(activations);
+      }
+      activations.start();
+   }
+
+   private void finishQuery() {
+      BPlusTreeActivations.finish();
+   }
 
    /*****************************************************************************************
     * Activatable
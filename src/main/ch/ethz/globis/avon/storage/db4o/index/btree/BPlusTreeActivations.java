@@ -0,0 +1,75 @@
+/*
+ * @(#)BPlusTreeActivations.java   1.0   Oct 19, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+/**
+ * Counts the persisted nodes a query of the current thread visits, and how many of them
+ * db4o had to activate first. Nodes report to the counter of their thread, which is only set
+ * while the thread runs a query. Counters are reused for the queries of a thread, so that
+ * counting does not allocate.
+ *
+ * @version 1.0
+ */
+final class BPlusTreeActivations {
+
+   private static final ThreadLocal<BPlusTreeActivations> CURRENT =
+         new ThreadLocal<BPlusTreeActivations>();
+
+   private long visited;
+   private long activated;
+
+   /**
+    * Starts counting for a query of the current thread. The counts of the previous query
+    * that used this counter are dropped.
+    */
+   void start() {
+      this.visited = 0;
+      this.activated = 0;
+      BPlusTreeActivations.CURRENT.set(this);
+   }
+
+   /**
+    * Stops counting for the current thread.
+    */
+   static void finish() {
+      // clearing the value instead of removing it keeps the entry of the thread.
+      BPlusTreeActivations.CURRENT.set(null);
+   }
+
+   /**
+    * Counts a visit of a persisted node, if the current thread runs a query.
+    */
+   static void countVisit() {
+      final BPlusTreeActivations activations = BPlusTreeActivations.CURRENT.get();
+      if (activations != null) {
+         activations.visited++;
+      }
+   }
+
+   /**
+    * Counts a node that has been activated by db4o, if the current thread runs a query.
+    */
+   static void countActivation() {
+      final BPlusTreeActivations activations = BPlusTreeActivations.CURRENT.get();
+      if (activations != null) {
+         activations.activated++;
+      }
+   }
+
+   long visited() {
+      return this.visited;
+   }
+
+   long activated() {
+      return this.activated;
+   }
+
+}
@@ -0,0 +1,617 @@
+/*
+ * @(#)BPlusTreeBufferPool.java   1.0   Oct 19, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Keeps a bounded number of the pages of a {@link BPlusTreeFilePageStore} in memory, so
+ * that trees larger than the available memory can be used without reading every page from
+ * the file on each visit.
+ * <p>
+ * Each page is held in a frame while it is pinned, and stays there after it has been
+ * unpinned until its frame is needed for another page. Frames are reused in clock order:
+ * the clock hand skips pinned frames and gives frames that have been used since it last
+ * passed a second chance. Modified pages are written back to the file when their frame is
+ * reused, and by {@link #sync()} and {@link #close()}.
+ * <p>
+ * Freed pages are reused before the file grows. They are only linked into the free list of
+ * the file when the pool is synced, so that freeing many pages doesn't fill the pool.
+ * <p>
+ * A pool that is used with a {@link BPlusTreeLog} keeps modified pages in memory until the
+ * next checkpoint, which first logs their images and then writes them to the file.
+ * <p>
+ * Pages can be read ahead by other threads, e.g. the leaves that a scan of a
+ * {@link PagedBPlusTree} is going to visit next. They are read outside of the lock of the
+ * pool and take an unpinned frame, like any other page.
+ * <p>
+ * The numbers of hits, misses and evictions are counted, so that the number of frames can
+ * be chosen per deployment.
+ *
+ * @version 1.0
+ */
+public class BPlusTreeBufferPool implements BPlusTreePageStore {
+
+   /**
+    * The smallest number of frames. The tree pins up to four pages at the same time while
+    * re-balancing, some frames are left for concurrent readers.
+    */
+   public static final int MIN_FRAMES = 8;
+
+   /**
+    * The smallest number of frames of a pool used with a {@link BPlusTreeLog}. Half of the
+    * frames may be taken by modified pages before a checkpoint is made, the other half
+    * must hold the pages modified by a single operation as well as the pages of readers.
+    */
+   public static final int MIN_LOGGED_FRAMES = 64;
+
+   private final BPlusTreeFilePageStore store;
+   private final ByteBuffer[] buffers;
+   private final int[] pages;
+   private final int[] pinCounts;
+   private final boolean[] dirty;
+   private final boolean[] referenced;
+   private final boolean[] prefetched;
+   private final Map<Integer, Integer> frames;
+   private int[] freed;
+   private int freedCount;
+   private BPlusTreeLog log;
+   private int dirtyCount;
+   private int hand;
+   private long hits;
+   private long misses;
+   private long evictions;
+   private long writeBacks;
+   private long prefetches;
+   private long prefetchHits;
+   private long generation;
+
+   /**
+    * Creates a buffer pool in front of the given store.
+    *
+    * @param store
+    *          The store holding the pages.
+    * @param frameCount
+    *          The number of pages kept in memory, at least {@link #MIN_FRAMES}.
+    */
+   public BPlusTreeBufferPool(final BPlusTreeFilePageStore store, final int frameCount) {
+      if (frameCount < BPlusTreeBufferPool.MIN_FRAMES) {
+         throw new IllegalArgumentException("Frame count must be at least '"
+               + BPlusTreeBufferPool.MIN_FRAMES + "'. Given: '" + frameCount + "'");
+      }
+      this.store = store;
+      this.buffers = new ByteBuffer[frameCount];
+      this.pages = new int[frameCount];
+      this.pinCounts = new int[frameCount];
+      this.dirty = new boolean[frameCount];
+      this.referenced = new boolean[frameCount];
+      this.prefetched = new boolean[frameCount];
+      this.frames = new HashMap<Integer, Integer>(2 * frameCount);
+      for (int i = 0; i < frameCount; i++) {
+         this.buffers[i] = ByteBuffer.allocateDirect(store.pageSize());
+         this.pages[i] = BPlusTreePageStore.NO_PAGE;
+      }
+      this.freed = new int[16];
+      this.freedCount = 0;
+      this.log = null;
+      this.dirtyCount = 0;
+      this.hand = 0;
+   }
+
+   @Override
+   public int pageSize() {
+      return this.store.pageSize();
+   }
+
+   /**
+    * Takes a page that has been freed since the last sync, a page from the free list of the
+    * file or a page from the end of the file. The page is assigned a frame right away, so
+    * that it is not read from the file when it is pinned for the first time.
+    */
+   @Override
+   public synchronized int allocate() {
+      final int page;
+      final int frame;
+      if (this.freedCount > 0) {
+         frame = this.victim();
+         page = this.freed[--this.freedCount];
+         this.assign(frame, page);
+      } else if (this.store.firstFree() != BPlusTreePageStore.NO_PAGE) {
+         page = this.store.firstFree();
+         frame = this.frame(page, true);
+         this.store.setFirstFree(this.buffers[frame].getInt(0));
+      } else {
+         frame = this.victim();
+         page = this.store.extend();
+         this.assign(frame, page);
+      }
+      this.markDirty(frame);
+      return page;
+   }
+
+   /**
+    * Releases the given page. Its frame is dropped without writing the page back.
+    */
+   @Override
+   public synchronized void free(final int page) {
+      this.generation++;
+      final Integer frame = this.frames.get(page);
+      if (frame != null) {
+         this.drop(frame);
+      }
+      if (this.freedCount == this.freed.length) {
+         final int[] freed = new int[2 * this.freed.length];
+         System.arraycopy(this.freed, 0, freed, 0, this.freedCount);
+         this.freed = freed;
+      }
+      this.freed[this.freedCount++] = page;
+   }
+
+   @Override
+   public synchronized ByteBuffer pin(final int page) {
+      final Integer cached = this.frames.get(page);
+      final int frame;
+      if (cached != null) {
+         frame = cached;
+         this.hits++;
+         if (this.prefetched[frame]) {
+            this.prefetched[frame] = false;
+            this.prefetchHits++;
+         }
+      } else {
+         frame = this.frame(page, true);
+         this.misses++;
+      }
+      this.pinCounts[frame]++;
+      this.referenced[frame] = true;
+      return this.buffers[frame];
+   }
+
+   @Override
+   public synchronized void unpin(final int page, final boolean dirty) {
+      final Integer frame = this.frames.get(page);
+      if (frame == null || this.pinCounts[frame] == 0) {
+         throw new IllegalStateException("Page " + page + " is not pinned");
+      }
+      this.pinCounts[frame]--;
+      if (dirty) {
+         this.markDirty(frame);
+      }
+   }
+
+   @Override
+   public int rootPage() {
+      return this.store.rootPage();
+   }
+
+   @Override
+   public void setRootPage(final int page) {
+      this.store.setRootPage(page);
+   }
+
+   /**
+    * Writes all modified pages back and forces them to the disk. If the pool is used with a
+    * log, this makes a checkpoint.
+    *
+    * @throws IOException
+    *           If writing fails.
+    */
+   public synchronized void sync() throws IOException {
+      if (this.log != null) {
+         this.checkpoint(true);
+         return;
+      }
+      for (int frame = 0; frame < this.pages.length; frame++) {
+         this.writeBack(frame);
+      }
+      this.linkFreed(null);
+      this.store.sync();
+   }
+
+   /**
+    * Links the pages freed since the last sync into the free list of the file.
+    *
+    * @param links
+    *           Receives the page and its link for each freed page. If <code>null</code>,
+    *           the links are written to the file.
+    */
+   private void linkFreed(final int[] links) throws IOException {
+      final int[] pairs = links != null ? links : new int[2 * this.freedCount];
+      for (int i = 0; i < this.freedCount; i++) {
+         pairs[2 * i] = this.freed[i];
+         pairs[2 * i + 1] = this.store.firstFree();
+         this.store.setFirstFree(this.freed[i]);
+      }
+      this.freedCount = 0;
+      if (links == null) {
+         this.writeLinks(pairs);
+      }
+   }
+
+   /**
+    * Writes all modified pages back and closes the store. If the pool is used with a log,
+    * this makes a checkpoint.
+    */
+   @Override
+   public synchronized void close() {
+      try {
+         this.sync();
+      } catch (final IOException e) {
+         throw new RuntimeException("Could not write back the modified pages", e);
+      } finally {
+         this.store.close();
+      }
+   }
+
+   /*****************************************************************************************
+    * Logging
+    ****************************************************************************************/
+
+   /**
+    * Keeps modified pages in memory until the next checkpoint, which logs them to the given
+    * log before writing them to the file.
+    */
+   synchronized void setLog(final BPlusTreeLog log) {
+      if (this.pages.length < BPlusTreeBufferPool.MIN_LOGGED_FRAMES) {
+         throw new IllegalArgumentException("Frame count must be at least '"
+               + BPlusTreeBufferPool.MIN_LOGGED_FRAMES + "' to use a log. Given: '"
+               + this.pages.length + "'");
+      }
+      this.log = log;
+   }
+
+   /**
+    * Returns whether so many pages have been modified that a checkpoint should be made.
+    */
+   synchronized boolean needsCheckpoint() {
+      return this.dirtyCount >= this.pages.length / 2;
+   }
+
+   /**
+    * Logs the images of all modified pages and the superblock, then writes the pages to the
+    * file. Must not be called while pages are modified.
+    *
+    * @param truncate
+    *           <b>true</b> to empty the log afterwards.
+    */
+   synchronized void checkpoint(final boolean truncate) throws IOException {
+      for (int frame = 0; frame < this.pages.length; frame++) {
+         if (this.dirty[frame]) {
+            this.log.appendPage(this.pages[frame], this.buffers[frame], this.store
+                  .pageSize());
+         }
+      }
+      final int[] links = new int[2 * this.freedCount];
+      this.linkFreed(links);
+      for (int i = 0; i < links.length; i += 2) {
+         this.log.appendLink(links[i], links[i + 1]);
+      }
+      this.log.appendCheckpoint(this.store.pageCount(), this.store.firstFree(), this.store
+            .rootPage());
+      this.log.force();
+      for (int frame = 0; frame < this.pages.length; frame++) {
+         this.writeBack(frame);
+      }
+      this.writeLinks(links);
+      this.store.sync();
+      if (truncate) {
+         this.log.truncate();
+      }
+   }
+
+   /**
+    * Writes the page images of the last complete checkpoint in the given log records to
+    * the file and restores the superblock of that checkpoint. The pages written by earlier
+    * checkpoints have reached the file before the last checkpoint started, while the pages
+    * of the last checkpoint may have been written only partly. If there is a checkpoint,
+    * all frames are dropped, as they may hold pages written since.
+    *
+    * @param records
+    *           The records of the log.
+    */
+   synchronized void restore(final List<byte[]> records) throws IOException {
+      int last = -1;
+      int previous = -1;
+      for (int i = 0; i < records.size(); i++) {
+         if (records.get(i)[0] == BPlusTreeLog.CHECKPOINT) {
+            previous = last;
+            last = i;
+         }
+      }
+      if (last == -1) {
+         return;
+      }
+      this.generation++;
+      for (int frame = 0; frame < this.pages.length; frame++) {
+         this.drop(frame);
+      }
+      this.freedCount = 0;
+      for (int i = previous + 1; i < last; i++) {
+         final byte[] record = records.get(i);
+         final ByteBuffer buffer = ByteBuffer.wrap(record);
+         if (record[0] == BPlusTreeLog.PAGE) {
+            this.store.write(ByteBuffer.wrap(record, 5, record.length - 5).slice(), buffer
+                  .getInt(1));
+         } else if (record[0] == BPlusTreeLog.LINK) {
+            this.writeLinks(new int[] { buffer.getInt(1), buffer.getInt(5) });
+         }
+      }
+      final ByteBuffer checkpoint = ByteBuffer.wrap(records.get(last));
+      this.store.restore(checkpoint.getInt(1), checkpoint.getInt(5), checkpoint.getInt(9));
+      this.store.sync();
+   }
+
+   /*****************************************************************************************
+    * Prefetching
+    ****************************************************************************************/
+
+   /**
+    * Reads the given page into an unpinned frame, unless it is in the pool already. May be
+    * called by any thread. The page is read outside of the lock of the pool, and dropped if
+    * a page has been written back or freed in the meantime, as the page read may then be
+    * outdated. Errors are ignored, the page is read again when it is pinned.
+    *
+    * @param page
+    *           The page.
+    * @return <b>true</b> if the page has been read into the pool.
+    */
+   boolean prefetch(final int page) {
+      final long generation;
+      synchronized (this) {
+         if (this.frames.containsKey(page)) {
+            return false;
+         }
+         generation = this.generation;
+      }
+      final ByteBuffer buffer = ByteBuffer.allocate(this.store.pageSize());
+      try {
+         this.store.read(buffer, page);
+      } catch (final IOException e) {
+         return false;
+      }
+      synchronized (this) {
+         if (this.frames.containsKey(page) || this.generation != generation) {
+            return false;
+         }
+         final int frame;
+         try {
+            frame = this.victim();
+         } catch (final IllegalStateException e) {
+            // all frames are in use, the page is not needed that urgently.
+            return false;
+         }
+         final ByteBuffer target = this.buffers[frame].duplicate();
+         target.clear();
+         buffer.clear();
+         target.put(buffer);
+         this.assign(frame, page);
+         this.prefetched[frame] = true;
+         this.prefetches++;
+         return true;
+      }
+   }
+
+   /**
+    * Returns whether the given page is in the pool.
+    */
+   synchronized boolean contains(final int page) {
+      return this.frames.containsKey(page);
+   }
+
+   /**
+    * Returns the number of frames.
+    */
+   int frameCount() {
+      return this.pages.length;
+   }
+
+   /*****************************************************************************************
+    * Frames
+    ****************************************************************************************/
+
+   /**
+    * Returns the frame holding the given page. If the page is not in the pool, it is
+    * assigned a frame.
+    *
+    * @param page
+    *           The page.
+    * @param read
+    *           <b>true</b> to read the page from the file if it is not in the pool.
+    */
+   private int frame(final int page, final boolean read) {
+      final Integer cached = this.frames.get(page);
+      if (cached != null) {
+         return cached;
+      }
+      final int frame = this.victim();
+      if (read) {
+         try {
+            this.store.read(this.buffers[frame], page);
+         } catch (final IOException e) {
+            throw new RuntimeException("Could not read page " + page, e);
+         }
+      }
+      this.assign(frame, page);
+      return frame;
+   }
+
+   /**
+    * Returns an unpinned frame for another page, writing back its current page if
+    * necessary. Modified pages are not written back if the pool is used with a log.
+    */
+   private int victim() {
+      // two rounds: the first one may only clear the reference bits.
+      for (int i = 0; i < 2 * this.pages.length; i++) {
+         final int frame = this.hand;
+         this.hand = (this.hand + 1) % this.pages.length;
+         if (this.pinCounts[frame] > 0) {
+            continue;
+         }
+         if (this.referenced[frame]) {
+            this.referenced[frame] = false;
+            continue;
+         }
+         if (this.dirty[frame] && this.log != null) {
+            continue;
+         }
+         if (this.pages[frame] != BPlusTreePageStore.NO_PAGE) {
+            try {
+               this.writeBack(frame);
+            } catch (final IOException e) {
+               throw new RuntimeException("Could not write back page " + this.pages[frame],
+                     e);
+            }
+            this.frames.remove(this.pages[frame]);
+            this.pages[frame] = BPlusTreePageStore.NO_PAGE;
+            this.evictions++;
+         }
+         return frame;
+      }
+      throw new IllegalStateException("All " + this.pages.length
+            + " frames are pinned or wait for a checkpoint");
+   }
+
+   private void assign(final int frame, final int page) {
+      this.pages[frame] = page;
+      this.dirty[frame] = false;
+      this.referenced[frame] = false;
+      this.prefetched[frame] = false;
+      this.frames.put(page, frame);
+   }
+
+   /**
+    * Writes the given pairs of free pages and their links to the file.
+    */
+   private void writeLinks(final int[] links) throws IOException {
+      final ByteBuffer link = ByteBuffer.allocate(4);
+      for (int i = 0; i < links.length; i += 2) {
+         link.putInt(0, links[i + 1]);
+         this.store.write(link, links[i]);
+      }
+   }
+
+   private void drop(final int frame) {
+      if (this.pages[frame] != BPlusTreePageStore.NO_PAGE) {
+         this.frames.remove(this.pages[frame]);
+         this.pages[frame] = BPlusTreePageStore.NO_PAGE;
+      }
+      if (this.dirty[frame]) {
+         this.dirty[frame] = false;
+         this.dirtyCount--;
+      }
+      this.referenced[frame] = false;
+      this.prefetched[frame] = false;
+   }
+
+   private void markDirty(final int frame) {
+      if (!this.dirty[frame]) {
+         this.dirty[frame] = true;
+         this.dirtyCount++;
+      }
+   }
+
+   private void writeBack(final int frame) throws IOException {
+      if (this.dirty[frame]) {
+         this.store.write(this.buffers[frame], this.pages[frame]);
+         this.dirty[frame] = false;
+         this.dirtyCount--;
+         this.writeBacks++;
+         this.generation++;
+      }
+   }
+
+   /*****************************************************************************************
+    * Statistics
+    ****************************************************************************************/
+
+   /**
+    * Returns the number of pins that found their page in memory.
+    *
+    * @return The number of hits.
+    */
+   public synchronized long hits() {
+      return this.hits;
+   }
+
+   /**
+    * Returns the number of pins that had to read their page from the file.
+    *
+    * @return The number of misses.
+    */
+   public synchronized long misses() {
+      return this.misses;
+   }
+
+   /**
+    * Returns the fraction of pins that found their page in memory.
+    *
+    * @return The hit rate between 0 and 1, or 0 if no page has been pinned yet.
+    */
+   public synchronized double hitRate() {
+      final long pins = this.hits + this.misses;
+      return pins == 0 ? 0 : (double) this.hits / pins;
+   }
+
+   /**
+    * Returns the number of pages that have been removed from memory to make room for other
+    * pages.
+    *
+    * @return The number of evictions.
+    */
+   public synchronized long evictions() {
+      return this.evictions;
+   }
+
+   /**
+    * Returns the number of modified pages that have been written back to the file.
+    *
+    * @return The number of write-backs.
+    */
+   public synchronized long writeBacks() {
+      return this.writeBacks;
+   }
+
+   /**
+    * Returns the number of pages that have been read ahead.
+    *
+    * @return The number of prefetched pages.
+    */
+   public synchronized long prefetches() {
+      return this.prefetches;
+   }
+
+   /**
+    * Returns the number of pages read ahead that have been pinned before their frame was
+    * reused. Each of them saved a miss.
+    *
+    * @return The number of prefetch hits.
+    */
+   public synchronized long prefetchHits() {
+      return this.prefetchHits;
+   }
+
+   /**
+    * Sets all counters to 0.
+    */
+   public synchronized void resetStatistics() {
+      this.hits = 0;
+      this.misses = 0;
+      this.evictions = 0;
+      this.writeBacks = 0;
+      this.prefetches = 0;
+      this.prefetchHits = 0;
+   }
+
+}
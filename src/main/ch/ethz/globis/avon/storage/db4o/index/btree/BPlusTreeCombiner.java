@@ -0,0 +1,127 @@
+/*
+ * @(#)BPlusTreeCombiner.java   1.0   Oct 18, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Flat combining for the write operations of a B+ tree.
+ * Writing threads publish their operations in a slot array. Whichever thread gets hold of
+ * the write lock becomes the combiner: it collects all pending operations and applies them
+ * to the tree in one pass, while the other writers wait for their operations to be marked
+ * as done instead of queueing for the lock. Waiting writers are parked. The combiner
+ * unparks them once their operations are done and then wakes up one of the writers whose
+ * operations were published too late for its batch, which becomes the next combiner.
+ *
+ * @version 1.0
+ */
+class BPlusTreeCombiner<T extends Comparable<T>> {
+
+   /**
+    * The longest time a waiting writer stays parked before it tries to get the write lock
+    * again. Bounds the wait if the lock is released by a thread that does not combine, e.g.
+    * a reader.
+    */
+   private static final long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+   private final BPlusTree<T> tree;
+   private final Lock writeLock;
+   private final AtomicReferenceArray<BPlusTreeOperation<T>> slots;
+
+   BPlusTreeCombiner(final BPlusTree<T> tree, final Lock writeLock, final int slotCount) {
+      this.tree = tree;
+      this.writeLock = writeLock;
+      this.slots = new AtomicReferenceArray<BPlusTreeOperation<T>>(slotCount);
+   }
+
+   /**
+    * Applies the given operation to the tree, possibly together with the operations of other
+    * threads. Returns once the operation has been applied.
+    *
+    * @param operation
+    *           The operation to be applied.
+    */
+   void execute(final BPlusTreeOperation<T> operation) {
+      if (!this.publish(operation)) {
+         // all slots are taken. apply the operation on its own.
+         this.writeLock.lock();
+         try {
+            final List<BPlusTreeOperation<T>> batch = new ArrayList<BPlusTreeOperation<T>>(1);
+            batch.add(operation);
+            this.tree.apply(batch);
+         } finally {
+            this.writeLock.unlock();
+         }
+      }
+
+      while (!operation.isDone()) {
+         if (this.writeLock.tryLock()) {
+            try {
+               if (!operation.isDone()) {
+                  this.combine();
+               }
+            } finally {
+               this.writeLock.unlock();
+            }
+            this.handOver();
+         } else {
+            LockSupport.parkNanos(operation, BPlusTreeCombiner.PARK_NANOS);
+         }
+      }
+      operation.rethrow();
+   }
+
+   /**
+    * Wakes up the writer of an operation that is still pending, such that it becomes the
+    * next combiner.
+    */
+   private void handOver() {
+      for (int i = 0; i < this.slots.length(); i++) {
+         final BPlusTreeOperation<T> operation = this.slots.get(i);
+         if (operation != null) {
+            operation.wakeUp();
+            return;
+         }
+      }
+   }
+
+   private boolean publish(final BPlusTreeOperation<T> operation) {
+      final int slotCount = this.slots.length();
+      final int start = (int) (Thread.currentThread().getId() % slotCount);
+      for (int i = 0; i < slotCount; i++) {
+         if (this.slots.compareAndSet((start + i) % slotCount, null, operation)) {
+            return true;
+         }
+      }
+      return false;
+   }
+
+   /**
+    * Collects all published operations and applies them. Must be called while holding the
+    * write lock.
+    */
+   private void combine() {
+      final List<BPlusTreeOperation<T>> batch = new ArrayList<BPlusTreeOperation<T>>();
+      for (int i = 0; i < this.slots.length(); i++) {
+         final BPlusTreeOperation<T> operation = this.slots.getAndSet(i, null);
+         if (operation != null) {
+            batch.add(operation);
+         }
+      }
+      this.tree.apply(batch);
+   }
+
+}
@@ -0,0 +1,329 @@
+/*
+ * @(#)BPlusTreeFilePageStore.java   1.0   Oct 19, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Keeps pages in a file, so that a {@link PagedBPlusTree} can be used as an embedded,
+ * disk-resident index without db4o. Pinning a page reads it from the file, unpinning a
+ * modified page writes it back, so each node visited costs one page of I/O. Put a
+ * {@link BPlusTreeBufferPool} in front of the store to keep frequently used pages in
+ * memory.
+ * <p>
+ * Page 0 of the file is the superblock. It holds the page size, the number of pages, the
+ * root page and the first page of the free list. Freed pages are chained into the free list
+ * through their first 4 bytes and are reused before the file grows. The superblock is
+ * written by {@link #sync()} and {@link #close()}.
+ *
+ * @version 1.0
+ */
+public class BPlusTreeFilePageStore implements BPlusTreePageStore {
+
+   private static final int MAGIC = 0x42505446;
+   private static final int VERSION = 1;
+   private static final int SUPERBLOCK = 0;
+   private static final int SUPERBLOCK_BYTES = 24;
+
+   private final File file;
+   private final RandomAccessFile randomAccessFile;
+   private final FileChannel channel;
+   private final int pageSize;
+   private final Map<Integer, Pin> pinned;
+   private int pageCount;
+   private int firstFree;
+   private int rootPage;
+   private long reads;
+   private long writes;
+
+   /**
+    * A pinned page and the number of times it is pinned.
+    */
+   private static class Pin {
+      private final ByteBuffer buffer;
+      private int count;
+
+      private Pin(final ByteBuffer buffer) {
+         this.buffer = buffer;
+         this.count = 0;
+      }
+   }
+
+   /**
+    * Opens the store in the given file. If the file doesn't exist or is empty, a new store
+    * is created.
+    *
+    * @param file
+    *          The file holding the pages.
+    * @param pageSize
+    *          The size of the pages, between 256 and 65536 bytes. An existing file must
+    *          have been created with the same page size.
+    * @throws IOException
+    *           If the file cannot be opened or is not a page file with the given page size.
+    */
+   public BPlusTreeFilePageStore(final File file, final int pageSize) throws IOException {
+      if (pageSize < 256 || pageSize > 65536) {
+         throw new IllegalArgumentException("Page size must be between '256' and '65536'. "
+               + "Given: '" + pageSize + "'");
+      }
+      this.file = file;
+      this.randomAccessFile = new RandomAccessFile(file, "rw");
+      this.channel = this.randomAccessFile.getChannel();
+      this.pageSize = pageSize;
+      this.pinned = new HashMap<Integer, Pin>();
+      try {
+         if (this.channel.size() == 0) {
+            this.pageCount = 1;
+            this.firstFree = BPlusTreePageStore.NO_PAGE;
+            this.rootPage = BPlusTreePageStore.NO_PAGE;
+            this.writeSuperblock();
+         } else {
+            this.readSuperblock();
+         }
+      } catch (final IOException e) {
+         this.channel.close();
+         throw e;
+      }
+   }
+
+   private void readSuperblock() throws IOException {
+      final ByteBuffer buffer = ByteBuffer.allocate(
+            BPlusTreeFilePageStore.SUPERBLOCK_BYTES);
+      this.read(buffer, 0);
+      if (buffer.getInt(0) != BPlusTreeFilePageStore.MAGIC
+            || buffer.getInt(4) != BPlusTreeFilePageStore.VERSION) {
+         throw new IOException("'" + this.file + "' is not a B+ tree page file");
+      }
+      if (buffer.getInt(8) != this.pageSize) {
+         throw new IOException("'" + this.file + "' has pages of '" + buffer.getInt(8)
+               + "' bytes. Given: '" + this.pageSize + "'");
+      }
+      this.pageCount = buffer.getInt(12);
+      this.firstFree = buffer.getInt(16);
+      this.rootPage = buffer.getInt(20);
+   }
+
+   private void writeSuperblock() throws IOException {
+      final ByteBuffer buffer = ByteBuffer.allocate(this.pageSize);
+      buffer.putInt(0, BPlusTreeFilePageStore.MAGIC);
+      buffer.putInt(4, BPlusTreeFilePageStore.VERSION);
+      buffer.putInt(8, this.pageSize);
+      buffer.putInt(12, this.pageCount);
+      buffer.putInt(16, this.firstFree);
+      buffer.putInt(20, this.rootPage);
+      this.write(buffer, BPlusTreeFilePageStore.SUPERBLOCK);
+   }
+
+   @Override
+   public int pageSize() {
+      return this.pageSize;
+   }
+
+   @Override
+   public synchronized int allocate() {
+      if (this.firstFree == BPlusTreePageStore.NO_PAGE) {
+         return this.pageCount++;
+      }
+      final int page = this.firstFree;
+      final ByteBuffer buffer = ByteBuffer.allocate(4);
+      try {
+         this.read(buffer, page);
+      } catch (final IOException e) {
+         throw new RuntimeException("Could not read free page " + page, e);
+      }
+      this.firstFree = buffer.getInt(0);
+      return page;
+   }
+
+   @Override
+   public synchronized void free(final int page) {
+      final ByteBuffer buffer = ByteBuffer.allocate(4);
+      buffer.putInt(0, this.firstFree);
+      try {
+         this.write(buffer, page);
+      } catch (final IOException e) {
+         throw new RuntimeException("Could not write free page " + page, e);
+      }
+      this.firstFree = page;
+   }
+
+   /**
+    * Reads the page from the file, unless it is pinned already, in which case the same
+    * buffer is returned.
+    */
+   @Override
+   public synchronized ByteBuffer pin(final int page) {
+      Pin pin = this.pinned.get(page);
+      if (pin == null) {
+         final ByteBuffer buffer = ByteBuffer.allocate(this.pageSize);
+         try {
+            this.read(buffer, page);
+         } catch (final IOException e) {
+            throw new RuntimeException("Could not read page " + page, e);
+         }
+         pin = new Pin(buffer);
+         this.pinned.put(page, pin);
+      }
+      pin.count++;
+      return pin.buffer;
+   }
+
+   @Override
+   public synchronized void unpin(final int page, final boolean dirty) {
+      final Pin pin = this.pinned.get(page);
+      if (pin == null) {
+         throw new IllegalStateException("Page " + page + " is not pinned");
+      }
+      if (dirty) {
+         try {
+            this.write(pin.buffer, page);
+         } catch (final IOException e) {
+            throw new RuntimeException("Could not write page " + page, e);
+         }
+      }
+      if (--pin.count == 0) {
+         this.pinned.remove(page);
+      }
+   }
+
+   @Override
+   public synchronized int rootPage() {
+      return this.rootPage;
+   }
+
+   @Override
+   public synchronized void setRootPage(final int page) {
+      this.rootPage = page;
+   }
+
+   /**
+    * Writes the superblock and forces all changes to the disk.
+    *
+    * @throws IOException
+    *           If writing fails.
+    */
+   public synchronized void sync() throws IOException {
+      this.writeSuperblock();
+      this.channel.force(true);
+   }
+
+   @Override
+   public synchronized void close() {
+      try {
+         try {
+            this.sync();
+         } finally {
+            this.channel.close();
+            this.randomAccessFile.close();
+         }
+      } catch (final IOException e) {
+         throw new RuntimeException("Could not close '" + this.file + "'", e);
+      }
+   }
+
+   /**
+    * Returns the number of pages in the file, including the superblock and free pages.
+    *
+    * @return The number of pages.
+    */
+   public synchronized int pageCount() {
+      return this.pageCount;
+   }
+
+   /**
+    * Returns the first page of the free list, for buffer pools that maintain the free list
+    * themselves.
+    */
+   synchronized int firstFree() {
+      return this.firstFree;
+   }
+
+   synchronized void setFirstFree(final int page) {
+      this.firstFree = page;
+   }
+
+   /**
+    * Adds a page at the end of the file, without consulting the free list.
+    */
+   synchronized int extend() {
+      return this.pageCount++;
+   }
+
+   /**
+    * Resets the contents of the superblock, e.g. to a state recorded in a log. The
+    * superblock is written by the next {@link #sync()}.
+    */
+   synchronized void restore(final int pageCount, final int firstFree, final int rootPage) {
+      this.pageCount = pageCount;
+      this.firstFree = firstFree;
+      this.rootPage = rootPage;
+   }
+
+   /**
+    * Returns the number of pages read from the file since the store was opened.
+    *
+    * @return The number of page reads.
+    */
+   public synchronized long reads() {
+      return this.reads;
+   }
+
+   /**
+    * Returns the number of pages written to the file since the store was opened.
+    *
+    * @return The number of page writes.
+    */
+   public synchronized long writes() {
+      return this.writes;
+   }
+
+   /**
+    * Reads the beginning of the given page into the whole buffer. Reads do not hold the
+    * lock of the store, so that several threads can read pages at the same time, e.g. while
+    * a {@link BPlusTreeBufferPool} reads pages ahead.
+    */
+   void read(final ByteBuffer buffer, final int page) throws IOException {
+      final ByteBuffer target = buffer.duplicate();
+      target.clear();
+      final long position = (long) page * this.pageSize;
+      while (target.hasRemaining()) {
+         if (this.channel.read(target, position + target.position()) < 0) {
+            // the page lies beyond the end of the file and has never been written.
+            while (target.hasRemaining()) {
+               target.put((byte) 0);
+            }
+         }
+      }
+      synchronized (this) {
+         this.reads++;
+      }
+   }
+
+   /**
+    * Writes the whole buffer to the beginning of the given page.
+    */
+   synchronized void write(final ByteBuffer buffer, final int page) throws IOException {
+      final ByteBuffer source = buffer.duplicate();
+      source.clear();
+      final long position = (long) page * this.pageSize;
+      while (source.hasRemaining()) {
+         this.channel.write(source, position + source.position());
+      }
+      this.writes++;
+   }
+
+}
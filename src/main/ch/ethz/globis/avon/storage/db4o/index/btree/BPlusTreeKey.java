@@ -33,6 +33,74 @@ public class BPlusTreeKey<T extends Comparable<T>> implements Activatable {
       this.key = null;
    }
 
+   /**
+    * Compares two keys the way the tree orders them: <code>null</code> is smaller than any
+    * other key.
+    *
+    * @param key1
+    *           The first key to be compared.
+    * @param key2
+    *           The second key to be compared.
+    * @return A negative integer, zero, or a positive integer as key1 is less than, equal to,
+    *         or greater than key2.
+    */
+   static <K extends Comparable<K>> int compare(final K key1, final K key2) {
+      if (key1 == key2) {
+         return 0;
+      }
+      if (key1 == null) {
+         return -1;
+      }
+      if (key2 == null) {
+         return 1;
+      }
+      return key1.compareTo(key2);
+   }
+
+   /**
+    * Returns a key that separates the given neighbouring keys, i.e. one that is greater than
+    * or equal to left and smaller than right. For <code>String</code> keys, this is the
+    * shortest prefix of right that is greater than left, if there is one, so that internal
+    * nodes don't need to store long keys in full. For other keys, it is left itself.
+    *
+    * @param left
+    *           The largest key on the left side.
+    * @param right
+    *           The smallest key on the right side, greater than left.
+    * @return The separator.
+    */
+   @SuppressWarnings("unchecked")
+   static <T extends Comparable<T>> T separator(final T left, final T right) {
+      if (!BPlusTreeKey.isShortened(left) || !BPlusTreeKey.isShortened(right)) {
+         return left;
+      }
+      final String l = (String) left;
+      final String r = (String) right;
+      int common = 0;
+      while (common < l.length() && l.charAt(common) == r.charAt(common)) {
+         common++;
+      }
+      // the prefix of right that includes the first differing character is greater than left.
+      // it is a proper separator only if it is shorter than right itself.
+      if (common + 1 >= r.length()) {
+         return left;
+      }
+      return (T) r.substring(0, common + 1);
+   }
+
+   /**
+    * Returns whether separators for the given key may be shorter than the key itself, see
+    * {@link #separator(Comparable, Comparable)}. Such separators are greater than the largest
+    * key on their left side rather than equal to it.
+    *
+    * @param key
+    *           The key to be checked.
+    * @return <b>true</b> if separators are shortened for this type of key.
+    */
+   static boolean isShortened(final Object key) {
+      return key instanceof String;
+   }
+
    public T key() {
       this.activate(ActivationPurpose.READ);
       if (this.isNull) {
@@ -0,0 +1,503 @@
+/*
+ * @(#)BPlusTreeLoader.java   1.0   Oct 18, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+
+/**
+ * Builds a B+ tree bottom-up from a sorted sequence of key/value pairs.
+ * The leaves are filled sequentially up to the fill factor and linked to each other. Then the
+ * internal levels are built on top of them, level by level, until a single root remains.
+ * No node is ever split, so building a tree of n entries takes O(n) time.
+ * For large inputs, the tree can be built by several threads in parallel.
+ *
+ * @version 1.0
+ */
+class BPlusTreeLoader<T extends Comparable<T>> {
+
+   /**
+    * Orders key/value pairs by their keys, <code>null</code> keys first.
+    */
+   static final Comparator<Map.Entry<?, ?>> ENTRY_ORDER = new Comparator<Map.Entry<?, ?>>() {
+      @Override
+      @SuppressWarnings({ "rawtypes", "unchecked" })
+      public int compare(final Map.Entry<?, ?> e1, final Map.Entry<?, ?> e2) {
+         return BPlusTreeKey.compare((Comparable) e1.getKey(), (Comparable) e2.getKey());
+      }
+   };
+
+   private static final int PARTITIONS_PER_THREAD = 4;
+   private static final int SAMPLES_PER_PARTITION = 16;
+
+   private final int leafOrder;
+   private final int internalOrder;
+   private final int leafKeyCount;
+   private final int childCount;
+
+   /**
+    * Creates a new loader for trees with the given orders.
+    *
+    * @param leafOrder
+    *          The order of the leaves of the tree to be built.
+    * @param internalOrder
+    *          The order of the internal nodes of the tree to be built.
+    * @param fillFactor
+    *          The fraction of the node capacity to be used, 0 &lt; fillFactor &lt;= 1. Nodes
+    *          are never filled below the minimum size required by the order.
+    */
+   BPlusTreeLoader(final int leafOrder, final int internalOrder, final double fillFactor) {
+      if (!(fillFactor > 0 && fillFactor <= 1)) {
+         throw new IllegalArgumentException("Fill factor must be in (0, 1]. Given: '"
+               + fillFactor + "'");
+      }
+      this.leafOrder = leafOrder;
+      this.internalOrder = internalOrder;
+      // a node holds at most 2*order-1 keys and at least order-1 keys.
+      final int maxLeafKeyCount = 2 * leafOrder - 1;
+      this.leafKeyCount = Math.max(Math.max(leafOrder - 1, 1), Math.min(maxLeafKeyCount,
+            (int) Math.round(fillFactor * maxLeafKeyCount)));
+      final int maxInternalKeyCount = 2 * internalOrder - 1;
+      this.childCount = Math.max(internalOrder, Math.min(maxInternalKeyCount, (int) Math
+            .round(fillFactor * maxInternalKeyCount)) + 1);
+   }
+
+   /**
+    * Builds a tree containing the given key/value pairs.
+    *
+    * @param sorted
+    *           The key/value pairs, sorted ascending by key. Pairs with equal keys may follow
+    *           each other in any order.
+    * @return The root of the new tree.
+    * @throws IllegalArgumentException
+    *            If the pairs are not sorted.
+    */
+   BPlusTreeNode<T> load(final Iterator<? extends Map.Entry<? extends T, ?>> sorted) {
+      return this.buildInternalLevels(this.buildLeaves(sorted));
+   }
+
+   /**
+    * Builds the leaf level from the given key/value pairs. Pairs with equal keys are stored
+    * under one key. The last few leaves are held back until the end of the input, so that
+    * none of them is left below the minimum size.
+    *
+    * @param sorted
+    *           The key/value pairs, sorted ascending by key.
+    * @return The linked leaves in order.
+    */
+   List<BPlusTreeNode<T>> buildLeaves(
+         final Iterator<? extends Map.Entry<? extends T, ?>> sorted) {
+      final List<BPlusTreeNode<T>> leaves = new ArrayList<BPlusTreeNode<T>>();
+      final List<T> pendingKeys = new ArrayList<T>();
+      final List<List<Object>> pendingEntries = new ArrayList<List<Object>>();
+      final int window = this.leafKeyCount + this.maxSize(true);
+      while (sorted.hasNext()) {
+         final Map.Entry<? extends T, ?> entry = sorted.next();
+         final T key = entry.getKey();
+         final int last = pendingKeys.size() - 1;
+         final int comparison = last < 0 ? 1 : BPlusTreeKey.compare(key, pendingKeys
+               .get(last));
+         if (comparison < 0) {
+            throw new IllegalArgumentException("Input is not sorted: '" + key
+                  + "' follows '" + pendingKeys.get(last) + "'");
+         } else if (comparison == 0) {
+            if (!pendingEntries.get(last).contains(entry.getValue())) {
+               pendingEntries.get(last).add(entry.getValue());
+            }
+         } else {
+            if (pendingKeys.size() == window) {
+               this.appendLeaf(leaves, pendingKeys, pendingEntries, this.leafKeyCount);
+            }
+            pendingKeys.add(key);
+            final List<Object> entries = new ArrayList<Object>();
+            entries.add(entry.getValue());
+            pendingEntries.add(entries);
+         }
+      }
+      for (final int size : this.partition(pendingKeys.size(), this.leafKeyCount, this
+            .maxSize(true))) {
+         this.appendLeaf(leaves, pendingKeys, pendingEntries, size);
+      }
+      if (leaves.isEmpty()) {
+         leaves.add(new BPlusTreeNode<T>(this.leafOrder, true));
+      }
+      return leaves;
+   }
+
+   private void appendLeaf(final List<BPlusTreeNode<T>> leaves, final List<T> pendingKeys,
+         final List<List<Object>> pendingEntries, final int size) {
+      final BPlusTreeNode<T> leaf = new BPlusTreeNode<T>(this.leafOrder, true);
+      for (int i = 0; i < size; i++) {
+         leaf.appendKeyWithEntries(pendingKeys.get(i), pendingEntries.get(i));
+      }
+      pendingKeys.subList(0, size).clear();
+      pendingEntries.subList(0, size).clear();
+      if (!leaves.isEmpty()) {
+         leaves.get(leaves.size() - 1).linkNext(leaf);
+      }
+      leaves.add(leaf);
+   }
+
+   /**
+    * Builds the internal levels on top of the given nodes.
+    *
+    * @param level
+    *           The nodes of the lowest level, in order.
+    * @return The root of the tree.
+    */
+   BPlusTreeNode<T> buildInternalLevels(List<BPlusTreeNode<T>> level) {
+      while (level.size() > 1) {
+         final int[] sizes = this.partition(level.size(), this.childCount, this
+               .maxSize(false));
+         level = this.buildParents(level, sizes, 0, sizes.length, 0);
+      }
+      return level.get(0);
+   }
+
+   /**
+    * Builds the parents for a range of groups of nodes.
+    *
+    * @param level
+    *           The nodes of the level below the parents.
+    * @param sizes
+    *           The number of children of each parent.
+    * @param from
+    *           Index of the first group to be built (inclusive).
+    * @param to
+    *           Index of the last group to be built (exclusive).
+    * @param start
+    *           Index in level of the first child of the first group.
+    * @return The parents in order.
+    */
+   private List<BPlusTreeNode<T>> buildParents(final List<BPlusTreeNode<T>> level,
+         final int[] sizes, final int from, final int to, final int start) {
+      final List<BPlusTreeNode<T>> parents = new ArrayList<BPlusTreeNode<T>>(to - from);
+      int index = start;
+      for (int group = from; group < to; group++) {
+         final BPlusTreeNode<T> parent = new BPlusTreeNode<T>(this.internalOrder, false);
+         for (int i = 0; i < sizes[group]; i++) {
+            parent.appendChild(level.get(index++));
+         }
+         parents.add(parent);
+      }
+      return parents;
+   }
+
+   /*****************************************************************************************
+    * Parallel loading
+    ****************************************************************************************/
+
+   /**
+    * Builds a tree containing the given key/value pairs using the threads of the given pool.
+    * The pairs are distributed into partitions of disjoint key ranges, using splitter keys
+    * taken from a sample of the input. Each partition is sorted and turned into a run of
+    * leaves on its own. The runs are then linked and the internal levels are built on top of
+    * them, each level in parallel.
+    *
+    * @param entries
+    *           The key/value pairs in any order. Pairs with equal keys are stored in the
+    *           order in which they are given.
+    * @param pool
+    *           The pool whose threads build the tree.
+    * @return The root of the new tree.
+    */
+   BPlusTreeNode<T> loadParallel(final List<Map.Entry<? extends T, ?>> entries,
+         final ForkJoinPool pool) {
+      final int partitionCount = Math.max(1, Math.min(pool.getParallelism()
+            * BPlusTreeLoader.PARTITIONS_PER_THREAD, entries.size()
+            / (4 * this.maxSize(true))));
+      final List<T> splitters = this.splitters(entries, partitionCount);
+
+      // distribute chunks of the input into partitions
+      final List<Callable<List<List<Map.Entry<? extends T, ?>>>>> distributions =
+            new ArrayList<Callable<List<List<Map.Entry<? extends T, ?>>>>>();
+      for (int i = 0; i < partitionCount; i++) {
+         final List<Map.Entry<? extends T, ?>> chunk = entries.subList(i * entries.size()
+               / partitionCount, (i + 1) * entries.size() / partitionCount);
+         distributions.add(new Callable<List<List<Map.Entry<? extends T, ?>>>>() {
+            @Override
+            public List<List<Map.Entry<? extends T, ?>>> call() {
+               return BPlusTreeLoader.this.distribute(chunk, splitters);
+            }
+         });
+      }
+      final List<List<List<Map.Entry<? extends T, ?>>>> distributed = this.invokeAll(pool,
+            distributions);
+
+      // collect and sort the partitions
+      final List<Callable<List<Map.Entry<? extends T, ?>>>> sorts =
+            new ArrayList<Callable<List<Map.Entry<? extends T, ?>>>>();
+      for (int i = 0; i <= splitters.size(); i++) {
+         final int partition = i;
+         sorts.add(new Callable<List<Map.Entry<? extends T, ?>>>() {
+            @Override
+            public List<Map.Entry<? extends T, ?>> call() {
+               final List<Map.Entry<? extends T, ?>> result =
+                     new ArrayList<Map.Entry<? extends T, ?>>();
+               for (final List<List<Map.Entry<? extends T, ?>>> chunk : distributed) {
+                  result.addAll(chunk.get(partition));
+               }
+               Collections.sort(result, BPlusTreeLoader.ENTRY_ORDER);
+               return result;
+            }
+         });
+      }
+      final List<List<Map.Entry<? extends T, ?>>> runs = this.coalesce(this.invokeAll(pool,
+            sorts));
+
+      // build runs of leaves and link them
+      final List<Callable<List<BPlusTreeNode<T>>>> builds =
+            new ArrayList<Callable<List<BPlusTreeNode<T>>>>();
+      for (final List<Map.Entry<? extends T, ?>> run : runs) {
+         builds.add(new Callable<List<BPlusTreeNode<T>>>() {
+            @Override
+            public List<BPlusTreeNode<T>> call() {
+               return BPlusTreeLoader.this.buildLeaves(run.iterator());
+            }
+         });
+      }
+      final List<BPlusTreeNode<T>> leaves = new ArrayList<BPlusTreeNode<T>>();
+      for (final List<BPlusTreeNode<T>> run : this.invokeAll(pool, builds)) {
+         if (!leaves.isEmpty()) {
+            leaves.get(leaves.size() - 1).linkNext(run.get(0));
+         }
+         leaves.addAll(run);
+      }
+      return this.buildInternalLevels(leaves, pool);
+   }
+
+   /**
+    * Takes a sample of the given keys and returns partitionCount - 1 of them as splitters,
+    * sorted ascending.
+    */
+   private List<T> splitters(final List<Map.Entry<? extends T, ?>> entries,
+         final int partitionCount) {
+      final List<T> sample = new ArrayList<T>();
+      final int sampleSize = Math.min(entries.size(), partitionCount
+            * BPlusTreeLoader.SAMPLES_PER_PARTITION);
+      for (int i = 0; i < sampleSize; i++) {
+         sample.add(entries.get((int) ((long) i * entries.size() / sampleSize)).getKey());
+      }
+      Collections.sort(sample, new Comparator<T>() {
+         @Override
+         public int compare(final T key1, final T key2) {
+            return BPlusTreeKey.compare(key1, key2);
+         }
+      });
+      final List<T> splitters = new ArrayList<T>();
+      for (int i = 1; i < partitionCount; i++) {
+         splitters.add(sample.get(i * sampleSize / partitionCount));
+      }
+      return splitters;
+   }
+
+   /**
+    * Distributes the given key/value pairs into partitions. Partition i holds the keys that
+    * are greater than splitter i-1 and smaller than or equal to splitter i.
+    */
+   private List<List<Map.Entry<? extends T, ?>>> distribute(
+         final List<Map.Entry<? extends T, ?>> chunk, final List<T> splitters) {
+      final List<List<Map.Entry<? extends T, ?>>> partitions =
+            new ArrayList<List<Map.Entry<? extends T, ?>>>();
+      for (int i = 0; i <= splitters.size(); i++) {
+         partitions.add(new ArrayList<Map.Entry<? extends T, ?>>());
+      }
+      for (final Map.Entry<? extends T, ?> entry : chunk) {
+         int low = 0;
+         int high = splitters.size();
+         while (low < high) {
+            final int middle = (low + high) / 2;
+            if (BPlusTreeKey.compare(entry.getKey(), splitters.get(middle)) <= 0) {
+               high = middle;
+            } else {
+               low = middle + 1;
+            }
+         }
+         partitions.get(low).add(entry);
+      }
+      return partitions;
+   }
+
+   /**
+    * Concatenates neighbouring sorted partitions until each one contains enough distinct keys
+    * to fill a leaf up to the minimum size. Empty partitions are dropped.
+    */
+   private List<List<Map.Entry<? extends T, ?>>> coalesce(
+         final List<List<Map.Entry<? extends T, ?>>> partitions) {
+      final List<List<Map.Entry<? extends T, ?>>> runs =
+            new ArrayList<List<Map.Entry<? extends T, ?>>>();
+      List<Map.Entry<? extends T, ?>> current = null;
+      for (final List<Map.Entry<? extends T, ?>> partition : partitions) {
+         if (current == null) {
+            current = partition;
+         } else {
+            current.addAll(partition);
+         }
+         if (this.hasMinimumKeyCount(current)) {
+            runs.add(current);
+            current = null;
+         }
+      }
+      if (current != null && !current.isEmpty()) {
+         if (runs.isEmpty()) {
+            runs.add(current);
+         } else {
+            runs.get(runs.size() - 1).addAll(current);
+         }
+      }
+      if (runs.isEmpty()) {
+         runs.add(new ArrayList<Map.Entry<? extends T, ?>>());
+      }
+      return runs;
+   }
+
+   private boolean hasMinimumKeyCount(final List<Map.Entry<? extends T, ?>> sorted) {
+      final int minimum = Math.max(this.leafOrder - 1, 1);
+      int keyCount = 0;
+      for (int i = 0; i < sorted.size() && keyCount < minimum; i++) {
+         if (i == 0 || BPlusTreeKey.compare(sorted.get(i - 1).getKey(), sorted.get(i)
+               .getKey()) != 0) {
+            keyCount++;
+         }
+      }
+      return keyCount >= minimum;
+   }
+
+   /**
+    * Builds the internal levels on top of the given nodes, building the parents of each
+    * level in parallel.
+    */
+   private BPlusTreeNode<T> buildInternalLevels(List<BPlusTreeNode<T>> level,
+         final ForkJoinPool pool) {
+      while (level.size() > 1) {
+         final List<BPlusTreeNode<T>> children = level;
+         final int[] sizes = this.partition(level.size(), this.childCount, this
+               .maxSize(false));
+         final int taskCount = Math.min(sizes.length, pool.getParallelism()
+               * BPlusTreeLoader.PARTITIONS_PER_THREAD);
+         final List<Callable<List<BPlusTreeNode<T>>>> builds =
+               new ArrayList<Callable<List<BPlusTreeNode<T>>>>();
+         int start = 0;
+         for (int i = 0; i < taskCount; i++) {
+            final int from = i * sizes.length / taskCount;
+            final int to = (i + 1) * sizes.length / taskCount;
+            final int first = start;
+            for (int group = from; group < to; group++) {
+               start += sizes[group];
+            }
+            builds.add(new Callable<List<BPlusTreeNode<T>>>() {
+               @Override
+               public List<BPlusTreeNode<T>> call() {
+                  return BPlusTreeLoader.this.buildParents(children, sizes, from, to, first);
+               }
+            });
+         }
+         level = new ArrayList<BPlusTreeNode<T>>();
+         for (final List<BPlusTreeNode<T>> parents : this.invokeAll(pool, builds)) {
+            level.addAll(parents);
+         }
+      }
+      return level.get(0);
+   }
+
+   private <V> List<V> invokeAll(final ForkJoinPool pool, final List<Callable<V>> tasks) {
+      final List<V> results = new ArrayList<V>(tasks.size());
+      for (final Future<V> future : pool.invokeAll(tasks)) {
+         try {
+            results.add(future.get());
+         } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while building the tree", e);
+         } catch (final ExecutionException e) {
+            if (e.getCause() instanceof RuntimeException) {
+               throw (RuntimeException) e.getCause();
+            }
+            throw new RuntimeException(e.getCause());
+         }
+      }
+      return results;
+   }
+
+   /**
+    * Returns the sizes of the nodes that the given number of keys (in leaves) or children (in
+    * internal nodes) are divided into when they are packed according to the fill factor.
+    *
+    * @param count
+    *           The number of keys or children.
+    * @param leaf
+    *           Whether the nodes are leaves.
+    * @return The sizes of the nodes.
+    */
+   int[] nodeSizes(final int count, final boolean leaf) {
+      return this.partition(count, leaf ? this.leafKeyCount : this.childCount, this
+            .maxSize(leaf));
+   }
+
+   /**
+    * Returns the maximum number of keys in a leaf, or of children in an internal node.
+    */
+   private int maxSize(final boolean leaf) {
+      return leaf ? 2 * this.leafOrder - 1 : 2 * this.internalOrder;
+   }
+
+   /**
+    * Splits count items into groups of the given target size. The remainder is added to the
+    * last group, or, if that would make it too large, the last group and the remainder are
+    * divided into two groups of (almost) equal size. Since the target size is at least the
+    * minimum size of a node, all groups then are between the minimum and the maximum size.
+    *
+    * @param count
+    *           The number of items.
+    * @param target
+    *           The desired number of items per group.
+    * @param max
+    *           The maximum number of items per group.
+    * @return The sizes of the groups.
+    */
+   int[] partition(final int count, final int target, final int max) {
+      if (count == 0) {
+         return new int[0];
+      }
+      if (count <= max) {
+         return new int[] { count };
+      }
+      final int remainder = count % target;
+      final int fullGroups = count / target;
+      if (remainder == 0) {
+         return this.fill(new int[fullGroups], target);
+      }
+      if (target + remainder <= max) {
+         final int[] sizes = this.fill(new int[fullGroups], target);
+         sizes[fullGroups - 1] += remainder;
+         return sizes;
+      }
+      final int[] sizes = this.fill(new int[fullGroups + 1], target);
+      sizes[fullGroups - 1] = (target + remainder + 1) / 2;
+      sizes[fullGroups] = (target + remainder) / 2;
+      return sizes;
+   }
+
+   private int[] fill(final int[] sizes, final int value) {
+      for (int i = 0; i < sizes.length; i++) {
+         sizes[i] = value;
+      }
+      return sizes;
+   }
+
+}
@@ -0,0 +1,358 @@
+/*
+ * @(#)BPlusTreeLog.java   1.0   Oct 19, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of a {@link PagedBPlusTree} stored in a {@link BPlusTreeBufferPool}.
+ * Every insertion and removal is appended to the log as a record, and pages are only
+ * written to the page file at checkpoints. Thus, a modification is durable as soon as its
+ * log record is, and the tree can be restored after a crash by replaying the log onto the
+ * last checkpoint.
+ * <p>
+ * Records are collected in memory and written by whichever thread commits first (group
+ * commit): it writes and forces the records of all threads that are waiting at the same
+ * time, so that concurrent writers share the cost of a sync. With
+ * {@link #setSyncDelay(int)}, that thread waits a little before writing, which lets more
+ * records join the sync. With {@link #setSync(boolean)} set to <b>false</b>, records are
+ * only handed to the operating system, which survives a crash of the process but not of
+ * the machine.
+ * <p>
+ * Each record consists of its length, a CRC-32 checksum and the type of the record
+ * followed by its contents. A record that has not been written completely ends the log.
+ *
+ * @version 1.0
+ */
+public class BPlusTreeLog {
+
+   static final byte INSERT = 1;
+   static final byte REMOVE = 2;
+   static final byte PAGE = 3;
+   static final byte CHECKPOINT = 4;
+   static final byte LINK = 5;
+   static final byte CLEAR = 6;
+
+   private static final int HEADER = 8;
+
+   private final File file;
+   private final RandomAccessFile randomAccessFile;
+   private final FileChannel channel;
+   private final CRC32 crc;
+   private byte[] pending;
+   private int pendingLength;
+   private byte[] spare;
+   private long appendedLsn;
+   private long flushedLsn;
+   private boolean flushing;
+   private IOException failure;
+   private boolean sync;
+   private int syncDelay;
+   private long syncs;
+
+   /**
+    * Opens the log in the given file. If the file doesn't exist, a new log is created.
+    *
+    * @param file
+    *          The file holding the log.
+    * @throws IOException
+    *           If the file cannot be opened.
+    */
+   public BPlusTreeLog(final File file) throws IOException {
+      this.file = file;
+      this.randomAccessFile = new RandomAccessFile(file, "rw");
+      this.channel = this.randomAccessFile.getChannel();
+      this.channel.position(this.channel.size());
+      this.crc = new CRC32();
+      this.pending = new byte[4096];
+      this.pendingLength = 0;
+      this.spare = new byte[4096];
+      this.appendedLsn = 0;
+      this.flushedLsn = 0;
+      this.flushing = false;
+      this.sync = true;
+      this.syncDelay = 0;
+   }
+
+   /**
+    * Sets whether committed records are forced to the disk. Defaults to <b>true</b>.
+    *
+    * @param sync
+    *           <b>false</b> to only write committed records to the operating system.
+    */
+   public synchronized void setSync(final boolean sync) {
+      this.sync = sync;
+   }
+
+   /**
+    * Sets the time the committing thread waits for further records before it writes the
+    * log. Defaults to 0.
+    *
+    * @param millis
+    *           The delay in milliseconds, 0 to write immediately.
+    */
+   public synchronized void setSyncDelay(final int millis) {
+      if (millis < 0) {
+         throw new IllegalArgumentException("Sync delay must not be negative. Given: '"
+               + millis + "'");
+      }
+      this.syncDelay = millis;
+   }
+
+   /**
+    * Returns the number of times the log has been written and forced to the disk.
+    *
+    * @return The number of syncs.
+    */
+   public synchronized long syncs() {
+      return this.syncs;
+   }
+
+   /**
+    * Closes the log. Records that have not been committed are lost.
+    *
+    * @throws IOException
+    *           If closing the file fails.
+    */
+   public void close() throws IOException {
+      this.channel.close();
+      this.randomAccessFile.close();
+   }
+
+   /*****************************************************************************************
+    * Writing
+    ****************************************************************************************/
+
+   /**
+    * Appends a record with the given type and contents.
+    *
+    * @return The log sequence number to be passed to {@link #commit(long)} to wait for the
+    *         record to be durable.
+    */
+   synchronized long append(final byte type, final byte[] contents) {
+      final int recordLength = BPlusTreeLog.HEADER + 1 + contents.length;
+      if (this.pendingLength + recordLength > this.pending.length) {
+         final byte[] pending = new byte[Math.max(2 * this.pending.length,
+               this.pendingLength + recordLength)];
+         System.arraycopy(this.pending, 0, pending, 0, this.pendingLength);
+         this.pending = pending;
+      }
+      this.crc.reset();
+      this.crc.update(type);
+      this.crc.update(contents, 0, contents.length);
+      final ByteBuffer buffer = ByteBuffer.wrap(this.pending);
+      buffer.putInt(this.pendingLength, 1 + contents.length);
+      buffer.putInt(this.pendingLength + 4, (int) this.crc.getValue());
+      this.pending[this.pendingLength + BPlusTreeLog.HEADER] = type;
+      System.arraycopy(contents, 0, this.pending, this.pendingLength + BPlusTreeLog.HEADER
+            + 1, contents.length);
+      this.pendingLength += recordLength;
+      this.appendedLsn += recordLength;
+      return this.appendedLsn;
+   }
+
+   /**
+    * Appends the image of the given page, for checkpoints.
+    */
+   synchronized void appendPage(final int page, final ByteBuffer buffer, final int size) {
+      final byte[] contents = new byte[4 + size];
+      ByteBuffer.wrap(contents).putInt(0, page);
+      for (int i = 0; i < size; i++) {
+         contents[4 + i] = buffer.get(i);
+      }
+      this.append(BPlusTreeLog.PAGE, contents);
+   }
+
+   /**
+    * Appends the link from a free page to the next one, for checkpoints.
+    */
+   synchronized void appendLink(final int page, final int next) {
+      final ByteBuffer contents = ByteBuffer.allocate(8);
+      contents.putInt(0, page);
+      contents.putInt(4, next);
+      this.append(BPlusTreeLog.LINK, contents.array());
+   }
+
+   /**
+    * Appends the end of a checkpoint with the contents of the superblock.
+    */
+   synchronized void appendCheckpoint(final int pageCount, final int firstFree,
+         final int rootPage) {
+      final ByteBuffer contents = ByteBuffer.allocate(12);
+      contents.putInt(0, pageCount);
+      contents.putInt(4, firstFree);
+      contents.putInt(8, rootPage);
+      this.append(BPlusTreeLog.CHECKPOINT, contents.array());
+   }
+
+   /**
+    * Waits until the record with the given log sequence number is durable. If no other
+    * thread is writing the log, the calling thread writes all pending records.
+    *
+    * @throws IOException
+    *           If the log cannot be written.
+    */
+   void commit(final long lsn) throws IOException {
+      synchronized (this) {
+         while (this.flushing && this.flushedLsn < lsn && this.failure == null) {
+            try {
+               this.wait();
+            } catch (final InterruptedException e) {
+               throw new RuntimeException("Interrupted while waiting for the log", e);
+            }
+         }
+         if (this.failure != null) {
+            throw new IOException("Writing the log has failed", this.failure);
+         }
+         if (this.flushedLsn >= lsn) {
+            return;
+         }
+         this.flushing = true;
+      }
+      try {
+         final int delay;
+         synchronized (this) {
+            delay = this.syncDelay;
+         }
+         if (delay > 0) {
+            try {
+               Thread.sleep(delay);
+            } catch (final InterruptedException e) {
+               Thread.currentThread().interrupt();
+            }
+         }
+         this.flush();
+      } catch (final IOException e) {
+         synchronized (this) {
+            this.failure = e;
+         }
+         throw e;
+      } finally {
+         synchronized (this) {
+            this.flushing = false;
+            this.notifyAll();
+         }
+      }
+   }
+
+   /**
+    * Writes and forces all pending records. Only called by the thread that has set
+    * <code>flushing</code>.
+    */
+   private void flush() throws IOException {
+      final byte[] data;
+      final int length;
+      final long lsn;
+      final boolean force;
+      synchronized (this) {
+         data = this.pending;
+         length = this.pendingLength;
+         lsn = this.appendedLsn;
+         force = this.sync;
+         this.pending = this.spare;
+         this.pendingLength = 0;
+         this.spare = data;
+      }
+      final ByteBuffer buffer = ByteBuffer.wrap(data, 0, length);
+      while (buffer.hasRemaining()) {
+         this.channel.write(buffer);
+      }
+      if (force) {
+         this.channel.force(false);
+      }
+      synchronized (this) {
+         this.flushedLsn = lsn;
+         this.syncs++;
+      }
+   }
+
+   /**
+    * Writes and forces all records appended so far.
+    */
+   void force() throws IOException {
+      final long lsn;
+      synchronized (this) {
+         lsn = this.appendedLsn;
+      }
+      this.commit(lsn);
+      // the records may have been written by a thread that didn't force them.
+      this.channel.force(false);
+   }
+
+   /**
+    * Removes all records from the log, once they are no longer needed after a checkpoint.
+    */
+   synchronized void truncate() throws IOException {
+      while (this.flushing) {
+         try {
+            this.wait();
+         } catch (final InterruptedException e) {
+            throw new RuntimeException("Interrupted while waiting for the log", e);
+         }
+      }
+      this.channel.truncate(0);
+      this.channel.position(0);
+      this.channel.force(true);
+   }
+
+   /*****************************************************************************************
+    * Reading
+    ****************************************************************************************/
+
+   /**
+    * Reads the records in the log, up to the first one that is incomplete or damaged.
+    *
+    * @return The records, each starting with its type.
+    */
+   synchronized List<byte[]> read() throws IOException {
+      final List<byte[]> records = new ArrayList<byte[]>();
+      final long size = this.channel.size();
+      final ByteBuffer header = ByteBuffer.allocate(BPlusTreeLog.HEADER);
+      long position = 0;
+      while (position + BPlusTreeLog.HEADER <= size) {
+         header.clear();
+         this.readFully(header, position);
+         final int length = header.getInt(0);
+         if (length < 1 || position + BPlusTreeLog.HEADER + length > size) {
+            break;
+         }
+         final byte[] record = new byte[length];
+         this.readFully(ByteBuffer.wrap(record), position + BPlusTreeLog.HEADER);
+         this.crc.reset();
+         this.crc.update(record, 0, length);
+         if ((int) this.crc.getValue() != header.getInt(4)) {
+            break;
+         }
+         records.add(record);
+         position += BPlusTreeLog.HEADER + length;
+      }
+      // damaged records are overwritten by the next records.
+      this.channel.truncate(position);
+      this.channel.position(position);
+      return records;
+   }
+
+   private void readFully(final ByteBuffer buffer, final long position) throws IOException {
+      while (buffer.hasRemaining()) {
+         if (this.channel.read(buffer, position + buffer.position()) < 0) {
+            throw new IOException("Unexpected end of '" + this.file + "'");
+         }
+      }
+   }
+
+}
@@ -0,0 +1,153 @@
+/*
+ * @(#)BPlusTreeMappedPageStore.java   1.0   Oct 19, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Maps a page file written by {@link BPlusTreeFilePageStore} into memory for reading only.
+ * A {@link PagedBPlusTree} opened on this store reads its nodes straight from the mapped
+ * pages, without copying or converting them, and opening it costs no more than reading the
+ * superblock. The pages are shared with the operating system's page cache, so that several
+ * processes mapping the same file share the memory it takes.
+ * <p>
+ * Files for this store are best written with
+ * {@link BPlusTree#writeMapped(File, int, BPlusTreeSerializer, BPlusTreeSerializer)}, which
+ * packs the nodes of each level of the tree into consecutive pages. Modifying the tree
+ * fails with an {@link UnsupportedOperationException}.
+ *
+ * @version 1.0
+ */
+public class BPlusTreeMappedPageStore implements BPlusTreePageStore {
+
+   private static final int MAGIC = 0x42505446;
+   private static final int VERSION = 1;
+   private static final int SUPERBLOCK_BYTES = 24;
+   private static final int CHUNK_BYTES = 1 << 30;
+
+   private final int pageSize;
+   private final int pagesPerChunk;
+   private final MappedByteBuffer[] chunks;
+   private final int pageCount;
+   private final int rootPage;
+
+   /**
+    * Maps the given page file.
+    *
+    * @param file
+    *          The file holding the pages.
+    * @throws IOException
+    *           If the file cannot be mapped or is not a page file.
+    */
+   public BPlusTreeMappedPageStore(final File file) throws IOException {
+      final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+      try {
+         final FileChannel channel = randomAccessFile.getChannel();
+         final ByteBuffer superblock = ByteBuffer.allocate(
+               BPlusTreeMappedPageStore.SUPERBLOCK_BYTES);
+         while (superblock.hasRemaining()) {
+            if (channel.read(superblock, superblock.position()) < 0) {
+               throw new IOException("'" + file + "' is not a B+ tree page file");
+            }
+         }
+         if (superblock.getInt(0) != BPlusTreeMappedPageStore.MAGIC
+               || superblock.getInt(4) != BPlusTreeMappedPageStore.VERSION) {
+            throw new IOException("'" + file + "' is not a B+ tree page file");
+         }
+         this.pageSize = superblock.getInt(8);
+         this.pageCount = superblock.getInt(12);
+         this.rootPage = superblock.getInt(20);
+         if ((long) this.pageCount * this.pageSize > channel.size()) {
+            throw new IOException("'" + file + "' is shorter than its '" + this.pageCount
+                  + "' pages");
+         }
+         // the mappings stay valid after the file has been closed.
+         this.pagesPerChunk = BPlusTreeMappedPageStore.CHUNK_BYTES / this.pageSize;
+         this.chunks = new MappedByteBuffer[(this.pageCount + this.pagesPerChunk - 1)
+               / this.pagesPerChunk];
+         for (int i = 0; i < this.chunks.length; i++) {
+            final long position = (long) i * this.pagesPerChunk * this.pageSize;
+            final long size = Math.min((long) this.pagesPerChunk * this.pageSize,
+                  (long) this.pageCount * this.pageSize - position);
+            this.chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+         }
+      } finally {
+         randomAccessFile.close();
+      }
+   }
+
+   @Override
+   public int pageSize() {
+      return this.pageSize;
+   }
+
+   @Override
+   public int allocate() {
+      throw new UnsupportedOperationException("Mapped pages are read-only");
+   }
+
+   @Override
+   public void free(final int page) {
+      throw new UnsupportedOperationException("Mapped pages are read-only");
+   }
+
+   /**
+    * Returns a read-only view of the mapped page. Nothing is read or copied.
+    */
+   @Override
+   public ByteBuffer pin(final int page) {
+      final ByteBuffer chunk = this.chunks[page / this.pagesPerChunk].duplicate();
+      final int offset = (page % this.pagesPerChunk) * this.pageSize;
+      chunk.limit(offset + this.pageSize);
+      chunk.position(offset);
+      return chunk.slice();
+   }
+
+   @Override
+   public void unpin(final int page, final boolean dirty) {
+      if (dirty) {
+         throw new UnsupportedOperationException("Mapped pages are read-only");
+      }
+   }
+
+   @Override
+   public int rootPage() {
+      return this.rootPage;
+   }
+
+   @Override
+   public void setRootPage(final int page) {
+      throw new UnsupportedOperationException("Mapped pages are read-only");
+   }
+
+   /**
+    * Returns the number of pages in the file, including the superblock and free pages.
+    *
+    * @return The number of pages.
+    */
+   public int pageCount() {
+      return this.pageCount;
+   }
+
+   /**
+    * Does nothing. The mappings are released when the store is garbage collected.
+    */
+   @Override
+   public void close() {
+      // mapped buffers cannot be unmapped explicitly.
+   }
+
+}
@@ -0,0 +1,147 @@
+/*
+ * @(#)BPlusTreeMemoryPageStore.java   1.0   Oct 19, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Keeps pages in direct memory outside of the Java heap, so that the garbage collector
+ * doesn't need to trace the contents of the tree. Memory is allocated in chunks of several
+ * pages. Freed pages are reused, but chunks are only released when the store is closed and
+ * garbage collected.
+ *
+ * @version 1.0
+ */
+public class BPlusTreeMemoryPageStore implements BPlusTreePageStore {
+
+   private static final int CHUNK_BYTES = 1 << 20;
+
+   private final int pageSize;
+   private final int pagesPerChunk;
+   private ByteBuffer[][] chunks;
+   private int pageCount;
+   private int[] freePages;
+   private int freeCount;
+   private int rootPage;
+
+   /**
+    * Creates a new, empty store.
+    *
+    * @param pageSize
+    *          The size of the pages, between 256 and 65536 bytes.
+    */
+   public BPlusTreeMemoryPageStore(final int pageSize) {
+      if (pageSize < 256 || pageSize > 65536) {
+         throw new IllegalArgumentException("Page size must be between '256' and '65536'. "
+               + "Given: '" + pageSize + "'");
+      }
+      this.pageSize = pageSize;
+      this.pagesPerChunk = Math.max(1, BPlusTreeMemoryPageStore.CHUNK_BYTES / pageSize);
+      this.chunks = new ByteBuffer[0][];
+      this.pageCount = 0;
+      this.freePages = new int[16];
+      this.freeCount = 0;
+      this.rootPage = BPlusTreePageStore.NO_PAGE;
+   }
+
+   @Override
+   public int pageSize() {
+      return this.pageSize;
+   }
+
+   @Override
+   public int allocate() {
+      if (this.freeCount > 0) {
+         return this.freePages[--this.freeCount];
+      }
+      final int chunk = this.pageCount / this.pagesPerChunk;
+      if (chunk == this.chunks.length) {
+         this.addChunk();
+      }
+      return this.pageCount++;
+   }
+
+   /**
+    * Allocates another chunk and cuts it into pages. Each page gets its own buffer, so that
+    * pinning a page doesn't create any objects.
+    */
+   private void addChunk() {
+      final ByteBuffer memory = ByteBuffer.allocateDirect(this.pagesPerChunk
+            * this.pageSize);
+      final ByteBuffer[] pages = new ByteBuffer[this.pagesPerChunk];
+      for (int i = 0; i < pages.length; i++) {
+         memory.limit((i + 1) * this.pageSize);
+         memory.position(i * this.pageSize);
+         pages[i] = memory.slice();
+      }
+      final ByteBuffer[][] chunks = new ByteBuffer[this.chunks.length + 1][];
+      System.arraycopy(this.chunks, 0, chunks, 0, this.chunks.length);
+      chunks[this.chunks.length] = pages;
+      this.chunks = chunks;
+   }
+
+   @Override
+   public void free(final int page) {
+      if (this.freeCount == this.freePages.length) {
+         final int[] freePages = new int[2 * this.freePages.length];
+         System.arraycopy(this.freePages, 0, freePages, 0, this.freeCount);
+         this.freePages = freePages;
+      }
+      this.freePages[this.freeCount++] = page;
+   }
+
+   @Override
+   public ByteBuffer pin(final int page) {
+      return this.chunks[page / this.pagesPerChunk][page % this.pagesPerChunk];
+   }
+
+   @Override
+   public void unpin(final int page, final boolean dirty) {
+      // pages are always in memory.
+   }
+
+   @Override
+   public int rootPage() {
+      return this.rootPage;
+   }
+
+   @Override
+   public void setRootPage(final int page) {
+      this.rootPage = page;
+   }
+
+   /**
+    * Returns the number of bytes of direct memory allocated by this store.
+    *
+    * @return The allocated memory in bytes.
+    */
+   public long allocatedBytes() {
+      return (long) this.chunks.length * this.pagesPerChunk * this.pageSize;
+   }
+
+   /**
+    * Returns the number of pages in use.
+    *
+    * @return The number of allocated pages that have not been freed.
+    */
+   public int usedPages() {
+      return this.pageCount - this.freeCount;
+   }
+
+   @Override
+   public void close() {
+      this.chunks = new ByteBuffer[0][];
+      this.pageCount = 0;
+      this.freeCount = 0;
+      this.rootPage = BPlusTreePageStore.NO_PAGE;
+   }
+
+}
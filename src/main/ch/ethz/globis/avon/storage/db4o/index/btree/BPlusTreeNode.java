@@ -10,11 +10,17 @@
  */
 package ch.ethz.globis.avon.storage.db4o.index.btree;
 
+import java.util.AbstractMap;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 
+import com.db4o.ObjectContainer;
 import com.db4o.activation.ActivationPurpose;
 import com.db4o.activation.Activator;
 import com.db4o.ta.Activatable;
@@ -25,6 +31,14 @@ import com.db4o.ta.Activatable;
  * Leaf nodes in the tree don't have children.
  * Non-leaf nodes have children, but no values - they only contain keys for the navigation in the tree.
  * All data is stored in the leafs.
+ * <p>
+ * In db4o, a node is stored as a single object: its keys, values and the number of values
+ * of each key are stored in plain arrays, which db4o keeps inside the slot of the node. The
+ * key objects and value lists the node works with are built from the arrays when the node
+ * is activated and are not stored themselves. Nodes stored by earlier versions, with a
+ * database object for each key and each value list, are converted when they are activated
+ * and written in the new form when they are stored the next time, see
+ * {@link BPlusTree#configure(com.db4o.config.EmbeddedConfiguration)}.
  *
  * @author Christoph Zimmerli &lt;zimmerch@ethz.ch&gt;
  * @version 1.0
@@ -35,8 +49,13 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
    private static final boolean RIGHT = false;
 
    private final int order;
-   private final BPlusTreeKey<T>[] keys;
-   private final List<Object>[] entries;
+   private transient BPlusTreeKey<T>[] keys;
+   private transient List<Object>[] entries;
+   private Object[] storedKeys;
+   private Object[] storedValues;
+   private int[] storedValueCounts;
+   private BPlusTreeKey<T>[] legacyKeys;
+   private List<Object>[] legacyEntries;
    private final BPlusTreeNode<T>[] children;
    private BPlusTreeNode<T> parent;
    private BPlusTreeNode<T> previous;
@@ -44,6 +63,9 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
    private int currentKeyCount;
    private final boolean isLeaf;
    private final int medianIndex;
+   private transient boolean changed;
+   private transient boolean changedBelow;
+   private transient boolean referenced;
    private transient Activator activator;
 
    public BPlusTreeNode(final int order, final boolean isLeaf) {
@@ -54,14 +76,10 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
       this.currentKeyCount = 0;
       this.isLeaf = isLeaf;
       final int entryCount = 2 * this.order;
-      this.keys = new BPlusTreeKey[entryCount];
-      this.entries = new ArrayList[entryCount];
-      for (int i = 0; i < entryCount; i++) {
-         this.keys[i] = new BPlusTreeKey<T>();
-         this.entries[i] = new ArrayList<Object>();
-      }
+      this.createSlots();
       this.medianIndex = (entryCount - 1) / 2;
       this.children = new BPlusTreeNode[2 * this.order + 1];
+      this.changed = true;
    }
 
    private BPlusTreeNode(final BPlusTreeNode<T> parent, final int order,
@@ -79,6 +97,13 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
       System.arraycopy(children, 0, this.children, 0, children.length);
    }
 
+   /**
+    * Returns the entries associated with the given key.
+    *
+    * @param key
+    *           The key to be looked for.
+    * @return The entries of the key, or an immutable empty list if the key is not present.
+    */
    public List<Object> search(final T key) {
       this.activate(ActivationPurpose.READ);
       final int keyPosition = this.findKey(key);
@@ -87,7 +112,7 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
                && this.keysEqual(this.keys[keyPosition].key(), key)) {
             return this.entries[keyPosition];
          } else {
-            return new ArrayList<Object>();
+            return Collections.emptyList();
          }
       } else {
          return this.children[keyPosition].search(key);
@@ -122,6 +147,27 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
    }
 
    public BPlusTreeNode<T> insert(final T key, final Object value) {
+      return this.insert(key, value, BPlusTreeSplitPolicy.MEDIAN, this.order - 1, this.order);
+   }
+
+   /**
+    * Inserts the given key/value pair into the subtree of this node, splitting nodes that
+    * become too large according to the given policy.
+    *
+    * @param key
+    *           Key to be added.
+    * @param value
+    *           The value associated with the key.
+    * @param policy
+    *           Determines where nodes are split.
+    * @param leafMinimum
+    *           The minimum number of keys in a leaf.
+    * @param internalOrder
+    *           The order of internal nodes, in case a new root has to be created.
+    * @return The new root of the tree if the root was split, <code>null</code> otherwise.
+    */
+   BPlusTreeNode<T> insert(final T key, final Object value,
+         final BPlusTreeSplitPolicy policy, final int leafMinimum, final int internalOrder) {
       this.activate(ActivationPurpose.WRITE);
       // find the insertion place for key
       final int keyPosition = this.findKey(key);
@@ -130,11 +176,12 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
          this.insertKeyWithEntry(keyPosition, key, value);
       } else {
          // recursively insert in the appropriate child node
-         this.children[keyPosition].insert(key, value);
+         this.children[keyPosition].insert(key, value, policy, leafMinimum, internalOrder);
       }
-      // split if current node is too large
+      // split if current node is too large. a new pivot from a child split is inserted at
+      // keyPosition as well.
       if (this.isTooLarge()) {
-         return this.split();
+         return this.split(this.splitIndex(policy, keyPosition, leafMinimum), internalOrder);
       }
       return null;
    }
@@ -164,6 +211,7 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
          this.currentKeyCount++;
          // create new entries
          this.entries[keyPosition] = new ArrayList<Object>();
+         this.markChanged();
       }
    }
 
@@ -181,6 +229,7 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
 
       // add the value to the entries
       this.entries[keyPosition].add(value);
+      this.markChanged();
    }
 
    private void insertKeyWithEntries(final int keyPosition, final T key,
@@ -190,19 +239,254 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
       }
    }
 
-   private BPlusTreeNode<T> split() {
+   /**
+    * Descends from this node to the leaf responsible for the given key.
+    *
+    * @param key
+    *           The key to be looked for.
+    * @return The leaf that holds key, or would hold it if it was inserted.
+    */
+   BPlusTreeNode<T> findLeaf(final T key) {
+      this.activate(ActivationPurpose.READ);
+      if (this.isLeaf) {
+         return this;
+      }
+      return this.children[this.findKey(key)].findLeaf(key);
+   }
+
+   /**
+    * Returns whether the given key belongs into this leaf, provided that this leaf is
+    * responsible for some other key that is smaller than or equal to the given key.
+    * This allows to apply a sorted sequence of operations without descending from the root
+    * for every single key.
+    *
+    * @param key
+    *           The key to be checked.
+    * @return <b>true</b> if key belongs into this leaf. <b>false</b> if it might belong into
+    *         a leaf further to the right.
+    */
+   boolean covers(final T key) {
+      if (this.next == null) {
+         return true;
+      }
+      return this.currentKeyCount > 0
+            && !this.greater(key, this.keys[this.currentKeyCount - 1].key());
+   }
+
+   /**
+    * Returns the leaf responsible for the given key if that is either this leaf or its right
+    * neighbour. Like {@link #covers(Comparable)}, this requires this leaf to be responsible
+    * for some other key that is smaller than or equal to the given key.
+    *
+    * @param key
+    *           The key to be checked.
+    * @return This leaf or its right neighbour, or <code>null</code> if the key belongs into
+    *         a leaf further to the right.
+    */
+   BPlusTreeNode<T> coveringLeaf(final T key) {
+      if (this.covers(key)) {
+         return this;
+      }
+      // the pivot between this leaf and the next one lies between their keys, so the next
+      // leaf is responsible for all keys from its own smallest up to its own largest key.
+      // keys in between the two leaves might belong to either of them.
+      this.next.activate(ActivationPurpose.READ);
+      if (this.next.currentKeyCount > 0 && !this.greater(this.next.keys[0].key(), key)
+            && this.next.covers(key)) {
+         return this.next;
+      }
+      return null;
+   }
+
+   /**
+    * Inserts the given key/value pair into this leaf and splits the leaf and its ancestors
+    * as far as necessary.
+    *
+    * @param key
+    *           Key to be added. This leaf must be responsible for it.
+    * @param value
+    *           The value associated with the key.
+    * @param policy
+    *           Determines where nodes are split.
+    * @param leafMinimum
+    *           The minimum number of keys in a leaf.
+    * @param internalOrder
+    *           The order of internal nodes, in case a new root has to be created.
+    * @return The new root of the tree if the root was split, <code>null</code> otherwise.
+    */
+   BPlusTreeNode<T> insertIntoLeaf(final T key, final Object value,
+         final BPlusTreeSplitPolicy policy, final int leafMinimum, final int internalOrder) {
+      this.activate(ActivationPurpose.WRITE);
+      final int keyPosition = this.findKey(key);
+      this.insertKeyWithEntry(keyPosition, key, value);
+      return this.splitUpwards(keyPosition, policy, leafMinimum, internalOrder);
+   }
+
+   /**
+    * Returns the rightmost leaf of the subtree of this node. If called on a leaf, the leaf
+    * level is followed to the right, which finds the rightmost leaf of the tree as long as
+    * this leaf still belongs to the tree.
+    *
+    * @return The rightmost leaf.
+    */
+   BPlusTreeNode<T> lastLeaf() {
+      this.activate(ActivationPurpose.READ);
+      if (!this.isLeaf) {
+         return this.children[this.currentKeyCount].lastLeaf();
+      }
+      BPlusTreeNode<T> leaf = this;
+      while (leaf.next != null) {
+         leaf = leaf.next;
+         leaf.activate(ActivationPurpose.READ);
+      }
+      return leaf;
+   }
+
+   /**
+    * Returns whether the given key can be appended to this leaf, i.e. whether this is the
+    * rightmost leaf of the tree and the key is not smaller than any key stored here.
+    *
+    * @param key
+    *           The key to be checked.
+    * @return <b>true</b> if the key can be inserted via {@link #append(Comparable, Object)}.
+    */
+   boolean acceptsAppend(final T key) {
+      this.activate(ActivationPurpose.READ);
+      return this.next == null
+            && (this.currentKeyCount == 0 || !this.greater(this.keys[this.currentKeyCount - 1]
+                  .key(), key));
+   }
+
+   /**
+    * Inserts the given key/value pair at the end of this leaf without searching for its
+    * position, and splits the leaf and its ancestors as far as necessary.
+    *
+    * @param key
+    *           Key to be added. {@link #acceptsAppend(Comparable)} must hold for it.
+    * @param value
+    *           The value associated with the key.
+    * @param policy
+    *           Determines where nodes are split.
+    * @param leafMinimum
+    *           The minimum number of keys in a leaf.
+    * @param internalOrder
+    *           The order of internal nodes, in case a new root has to be created.
+    * @return The new root of the tree if the root was split, <code>null</code> otherwise.
+    */
+   BPlusTreeNode<T> append(final T key, final Object value,
+         final BPlusTreeSplitPolicy policy, final int leafMinimum, final int internalOrder) {
+      this.activate(ActivationPurpose.WRITE);
+      int keyPosition = this.currentKeyCount;
+      if (keyPosition > 0 && this.keysEqual(this.keys[keyPosition - 1].key(), key)) {
+         keyPosition--;
+      }
+      this.insertKeyWithEntry(keyPosition, key, value);
+      return this.splitUpwards(keyPosition, policy, leafMinimum, internalOrder);
+   }
+
+   /**
+    * Splits this node and its ancestors as long as they are too large.
+    *
+    * @param keyPosition
+    *           The position at which a key has been inserted into this node.
+    * @return The new root of the tree if the root was split, <code>null</code> otherwise.
+    */
+   private BPlusTreeNode<T> splitUpwards(final int keyPosition,
+         final BPlusTreeSplitPolicy policy, final int leafMinimum, final int internalOrder) {
+      BPlusTreeNode<T> newRoot = null;
+      BPlusTreeNode<T> node = this;
+      int position = keyPosition;
+      while (node != null && node.isTooLarge()) {
+         final BPlusTreeNode<T> parent = node.parent;
+         // the new pivot is inserted into the parent at the position of the split node.
+         final int parentPosition = parent != null ? parent.indexOf(node) : -1;
+         final BPlusTreeNode<T> result = node.split(node.splitIndex(policy, position,
+               leafMinimum), internalOrder);
+         if (result != null) {
+            newRoot = result;
+         }
+         node = parent;
+         position = parentPosition;
+      }
+      return newRoot;
+   }
+
+   private int indexOf(final BPlusTreeNode<T> child) {
+      for (int i = 0; i <= this.currentKeyCount; i++) {
+         if (this.children[i] == child) {
+            return i;
+         }
+      }
+      throw new RuntimeException("Child was not found.");
+   }
+
+   /**
+    * Returns the index at which this overflowing node is to be split. For leaves, the key at
+    * the split index stays in this node, for internal nodes it moves up to the parent. Either
+    * way, both halves keep at least the minimum number of keys.
+    *
+    * @param policy
+    *           Determines where the node is split.
+    * @param keyPosition
+    *           The position of the key whose insertion caused the overflow.
+    * @param leafMinimum
+    *           The minimum number of keys in a leaf.
+    */
+   private int splitIndex(final BPlusTreeSplitPolicy policy, final int keyPosition,
+         final int leafMinimum) {
+      final int minimum = this.isLeaf ? leafMinimum : this.order - 1;
+      final int lowest = this.isLeaf ? minimum - 1 : minimum;
+      final int highest = this.keys.length - 1 - minimum;
+      return policy.splitIndex(this.medianIndex, lowest, highest, keyPosition,
+            this.keys.length);
+   }
+
+   /**
+    * Removes the given key/value pair from this leaf if that can be done without
+    * re-balancing the tree or replacing a pivot key in one of the leaf's ancestors.
+    *
+    * @param key
+    *           Key to be removed. This leaf must be responsible for it.
+    * @param value
+    *           The value associated with the key.
+    * @param leafMinimum
+    *           The number of keys below which a leaf has to be re-balanced.
+    * @return <b>true</b> if the removal has been handled. <b>false</b> if it has to be done
+    *         via {@link #remove(Comparable, Object, int)} on the root.
+    */
+   boolean removeFromLeaf(final T key, final Object value, final int leafMinimum) {
+      this.activate(ActivationPurpose.WRITE);
+      final int keyPosition = this.findKey(key);
+      if (keyPosition >= this.currentKeyCount
+            || !this.keysEqual(this.keys[keyPosition].key(), key)) {
+         return false;
+      }
+      final boolean keyStays = this.entries[keyPosition].size() > 1
+            || !this.entries[keyPosition].contains(value);
+      // the largest key of a leaf is used as pivot in one of the ancestors, unless the leaf
+      // is the rightmost one.
+      final boolean isPivot = keyPosition == this.currentKeyCount - 1 && this.next != null;
+      if (keyStays || (!isPivot && this.sizeOverMinimum(leafMinimum) > 0)) {
+         this.removeEntry(keyPosition, key, value);
+         return true;
+      }
+      return false;
+   }
+
+   private BPlusTreeNode<T> split(final int splitIndex, final int internalOrder) {
       if (this.isRoot()) {
-         final BPlusTreeNode<T> newRoot = this.splitRoot();
+         final BPlusTreeNode<T> newRoot = this.splitRoot(splitIndex, internalOrder);
          return newRoot;
       } else {
-         this.splitNonRoot();
+         this.splitNonRoot(splitIndex);
          return null;
       }
    }
 
-   private BPlusTreeNode<T> splitNonRoot() {
-      final int parentKeyPosition = this.parent.addKey(this.keys[this.medianIndex].key());
-      final BPlusTreeNode<T> newNode = this.splitNode();
+   private BPlusTreeNode<T> splitNonRoot(final int splitIndex) {
+      this.parent.activate(ActivationPurpose.WRITE);
+      final int parentKeyPosition = this.parent.addKey(this.splitKey(splitIndex));
+      final BPlusTreeNode<T> newNode = this.splitNode(splitIndex);
       newNode.parent = this.parent;
       this.parent.addChild(newNode, parentKeyPosition);
 
@@ -215,11 +499,12 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
       return newNode;
    }
 
-   private BPlusTreeNode<T> splitRoot() {
-      final BPlusTreeNode<T> newRoot = new BPlusTreeNode<T>(this.order, false);
+   private BPlusTreeNode<T> splitRoot(final int splitIndex, final int internalOrder) {
+      final BPlusTreeNode<T> newRoot = new BPlusTreeNode<T>(internalOrder, false);
       this.parent = newRoot;
-      newRoot.addKey(this.keys[this.medianIndex].key());
-      final BPlusTreeNode<T> newNode = this.splitNode();
+      this.markChanged();
+      newRoot.addKey(this.splitKey(splitIndex));
+      final BPlusTreeNode<T> newNode = this.splitNode(splitIndex);
       newNode.parent = newRoot;
       this.link(this, newNode);
       newRoot.addChild(this, -1);
@@ -227,14 +512,27 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
       return newRoot;
    }
 
-   private BPlusTreeNode<T> splitNode() {
-      final int keyMoveCount = this.keys.length - this.medianIndex - 1;
+   /**
+    * Returns the key that goes up to the parent if this node is split at the given index.
+    * Internal nodes hand up the key at the split index, leaves a copy of the shortest key
+    * that separates the two halves.
+    */
+   private T splitKey(final int splitIndex) {
+      final T key = this.keys[splitIndex].key();
+      if (!this.isLeaf) {
+         return key;
+      }
+      return BPlusTreeKey.separator(key, this.keys[splitIndex + 1].key());
+   }
+
+   private BPlusTreeNode<T> splitNode(final int splitIndex) {
+      final int keyMoveCount = this.keys.length - splitIndex - 1;
       final BPlusTreeKey<T>[] newKeys = new BPlusTreeKey[keyMoveCount];
 
-      // System.arraycopy(this.keys, this.medianIndex + 1, newKeys, 0, keyMoveCount);
+      // System.arraycopy(this.keys, splitIndex + 1, newKeys, 0, keyMoveCount);
       for (int i = 0; i < keyMoveCount; i++) {
-         // newKeys[i] = this.keys[this.medianIndex + 1 + i];
-         final BPlusTreeKey<T> currentKey = this.keys[this.medianIndex + 1 + i];
+         // newKeys[i] = this.keys[splitIndex + 1 + i];
+         final BPlusTreeKey<T> currentKey = this.keys[splitIndex + 1 + i];
          final BPlusTreeKey<T> newKey = new BPlusTreeKey<T>();
          if (!currentKey.isNull()) {
             newKey.setKey(currentKey.key());
@@ -245,7 +543,7 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
       List<Object>[] newEntries = new List[0];
       if (this.isLeaf) {
          newEntries = new List[keyMoveCount];
-         System.arraycopy(this.entries, this.medianIndex + 1, newEntries, 0, keyMoveCount);
+         System.arraycopy(this.entries, splitIndex + 1, newEntries, 0, keyMoveCount);
       }
 
       BPlusTreeNode<T> newNode = null;
@@ -254,17 +552,17 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
                newEntries);
       } else {
          final BPlusTreeNode<T>[] newChildren = new BPlusTreeNode[this.children.length
-               - this.medianIndex - 1];
-         System.arraycopy(this.children, this.medianIndex + 1, newChildren, 0,
+               - splitIndex - 1];
+         System.arraycopy(this.children, splitIndex + 1, newChildren, 0,
                newChildren.length);
          newNode = new BPlusTreeNode<T>(this.parent, this.order, this.isLeaf, newKeys,
                newEntries, newChildren);
          for (final BPlusTreeNode<T> child : newChildren) {
-            child.parent = newNode;
+            child.setParent(newNode);
          }
 
          // remove the children that now belong to the new node from this one.
-         for (int i = this.medianIndex + 1; i < this.children.length; i++) {
+         for (int i = splitIndex + 1; i < this.children.length; i++) {
             this.children[i] = null;
          }
       }
@@ -272,7 +570,7 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
       // remove the keys and entries that no longer belong to this node.
       // if isLeaf, the median element must stay here.
       // else, it must be removed here as it is now in the parent node.
-      int start = this.medianIndex;
+      int start = splitIndex;
       if (this.isLeaf) {
          start++;
       }
@@ -283,26 +581,39 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
             this.entries[i] = new ArrayList<Object>();
          }
       }
+      this.markChanged();
 
       return newNode;
    }
 
    private void link(final BPlusTreeNode<T> left, final BPlusTreeNode<T> right) {
       if (left != null) {
+         left.activate(ActivationPurpose.WRITE);
          left.next = right;
+         left.markChanged();
       }
       if (right != null) {
+         right.activate(ActivationPurpose.WRITE);
          right.previous = left;
+         right.markChanged();
       }
    }
 
+   private void setParent(final BPlusTreeNode<T> parent) {
+      this.activate(ActivationPurpose.WRITE);
+      this.parent = parent;
+      // the new parent has a change below it now.
+      this.markChanged();
+   }
+
    private void addChild(final BPlusTreeNode<T> child, final int keyPosition) {
       // child has to be inserted at keyPosition+1
       for (int i = this.currentKeyCount - 1; i > keyPosition; i--) {
          this.children[i + 1] = this.children[i];
       }
-      child.parent = this;
+      child.setParent(this);
       this.children[keyPosition + 1] = child;
+      this.markChanged();
    }
 
    private int addKey(final T key) {
@@ -318,17 +629,43 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
    }
 
    public BPlusTreeNode<T> remove(final T key, final Object value) {
+      return this.remove(key, value, this.order - 1, new BPlusTreeKey<T>());
+   }
+
+   /**
+    * Removes the given key/value pair from the subtree of this node, allowing leaves to
+    * shrink down to the given number of keys before they are re-balanced.
+    *
+    * @param key
+    *           Key to be removed.
+    * @param value
+    *           The value associated with the key.
+    * @param leafMinimum
+    *           The number of keys below which a leaf is re-balanced. Between 1 and order - 1.
+    * @param replacement
+    *           Holds the replacement for the key where it is found as pivot. It is cleared
+    *           before use, so the caller can reuse it for each removal.
+    * @return The new root, if the root has changed, <code>null</code> otherwise.
+    */
+   BPlusTreeNode<T> remove(final T key, final Object value, final int leafMinimum,
+         final BPlusTreeKey<T> replacement) {
       this.activate(ActivationPurpose.WRITE);
-      final BPlusTreeKey<T> replacement = new BPlusTreeKey<T>();
-      return this.removeInternal(key, value, replacement, null, null, null, null);
+      replacement.removeKey();
+      return this.removeInternal(key, value, leafMinimum, replacement, null, null, null, null);
    }
 
    private BPlusTreeNode<T> removeInternal(final T key, final Object value,
-         final BPlusTreeKey<T> replacement, final BPlusTreeNode<T> leftSibling,
-         final BPlusTreeNode<T> rightSibling, final BPlusTreeNode<T> leftAnchor,
-         final BPlusTreeNode<T> rightAnchor) {
+         final int leafMinimum, final BPlusTreeKey<T> replacement,
+         final BPlusTreeNode<T> leftSibling, final BPlusTreeNode<T> rightSibling,
+         final BPlusTreeNode<T> leftAnchor, final BPlusTreeNode<T> rightAnchor) {
 
       this.activate(ActivationPurpose.WRITE);
+      if (leftSibling != null) {
+         leftSibling.activate(ActivationPurpose.READ);
+      }
+      if (rightSibling != null) {
+         rightSibling.activate(ActivationPurpose.READ);
+      }
 
       int keyPosition = this.findKey(key);
       BPlusTreeNode<T> nextLeft = null;
@@ -400,8 +737,8 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
 
          // recursively remove on the appropriate child node
          nextNode = this.children[keyPosition];
-         result = nextNode.removeInternal(key, value, replacement, nextLeft, nextRight,
-               nextLeftAnchor, nextRightAnchor);
+         result = nextNode.removeInternal(key, value, leafMinimum, replacement, nextLeft,
+               nextRight, nextLeftAnchor, nextRightAnchor);
       }
 
       if (result != null && !result.isRoot()) {
@@ -427,26 +764,27 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
       if (containsKeyAsPivot) {
          // the keyPosition could have changed due to handleUnderflow
          keyPosition = this.findKey(key);
+         // if only one of several entries has been removed, the key is still in the leaf
+         // and no replacement has been set.
          if (!this.keys[keyPosition].isNull()
-               && this.keysEqual(this.keys[keyPosition].key(), key)) {
-            if (replacement.isNull()) {
-               throw new RuntimeException("Replacement key has not been set.");
-            }
+               && this.keysEqual(this.keys[keyPosition].key(), key) && !replacement.isNull()) {
             this.keys[keyPosition].setKey(replacement.key());
+            this.markChanged();
          }
       }
 
-      if (this.isTooSmall()) {
-         result = this.handleUnderflow(key, replacement, leftSibling, rightSibling,
-               leftAnchor, rightAnchor);
+      if (this.isTooSmall(leafMinimum)) {
+         result = this.handleUnderflow(key, leafMinimum, replacement, leftSibling,
+               rightSibling, leftAnchor, rightAnchor);
       }
 
       return result;
    }
 
-   private BPlusTreeNode<T> handleUnderflow(final T key, final BPlusTreeKey<T> replacement,
-         final BPlusTreeNode<T> leftSibling, final BPlusTreeNode<T> rightSibling,
-         final BPlusTreeNode<T> leftAnchor, final BPlusTreeNode<T> rightAnchor) {
+   private BPlusTreeNode<T> handleUnderflow(final T key, final int leafMinimum,
+         final BPlusTreeKey<T> replacement, final BPlusTreeNode<T> leftSibling,
+         final BPlusTreeNode<T> rightSibling, final BPlusTreeNode<T> leftAnchor,
+         final BPlusTreeNode<T> rightAnchor) {
       // in case of underflow, three possibilities exist to re-balance the tree:
       // 1) we are at the root -> collapse root.
       // 2) redistribute keys among siblings of the same parent node
@@ -468,11 +806,11 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
       int rightReserve = 0;
       if (leftSibling != null) {
          // this node has a sibling to the left
-         leftReserve = leftSibling.sizeOverMinimum();
+         leftReserve = leftSibling.sizeOverMinimum(leafMinimum);
       }
       if (rightSibling != null) {
          // this node has a sibling to the right
-         rightReserve = rightSibling.sizeOverMinimum();
+         rightReserve = rightSibling.sizeOverMinimum(leafMinimum);
       }
 
       if (leftReserve > rightReserve) {
@@ -569,6 +907,9 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
          final BPlusTreeNode<T> destNode, final BPlusTreeNode<T> anchor,
          final int keyMoveCount, final boolean side, final T key,
          final BPlusTreeKey<T> replacement) {
+      srcNode.activate(ActivationPurpose.WRITE);
+      destNode.activate(ActivationPurpose.WRITE);
+      anchor.activate(ActivationPurpose.WRITE);
 
       if (destNode.currentKeyCount + keyMoveCount >= destNode.keys.length) {
          throw new RuntimeException("Moving that many keys would (over)fill this node!");
@@ -692,11 +1033,11 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
             && this.keysEqual(this.keys[keyPosition].key(), key)) {
          // remove this entry from the entries for this key.
          // if it's the last one, also remove the key (and return true).
-         final Iterator<Object> iterator = this.entries[keyPosition].iterator();
-         while (iterator.hasNext()) {
-            final Object e = iterator.next();
-            if (e.equals(entry)) {
-               iterator.remove();
+         final List<Object> keyEntries = this.entries[keyPosition];
+         for (int i = 0; i < keyEntries.size(); i++) {
+            if (keyEntries.get(i).equals(entry)) {
+               keyEntries.remove(i);
+               this.markChanged();
                break;
             }
          }
@@ -722,15 +1063,25 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
          // there is no value stored at this position
          return;
       }
+      final BPlusTreeKey<T> removedKey = this.keys[keyPosition];
+      final List<Object> removedEntries = this.entries[keyPosition];
       // move all keys and entries at positions > keyPosition one position down.
       for (int i = keyPosition; i < this.currentKeyCount; i++) {
          this.keys[i] = this.keys[i + 1];
          this.entries[i] = this.entries[i + 1];
       }
-      this.keys[this.currentKeyCount] = new BPlusTreeKey<T>();
-      this.entries[this.currentKeyCount] = new ArrayList<Object>();
+      // reuse the removed key and, unless its entries have been moved to another node, its
+      // entry list for the position that became free.
+      removedKey.removeKey();
+      this.keys[this.currentKeyCount] = removedKey;
+      if (removedEntries.isEmpty()) {
+         this.entries[this.currentKeyCount] = removedEntries;
+      } else {
+         this.entries[this.currentKeyCount] = new ArrayList<Object>();
+      }
       // decrement the currentKeyCount
       this.currentKeyCount--;
+      this.markChanged();
    }
 
    private void removeChild(final int index) {
@@ -739,6 +1090,7 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
          this.children[i] = this.children[i + 1];
       }
       this.children[this.currentKeyCount + 1] = null;
+      this.markChanged();
    }
 
    /**
@@ -783,11 +1135,19 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
       return this.currentKeyCount == this.keys.length;
    }
 
-   private boolean isTooSmall() {
-      return this.sizeOverMinimum() < 0;
+   private boolean isTooSmall(final int leafMinimum) {
+      return this.sizeOverMinimum(leafMinimum) < 0;
    }
 
    private int sizeOverMinimum() {
+      return this.sizeOverMinimum(this.order - 1);
+   }
+
+   /**
+    * Returns by how many keys this node exceeds its minimum size. Leaves other than the root
+    * must contain at least leafMinimum keys, internal nodes at least order - 1 keys.
+    */
+   private int sizeOverMinimum(final int leafMinimum) {
       if (this.isRoot()) {
          if (this.isLeaf) {
             return this.currentKeyCount;
@@ -799,6 +1159,8 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
                return -1;
             }
          }
+      } else if (this.isLeaf) {
+         return this.currentKeyCount - leafMinimum;
       } else {
          return this.currentKeyCount - this.order + 1;
       }
@@ -810,108 +1172,681 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
 
    private void makeRoot() {
       this.parent = null;
+      this.markChanged();
    }
 
    /*****************************************************************************************
-    * Querying
+    * Bulk loading
     ****************************************************************************************/
 
    /**
-    * Adds all keys currently stored in the tree to keyList. This is accomplished by
-    * traversing the tree's leaf level.
+    * Appends the given key with its entries to this leaf. The key must be greater than all
+    * keys already stored in this leaf and the leaf must not be full.
     *
-    * @param resultList
-    *           The list to which the keys should be added.
+    * @param key
+    *           The key to be appended.
+    * @param entries
+    *           The entries associated with the key. The list is stored as it is.
     */
-   public void inOrder(final List<Object> resultList) {
-      this.activate(ActivationPurpose.READ);
-      if (!this.isLeaf) {
-         this.children[0].inOrder(resultList);
-      } else {
-         this.addKeysToList(resultList);
-         if (this.next != null) {
-            this.next.inOrder(resultList);
+   void appendKeyWithEntries(final T key, final List<Object> entries) {
+      final BPlusTreeKey<T> newKey = new BPlusTreeKey<T>();
+      newKey.setKey(key);
+      this.keys[this.currentKeyCount] = newKey;
+      this.entries[this.currentKeyCount] = entries;
+      this.currentKeyCount++;
+      this.markChanged();
+   }
+
+   /**
+    * Appends the given child to this internal node. The keys in the child's subtree must be
+    * greater than all keys in the subtrees of the children already present. The pivot
+    * between the former last child and the new one separates the largest key of the one from
+    * the smallest key of the other.
+    *
+    * @param child
+    *           The child to be appended.
+    */
+   void appendChild(final BPlusTreeNode<T> child) {
+      if (this.children[0] != null) {
+         final BPlusTreeKey<T> pivot = new BPlusTreeKey<T>();
+         final BPlusTreeNode<T> firstLeaf = child.firstLeaf();
+         T pivotKey = this.children[this.currentKeyCount].largestKey();
+         if (firstLeaf.currentKeyCount > 0) {
+            pivotKey = BPlusTreeKey.separator(pivotKey, firstLeaf.keys[0].key());
          }
+         pivot.setKey(pivotKey);
+         this.keys[this.currentKeyCount] = pivot;
+         this.currentKeyCount++;
       }
+      child.setParent(this);
+      this.children[this.currentKeyCount] = child;
+      this.markChanged();
    }
 
-   private void addKeysToList(final List<Object> entryList) {
-      this.addKeysToListFrom(0, entryList);
+   /**
+    * Makes the given leaf the right neighbour of this leaf.
+    *
+    * @param next
+    *           The leaf following this one.
+    */
+   void linkNext(final BPlusTreeNode<T> next) {
+      this.link(this, next);
    }
 
-   private void addKeysToListFrom(final int startPosition, final List<Object> entryList) {
-      for (int i = startPosition; i < this.currentKeyCount; i++) {
-         entryList.addAll(this.entries[i]);
+   /**
+    * Returns the largest key stored in the subtree of this node.
+    *
+    * @return The largest key in this subtree.
+    */
+   T largestKey() {
+      this.activate(ActivationPurpose.READ);
+      if (this.isLeaf) {
+         return this.keys[this.currentKeyCount - 1].key();
       }
+      return this.children[this.currentKeyCount].largestKey();
    }
 
-   private void addKeysToListTo(final int endPosition, final List<Object> entryList) {
-      // don't need BTreeNull values
-      final int pos = Math.min(endPosition, this.currentKeyCount - 1);
-      for (int i = pos; i >= 0; i--) {
-         entryList.addAll(this.entries[i]);
+   /**
+    * Returns the leftmost leaf of the subtree of this node.
+    *
+    * @return The leftmost leaf.
+    */
+   BPlusTreeNode<T> firstLeaf() {
+      this.activate(ActivationPurpose.READ);
+      if (this.isLeaf) {
+         return this;
       }
+      return this.children[0].firstLeaf();
    }
 
-   private void addKeysToListNotEqual(final List<Object> entryList, final T key) {
-      for (int i = 0; i < this.currentKeyCount; i++) {
-         if (!this.keysEqual(this.keys[i].key(), key)) {
-            entryList.addAll(this.entries[i]);
-         }
-      }
+   /*****************************************************************************************
+    * Range removal
+    ****************************************************************************************/
+
+   /**
+    * Removes all keys k with low &lt;= k &lt; high from the subtree of this node.
+    * Children that lie completely inside the range are dropped without being visited, only
+    * the (at most two) children on the boundaries of the range are descended into. Children
+    * that became too small are merged with or refilled from their neighbours afterwards.
+    * The leaves inside the range must already have been unlinked from the leaf level, i.e.
+    * the leaf responsible for low must be linked to the leaf responsible for high.
+    *
+    * @param low
+    *           The smallest key to be removed.
+    * @param high
+    *           The smallest key greater than low that is not to be removed.
+    * @param dropped
+    *           The list to which the roots of the subtrees removed from the tree are added.
+    * @return <b>true</b> if the subtree is empty now. The node should then be removed from
+    *         the tree.
+    */
+   boolean removeRange(final T low, final T high, final List<BPlusTreeNode<T>> dropped) {
+      return this.removeRange(low, high, true, true, dropped);
    }
 
-   public void greater(final T key, final List<Object> resultList, final boolean equal,
-         boolean firstLeaf) {
-      this.activate(ActivationPurpose.READ);
-      final int keyPosition = this.findKey(key);
-      if (!this.isLeaf) {
-         this.children[keyPosition].greater(key, resultList, equal, firstLeaf);
-      } else {
-         int startPosition = keyPosition;
-         if (firstLeaf) {
-            if (!equal && !this.keys[keyPosition].isNull()
-                  && this.keysEqual(this.keys[keyPosition].key(), key)) {
-               startPosition++;
-            }
-            firstLeaf = false;
+   /**
+    * Removes a range of keys from the subtree of this node.
+    *
+    * @param low
+    *           The smallest key to be removed.
+    * @param high
+    *           The smallest key greater than low that is not to be removed.
+    * @param lowPath
+    *           Whether this node is on the path from the root to the leaf responsible for
+    *           low.
+    * @param highPath
+    *           Whether this node is on the path from the root to the leaf responsible for
+    *           high. Leaves that are on neither path lie completely inside the range and have
+    *           already been unlinked from the leaf level.
+    * @param dropped
+    *           The list to which the roots of the subtrees removed from the tree are added.
+    * @return <b>true</b> if the subtree is empty now.
+    */
+   private boolean removeRange(final T low, final T high, final boolean lowPath,
+         final boolean highPath, final List<BPlusTreeNode<T>> dropped) {
+      this.activate(ActivationPurpose.WRITE);
+      if (this.isLeaf) {
+         final int from = this.findKey(low);
+         final int to = this.findKey(high);
+         for (int i = from; i < to; i++) {
+            this.removeKey(from);
          }
-         this.addKeysToListFrom(startPosition, resultList);
-         if (this.next != null) {
-            this.next.greater(key, resultList, equal, firstLeaf);
+         return this.currentKeyCount == 0;
+      }
+
+      final int first = this.findKey(low);
+      final int last = this.findKey(high);
+      // the children between the boundary children only contain keys inside the range.
+      for (int i = last - 1; i > first; i--) {
+         dropped.add(this.children[i]);
+         this.removeChildAt(i);
+      }
+      final boolean firstHighPath = highPath && last == first;
+      final boolean firstEmpty = this.children[first].removeRange(low, high, lowPath,
+            firstHighPath, dropped);
+      final boolean lastEmpty = last > first
+            && this.children[first + 1].removeRange(low, high, false, highPath, dropped);
+      int touched = last > first ? 2 : 1;
+      if (lastEmpty) {
+         if (highPath) {
+            this.unlinkChild(first + 1);
          }
+         dropped.add(this.children[first + 1]);
+         this.removeChildAt(first + 1);
+         touched--;
       }
-   }
-
-   public void less(final T key, final List<Object> resultList, final boolean equal,
-         boolean firstLeaf) {
-      this.activate(ActivationPurpose.READ);
-      final int keyPosition = this.findKey(key);
-      if (!this.isLeaf) {
-         this.children[keyPosition].less(key, resultList, equal, firstLeaf);
-      } else {
-         int endPosition = keyPosition;
-         if (firstLeaf) {
-            if (!equal && !this.keys[keyPosition].isNull()
-                  && this.keysEqual(this.keys[keyPosition].key(), key)) {
-               endPosition--;
-            }
-            if (endPosition >= 0 && !this.keys[endPosition].isNull()
-                  && this.keys[endPosition].key().compareTo(key) > 0) {
-               // the smallest entry in the tree is larger than key
-               return;
-            }
-            firstLeaf = false;
+      if (firstEmpty) {
+         if (lowPath || firstHighPath) {
+            this.unlinkChild(first);
          }
-         this.addKeysToListTo(endPosition, resultList);
-         if (this.previous != null) {
-            this.previous.less(key, resultList, equal, firstLeaf);
+         dropped.add(this.children[first]);
+         this.removeChildAt(first);
+         touched--;
+      }
+      if (this.children[0] == null) {
+         return true;
+      }
+
+      // the pivots to the right of the boundary children must equal their new largest keys.
+      for (int i = first; i < first + touched; i++) {
+         if (i < this.currentKeyCount) {
+            this.keys[i].setKey(this.children[i].largestKey());
+            this.markChanged();
          }
       }
+      this.repairChildren(dropped);
+      return false;
    }
 
-   public void notEqual(final T key, final List<Object> resultList) {
-      this.activate(ActivationPurpose.READ);
+   /**
+    * Removes the child at the given index together with one of the pivots next to it.
+    */
+   private void removeChildAt(final int index) {
+      this.removeChild(index);
+      if (this.currentKeyCount > 0) {
+         this.removeKey(index < this.currentKeyCount ? index : index - 1);
+      }
+   }
+
+   /**
+    * Removes the child at the given index after it has been merged into its left neighbour,
+    * together with the pivot between both. The pivot after the child, if any, is the largest
+    * key of the merged node now.
+    */
+   private void removeMergedChild(final int index) {
+      this.removeChild(index);
+      this.removeKey(index - 1);
+   }
+
+   /**
+    * Links the neighbours of the child at the given index to each other, if the child is a
+    * leaf.
+    */
+   private void unlinkChild(final int index) {
+      final BPlusTreeNode<T> child = this.children[index];
+      child.activate(ActivationPurpose.READ);
+      if (child.isLeaf) {
+         this.link(child.previous, child.next);
+      }
+   }
+
+   /**
+    * Merges or re-balances children that are too small with their neighbours until all
+    * children are large enough, or until only a single child is left.
+    */
+   private void repairChildren() {
+      this.repairChildren(null);
+   }
+
+   /**
+    * Merges or re-balances children that are too small with their neighbours, see
+    * {@link #repairChildren()}.
+    *
+    * @param dropped
+    *           The list to which the nodes merged into their neighbours are added, or
+    *           <code>null</code>.
+    */
+   private void repairChildren(final List<BPlusTreeNode<T>> dropped) {
+      int i = 0;
+      while (i <= this.currentKeyCount && this.currentKeyCount > 0) {
+         final BPlusTreeNode<T> child = this.children[i];
+         child.activate(ActivationPurpose.WRITE);
+         if (child.sizeOverMinimum() < 0) {
+            final int left = i > 0 ? i - 1 : i;
+            this.joinChildren(left, dropped);
+            i = left;
+         } else {
+            i++;
+         }
+      }
+   }
+
+   /**
+    * Joins the children at the given index and the index after it. If their keys fit into a
+    * single node, they are merged into the left one. Otherwise the keys are divided evenly
+    * between both. Contrary to {@link #merge} and {@link #redistribute}, this works for
+    * children of any size. A node merged into its neighbour is added to dropped, unless
+    * that is <code>null</code>.
+    */
+   private void joinChildren(final int left, final List<BPlusTreeNode<T>> dropped) {
+      final BPlusTreeNode<T> leftNode = this.children[left];
+      final BPlusTreeNode<T> rightNode = this.children[left + 1];
+      leftNode.activate(ActivationPurpose.WRITE);
+      rightNode.activate(ActivationPurpose.WRITE);
+
+      if (leftNode.isLeaf) {
+         final int total = leftNode.currentKeyCount + rightNode.currentKeyCount;
+         if (total < leftNode.keys.length) {
+            for (int i = 0; i < rightNode.currentKeyCount; i++) {
+               leftNode.appendKeyWithEntries(rightNode.keys[i].key(), rightNode.entries[i]);
+            }
+            this.unlinkChild(left + 1);
+            this.removeMergedChild(left + 1);
+            if (dropped != null) {
+               dropped.add(rightNode);
+            }
+            return;
+         }
+         final List<T> keys = new ArrayList<T>(total);
+         final List<List<Object>> entries = new ArrayList<List<Object>>(total);
+         leftNode.drainInto(keys, entries, null);
+         rightNode.drainInto(keys, entries, null);
+         final int leftCount = (total + 1) / 2;
+         for (int i = 0; i < total; i++) {
+            (i < leftCount ? leftNode : rightNode).appendKeyWithEntries(keys.get(i), entries
+                  .get(i));
+         }
+         this.keys[left].setKey(leftNode.largestKey());
+         this.markChanged();
+         return;
+      }
+
+      final int total = leftNode.currentKeyCount + rightNode.currentKeyCount + 2;
+      if (total <= this.children.length - 1) {
+         for (int i = 0; i <= rightNode.currentKeyCount; i++) {
+            leftNode.appendChild(rightNode.children[i]);
+         }
+         this.removeMergedChild(left + 1);
+         if (dropped != null) {
+            rightNode.releaseChildren();
+            dropped.add(rightNode);
+         }
+         leftNode.repairChildren(dropped);
+         return;
+      }
+      final List<BPlusTreeNode<T>> nodes = new ArrayList<BPlusTreeNode<T>>(total);
+      leftNode.drainInto(null, null, nodes);
+      rightNode.drainInto(null, null, nodes);
+      final int leftCount = (total + 1) / 2;
+      for (int i = 0; i < total; i++) {
+         (i < leftCount ? leftNode : rightNode).appendChild(nodes.get(i));
+      }
+      this.keys[left].setKey(leftNode.largestKey());
+      this.markChanged();
+      leftNode.repairChildren(dropped);
+      rightNode.repairChildren(dropped);
+   }
+
+   /**
+    * Moves all keys with their entries, or all children, of this node to the given lists
+    * and leaves this node empty.
+    */
+   private void drainInto(final List<T> keyList, final List<List<Object>> entryList,
+         final List<BPlusTreeNode<T>> childList) {
+      for (int i = 0; i < this.keys.length; i++) {
+         if (this.isLeaf && i < this.currentKeyCount) {
+            keyList.add(this.keys[i].key());
+            entryList.add(this.entries[i]);
+         }
+         if (!this.isLeaf && i <= this.currentKeyCount) {
+            childList.add(this.children[i]);
+         }
+         this.keys[i] = new BPlusTreeKey<T>();
+         this.entries[i] = new ArrayList<Object>();
+         this.children[i] = null;
+      }
+      this.children[this.keys.length] = null;
+      this.currentKeyCount = 0;
+      this.markChanged();
+   }
+
+   /**
+    * Returns the only child of this node if it is an internal node without keys.
+    *
+    * @return The only child, or <code>null</code> if this node has no single child.
+    */
+   BPlusTreeNode<T> singleChild() {
+      this.activate(ActivationPurpose.READ);
+      if (this.isLeaf || this.currentKeyCount > 0) {
+         return null;
+      }
+      return this.children[0];
+   }
+
+   /**
+    * Makes this node the root of the tree.
+    */
+   void promoteToRoot() {
+      this.activate(ActivationPurpose.WRITE);
+      this.makeRoot();
+   }
+
+   /**
+    * Forgets the children of this node after they have been moved elsewhere, e.g. the only
+    * child after it has been promoted to the root, so that they are not deleted together
+    * with this node.
+    */
+   void releaseChildren() {
+      this.activate(ActivationPurpose.WRITE);
+      Arrays.fill(this.children, null);
+   }
+
+   /*****************************************************************************************
+    * Deferred re-balancing
+    ****************************************************************************************/
+
+   /**
+    * Merges or re-balances all nodes in the subtree of this node that are smaller than
+    * allowed for order. This repairs leaves that have been allowed to shrink below that
+    * size by removals with a lower leaf minimum.
+    */
+   void rebalanceSubtree() {
+      this.activate(ActivationPurpose.WRITE);
+      if (this.isLeaf) {
+         return;
+      }
+      for (int i = 0; i <= this.currentKeyCount; i++) {
+         this.children[i].rebalanceSubtree();
+      }
+      this.repairChildren();
+   }
+
+   /*****************************************************************************************
+    * Compaction
+    ****************************************************************************************/
+
+   /**
+    * Returns the number of levels below this node.
+    *
+    * @return 0 for a leaf, the height of the subtree minus one otherwise.
+    */
+   int height() {
+      this.activate(ActivationPurpose.READ);
+      if (this.isLeaf) {
+         return 0;
+      }
+      return this.children[0].height() + 1;
+   }
+
+   /**
+    * Descends the given number of levels towards the given key.
+    *
+    * @param key
+    *           The key to be looked for.
+    * @param after
+    *           <b>true</b> to look for the smallest key greater than key instead.
+    * @param depth
+    *           The number of levels to descend.
+    * @return The node at the given depth whose subtree is responsible for key (or the smallest
+    *         key greater than key), or the last node on that level if there is none.
+    */
+   BPlusTreeNode<T> findNode(final T key, final boolean after, final int depth) {
+      this.activate(ActivationPurpose.READ);
+      if (depth == 0) {
+         return this;
+      }
+      int i = 0;
+      while (i < this.currentKeyCount) {
+         final int comparison = BPlusTreeKey.compare(key, this.keys[i].key());
+         if (comparison < 0 || (comparison == 0 && !after)) {
+            break;
+         }
+         i++;
+      }
+      return this.children[i].findNode(key, after, depth - 1);
+   }
+
+   /**
+    * Moves the keys (or grandchildren) of the children of this internal node together, so
+    * that they fill as few children as the given loader's fill factor permits. Children that
+    * are no longer needed are dropped. This node may become too small.
+    *
+    * @param loader
+    *           Determines how full the children are packed.
+    * @return <b>true</b> if children have been dropped, <b>false</b> if nothing has been
+    *         changed.
+    */
+   boolean packChildren(final BPlusTreeLoader<T> loader) {
+      this.activate(ActivationPurpose.WRITE);
+      if (this.isLeaf) {
+         return false;
+      }
+      final int childCount = this.currentKeyCount + 1;
+      int total = 0;
+      for (int i = 0; i < childCount; i++) {
+         this.children[i].activate(ActivationPurpose.WRITE);
+         total += this.children[i].currentKeyCount + (this.children[i].isLeaf ? 0 : 1);
+      }
+      final boolean leaves = this.children[0].isLeaf;
+      final int[] sizes = loader.nodeSizes(total, leaves);
+      if (sizes.length >= childCount) {
+         return false;
+      }
+
+      final List<BPlusTreeNode<T>> nodes = new ArrayList<BPlusTreeNode<T>>(childCount);
+      this.drainInto(null, null, nodes);
+      final BPlusTreeNode<T> following = nodes.get(childCount - 1).next;
+      final List<T> keyList = new ArrayList<T>(total);
+      final List<List<Object>> entryList = new ArrayList<List<Object>>(total);
+      final List<BPlusTreeNode<T>> childList = new ArrayList<BPlusTreeNode<T>>(total);
+      for (final BPlusTreeNode<T> node : nodes) {
+         node.drainInto(keyList, entryList, childList);
+      }
+      int position = 0;
+      for (int i = 0; i < sizes.length; i++) {
+         final BPlusTreeNode<T> node = nodes.get(i);
+         for (int j = 0; j < sizes[i]; j++, position++) {
+            if (leaves) {
+               node.appendKeyWithEntries(keyList.get(position), entryList.get(position));
+            } else {
+               node.appendChild(childList.get(position));
+            }
+         }
+         this.appendChild(node);
+      }
+      if (leaves) {
+         this.link(nodes.get(sizes.length - 1), following);
+      }
+      return true;
+   }
+
+   /**
+    * Merges or re-balances the children of all ancestors of this node that have become too
+    * small, from the parent of this node up to the root.
+    */
+   void repairAncestors() {
+      for (BPlusTreeNode<T> node = this.parent; node != null; node = node.parent) {
+         node.activate(ActivationPurpose.WRITE);
+         node.repairChildren();
+      }
+   }
+
+   /*****************************************************************************************
+    * Querying
+    ****************************************************************************************/
+
+   /**
+    * Adds all keys currently stored in the tree to keyList. This is accomplished by
+    * traversing the tree's leaf level.
+    *
+    * @param resultList
+    *           The list to which the keys should be added.
+    */
+   public void inOrder(final List<Object> resultList) {
+      this.activate(ActivationPurpose.READ);
+      if (!this.isLeaf) {
+         this.children[0].inOrder(resultList);
+      } else {
+         this.addKeysToList(resultList);
+         if (this.next != null) {
+            this.next.inOrder(resultList);
+         }
+      }
+   }
+
+   /**
+    * Returns the leaf following this one.
+    *
+    * @return The next leaf, or <b>null</b> if this is the last leaf.
+    */
+   BPlusTreeNode<T> nextLeaf() {
+      this.activate(ActivationPurpose.READ);
+      return this.next;
+   }
+
+   int keyCount() {
+      this.activate(ActivationPurpose.READ);
+      return this.currentKeyCount;
+   }
+
+   T key(final int index) {
+      this.activate(ActivationPurpose.READ);
+      return this.keys[index].key();
+   }
+
+   /**
+    * Returns the values of the key at the given index of this leaf, in the order in which
+    * they have been inserted.
+    */
+   List<Object> values(final int index) {
+      this.activate(ActivationPurpose.READ);
+      return this.entries[index];
+   }
+
+   /**
+    * Returns an iterator over all key/value pairs currently stored in the tree, ordered by
+    * key. The leaf level is traversed iteratively, so that the depth of the stack doesn't
+    * depend on the number of leaves, and the pairs are created only as they are consumed.
+    * The tree must not be modified while the iterator is in use.
+    *
+    * @return The key/value pairs.
+    */
+   Iterator<Map.Entry<T, Object>> entries() {
+      return new Iterator<Map.Entry<T, Object>>() {
+         private BPlusTreeNode<T> leaf = BPlusTreeNode.this.firstLeaf();
+         private int index = 0;
+         private Iterator<Object> values = Collections.<Object> emptyList().iterator();
+
+         @Override
+         public boolean hasNext() {
+            while (!this.values.hasNext()) {
+               if (this.leaf == null) {
+                  return false;
+               }
+               if (this.index < this.leaf.keyCount()) {
+                  this.values = this.leaf.values(this.index).iterator();
+                  this.index++;
+               } else {
+                  this.leaf = this.leaf.nextLeaf();
+                  this.index = 0;
+               }
+            }
+            return true;
+         }
+
+         @Override
+         public Map.Entry<T, Object> next() {
+            if (!this.hasNext()) {
+               throw new NoSuchElementException();
+            }
+            return new AbstractMap.SimpleImmutableEntry<T, Object>(this.leaf
+                  .key(this.index - 1), this.values.next());
+         }
+
+         @Override
+         public void remove() {
+            throw new UnsupportedOperationException();
+         }
+      };
+   }
+
+   private void addKeysToList(final List<Object> entryList) {
+      this.addKeysToListFrom(0, entryList);
+   }
+
+   private void addKeysToListFrom(final int startPosition, final List<Object> entryList) {
+      for (int i = startPosition; i < this.currentKeyCount; i++) {
+         entryList.addAll(this.entries[i]);
+      }
+   }
+
+   private void addKeysToListTo(final int endPosition, final List<Object> entryList) {
+      // don't need BTreeNull values
+      final int pos = Math.min(endPosition, this.currentKeyCount - 1);
+      for (int i = pos; i >= 0; i--) {
+         entryList.addAll(this.entries[i]);
+      }
+   }
+
+   private void addKeysToListNotEqual(final List<Object> entryList, final T key) {
+      for (int i = 0; i < this.currentKeyCount; i++) {
+         if (!this.keysEqual(this.keys[i].key(), key)) {
+            entryList.addAll(this.entries[i]);
+         }
+      }
+   }
+
+   public void greater(final T key, final List<Object> resultList, final boolean equal,
+         boolean firstLeaf) {
+      this.activate(ActivationPurpose.READ);
+      final int keyPosition = this.findKey(key);
+      if (!this.isLeaf) {
+         this.children[keyPosition].greater(key, resultList, equal, firstLeaf);
+      } else {
+         int startPosition = keyPosition;
+         if (firstLeaf) {
+            if (!equal && !this.keys[keyPosition].isNull()
+                  && this.keysEqual(this.keys[keyPosition].key(), key)) {
+               startPosition++;
+            }
+            firstLeaf = false;
+         }
+         this.addKeysToListFrom(startPosition, resultList);
+         if (this.next != null) {
+            this.next.greater(key, resultList, equal, firstLeaf);
+         }
+      }
+   }
+
+   public void less(final T key, final List<Object> resultList, final boolean equal,
+         boolean firstLeaf) {
+      this.activate(ActivationPurpose.READ);
+      final int keyPosition = this.findKey(key);
+      if (!this.isLeaf) {
+         this.children[keyPosition].less(key, resultList, equal, firstLeaf);
+      } else {
+         int endPosition = keyPosition;
+         if (firstLeaf) {
+            if (!equal && !this.keys[keyPosition].isNull()
+                  && this.keysEqual(this.keys[keyPosition].key(), key)) {
+               endPosition--;
+            }
+            if (endPosition >= 0 && !this.keys[endPosition].isNull()
+                  && this.keys[endPosition].key().compareTo(key) > 0) {
+               // the smallest entry in the tree is larger than key
+               return;
+            }
+            firstLeaf = false;
+         }
+         this.addKeysToListTo(endPosition, resultList);
+         if (this.previous != null) {
+            this.previous.less(key, resultList, equal, firstLeaf);
+         }
+      }
+   }
+
+   public void notEqual(final T key, final List<Object> resultList) {
+      this.activate(ActivationPurpose.READ);
       if (!this.isLeaf) {
          this.children[0].notEqual(key, resultList);
       } else {
@@ -928,19 +1863,24 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
 
    public void checkSubtreeIntegrity(final Collection<T> internalKeys)
          throws IntegrityException {
+      this.checkSubtreeIntegrity(internalKeys, this.order - 1);
+   }
+
+   void checkSubtreeIntegrity(final Collection<T> internalKeys, final int leafMinimum)
+         throws IntegrityException {
       this.activate(ActivationPurpose.READ);
-      this.checkNodeIntegrity(internalKeys);
+      this.checkNodeIntegrity(internalKeys, leafMinimum);
       if (!this.isLeaf) {
          for (int i = 0; i <= this.currentKeyCount; i++) {
-            this.children[i].checkSubtreeIntegrity(internalKeys);
+            this.children[i].checkSubtreeIntegrity(internalKeys, leafMinimum);
          }
       }
    }
 
-   private void checkNodeIntegrity(final Collection<T> internalKeys)
+   private void checkNodeIntegrity(final Collection<T> internalKeys, final int leafMinimum)
          throws IntegrityException {
       this.checkKeys(internalKeys);
-      this.checkSize();
+      this.checkSize(leafMinimum);
       this.checkEntries();
       this.checkChildren();
       this.checkLeafLinks();
@@ -1021,6 +1961,7 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
             throw new IntegrityException("Found null between other children");
 
          } else {
+            this.children[i].activate(ActivationPurpose.READ);
             if (this.children[i].parent != this) {
                throw new IntegrityException("Childs parent reference isn't pointing to this");
             }
@@ -1028,8 +1969,8 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
       }
    }
 
-   private void checkSize() throws IntegrityException {
-      if (this.sizeOverMinimum() < 0) {
+   private void checkSize(final int leafMinimum) throws IntegrityException {
+      if (this.sizeOverMinimum(leafMinimum) < 0) {
          throw new IntegrityException("Node is too small: Order='" + this.order
                + "' and currentKeyCount='" + this.currentKeyCount + "'");
       }
@@ -1040,12 +1981,14 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
          throw new IntegrityException("Node's previous or next reference points to itself");
       }
       if (this.next != null) {
+         this.next.activate(ActivationPurpose.READ);
          if (this.next.previous != this) {
             throw new IntegrityException(
                   "Nodes not linked correctly: this.next.previous != this");
          }
       }
       if (this.previous != null) {
+         this.previous.activate(ActivationPurpose.READ);
          if (this.previous.next != this) {
             throw new IntegrityException(
                   "Nodes not linked correctly: this.previous.next != this");
@@ -1089,7 +2032,8 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
                         + ") is not smaller than or equal to the right key in the parent ("
                         + rightKey + ")");
                }
-               if (this.children[i].isLeaf && childKeyEntry.compareTo(rightKey) != 0) {
+               if (this.children[i].isLeaf && childKeyEntry.compareTo(rightKey) != 0
+                     && !BPlusTreeKey.isShortened(rightKey)) {
                   throw new IntegrityException("Largest key in child-leaf (" + childKeyEntry
                         + ") is not equal to the right key in the parent (" + rightKey + ")");
                }
@@ -1098,6 +2042,359 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
       }
    }
 
+   /*****************************************************************************************
+    * Storage
+    ****************************************************************************************/
+
+   @SuppressWarnings("unchecked")
+   private void createSlots() {
+      final int entryCount = 2 * this.order;
+      this.keys = new BPlusTreeKey[entryCount];
+      this.entries = new ArrayList[entryCount];
+      for (int i = 0; i < entryCount; i++) {
+         this.keys[i] = new BPlusTreeKey<T>();
+         this.entries[i] = new ArrayList<Object>();
+      }
+   }
+
+   /**
+    * Copies the keys and values into the arrays that are stored by db4o.
+    */
+   private void toArrays() {
+      this.storedKeys = new Object[this.currentKeyCount];
+      int valueCount = 0;
+      for (int i = 0; i < this.currentKeyCount; i++) {
+         this.storedKeys[i] = this.keys[i].key();
+         valueCount += this.entries[i].size();
+      }
+      if (!this.isLeaf) {
+         this.storedValues = null;
+         this.storedValueCounts = null;
+         return;
+      }
+      this.storedValues = new Object[valueCount];
+      this.storedValueCounts = new int[this.currentKeyCount];
+      int value = 0;
+      for (int i = 0; i < this.currentKeyCount; i++) {
+         this.storedValueCounts[i] = this.entries[i].size();
+         for (final Object entry : this.entries[i]) {
+            this.storedValues[value++] = entry;
+         }
+      }
+   }
+
+   /**
+    * Builds the keys and values of a node read by db4o from the stored arrays, or from the
+    * key objects and value lists of a node stored by an earlier version.
+    */
+   @SuppressWarnings("unchecked")
+   private void fromArrays(final ObjectContainer container) {
+      this.createSlots();
+      if (this.legacyKeys != null) {
+         for (int i = 0; i < this.currentKeyCount; i++) {
+            container.activate(this.legacyKeys[i], 1);
+            container.activate(this.legacyEntries[i], 2);
+            this.keys[i].setKey(this.legacyKeys[i].key());
+            this.entries[i].addAll(this.legacyEntries[i]);
+         }
+         return;
+      }
+      int value = 0;
+      for (int i = 0; i < this.currentKeyCount; i++) {
+         this.keys[i].setKey((T) this.storedKeys[i]);
+         if (this.storedValueCounts != null) {
+            for (int j = 0; j < this.storedValueCounts[i]; j++) {
+               this.entries[i].add(this.storedValues[value++]);
+            }
+         }
+      }
+      // the arrays are only needed while the node is stored.
+      this.releaseArrays();
+   }
+
+   private void releaseArrays() {
+      this.storedKeys = null;
+      this.storedValues = null;
+      this.storedValueCounts = null;
+   }
+
+   /**
+    * Stores this node and its subtree in the given container, which converts nodes of an
+    * earlier version, see {@link BPlusTree#migrate(ObjectContainer)}.
+    */
+   void migrate(final ObjectContainer container) {
+      this.activate(ActivationPurpose.READ);
+      if (!this.isLeaf) {
+         for (int i = 0; i <= this.currentKeyCount; i++) {
+            this.children[i].migrate(container);
+         }
+      }
+      if (this.legacyKeys != null) {
+         container.store(this);
+      }
+   }
+
+   /**
+    * Marks this node as changed, so that it is stored by the next
+    * {@link #flush(ObjectContainer)}. Its ancestors are marked as having changes below
+    * them, up to the first one that is marked already. Nodes are marked when they are
+    * created and by the methods that modify their keys, values, children, parent or
+    * neighbours, so that nodes that are only read on the way are not stored.
+    */
+   private void markChanged() {
+      this.changed = true;
+      for (BPlusTreeNode<T> node = this.parent; node != null && !node.changedBelow;
+            node = node.parent) {
+         // a leaf reached through its neighbours may have inactive ancestors.
+         node.activate(ActivationPurpose.READ);
+         node.changedBelow = true;
+      }
+   }
+
+   /**
+    * Stores the nodes of the subtree of this node that have changed since they have been
+    * stored or activated, see {@link BPlusTree#flush(ObjectContainer)}. Only the children
+    * of nodes with changes below them are visited.
+    *
+    * @param container
+    *           The container holding the tree.
+    * @return The number of nodes stored.
+    */
+   int flush(final ObjectContainer container) {
+      int stored = 0;
+      if (this.changedBelow) {
+         this.changedBelow = false;
+         for (int i = 0; i <= this.currentKeyCount; i++) {
+            stored += this.children[i].flush(container);
+         }
+      }
+      if (this.changed) {
+         this.changed = false;
+         container.store(this);
+         stored++;
+      }
+      return stored;
+   }
+
+   /**
+    * Deletes this node and all nodes in its subtree from the given container. Used for
+    * subtrees that have been removed from the tree.
+    *
+    * @param container
+    *          The container holding the tree.
+    */
+   void delete(final ObjectContainer container) {
+      this.activate(ActivationPurpose.READ);
+      if (!this.isLeaf) {
+         for (int i = 0; i <= this.currentKeyCount && this.children[i] != null; i++) {
+            this.children[i].delete(container);
+         }
+      }
+      container.delete(this);
+   }
+
+   /**
+    * Returns whether the keys and values of this node are in memory. Nodes that db4o has
+    * not activated yet, or that have been deactivated, have none.
+    */
+   private boolean isActive() {
+      return this.keys != null;
+   }
+
+   /**
+    * Returns the number of active nodes in the subtree of this node.
+    *
+    * @return The number of active nodes, 0 if this node is not active.
+    */
+   int activeNodes() {
+      if (!this.isActive()) {
+         return 0;
+      }
+      int count = 1;
+      if (!this.isLeaf) {
+         for (int i = 0; i <= this.currentKeyCount; i++) {
+            count += this.children[i].activeNodes();
+         }
+      }
+      return count;
+   }
+
+   /**
+    * Activates the nodes of the given number of levels of the subtree of this node, this
+    * node being the first level.
+    *
+    * @param levels
+    *           The number of levels, at least 1.
+    * @return The number of nodes that were not active before.
+    */
+   int preload(final int levels) {
+      int activated = this.isActive() ? 0 : 1;
+      this.activate(ActivationPurpose.READ);
+      if (!this.isLeaf && levels > 1) {
+         for (int i = 0; i <= this.currentKeyCount; i++) {
+            activated += this.children[i].preload(levels - 1);
+         }
+      }
+      return activated;
+   }
+
+   /**
+    * Deactivates the subtrees below this node that have neither been used since the last
+    * call nor changed since they have been stored, until the given number of nodes has been
+    * deactivated. Like the clock of {@link BPlusTreeBufferPool}, a subtree that has been
+    * used since gets a second chance: it is only marked as unused, and the search for
+    * unused subtrees goes on below it.
+    *
+    * @param container
+    *           The container holding the tree.
+    * @param count
+    *           The number of nodes to be deactivated.
+    * @return The number of nodes deactivated.
+    */
+   int release(final ObjectContainer container, final int count) {
+      if (this.isLeaf) {
+         return 0;
+      }
+      int released = 0;
+      for (int i = 0; i <= this.currentKeyCount && released < count; i++) {
+         final BPlusTreeNode<T> child = this.children[i];
+         if (!child.isActive()) {
+            continue;
+         }
+         if (!child.referenced && child.isClean()) {
+            released += child.deactivateSubtree(container);
+         } else {
+            child.referenced = false;
+            released += child.release(container, count - released);
+         }
+      }
+      return released;
+   }
+
+   /**
+    * Returns whether no node in the subtree of this node has changed since it has been
+    * stored. Nodes below this one that have been stored since they have been marked are
+    * unmarked on the way.
+    */
+   private boolean isClean() {
+      if (this.changed) {
+         return false;
+      }
+      if (this.changedBelow) {
+         for (int i = 0; i <= this.currentKeyCount; i++) {
+            if (this.children[i].isActive() && !this.children[i].isClean()) {
+               return false;
+            }
+         }
+         this.changedBelow = false;
+      }
+      return true;
+   }
+
+   /**
+    * Deactivates the active nodes of the subtree of this node one by one, from the leaves
+    * up. Each node is deactivated on its own, since deactivating with a larger depth would
+    * follow the references to the parent and the neighbours of a node.
+    *
+    * @return The number of nodes deactivated.
+    */
+   private int deactivateSubtree(final ObjectContainer container) {
+      int released = 1;
+      if (!this.isLeaf) {
+         for (int i = 0; i <= this.currentKeyCount; i++) {
+            if (this.children[i].isActive()) {
+               released += this.children[i].deactivateSubtree(container);
+            }
+         }
+      }
+      container.deactivate(this, 1);
+      return released;
+   }
+
+   /**
+    * Called by db4o before the node is stored for the first time.
+    *
+    * @param container
+    *           The container storing the node.
+    * @return <b>true</b>, the node may be stored.
+    */
+   public boolean objectCanNew(final ObjectContainer container) {
+      this.toArrays();
+      return true;
+   }
+
+   /**
+    * Called by db4o after the node has been stored for the first time. It is no longer
+    * marked as changed.
+    *
+    * @param container
+    *           The container storing the node.
+    */
+   public void objectOnNew(final ObjectContainer container) {
+      this.changed = false;
+      this.releaseArrays();
+   }
+
+   /**
+    * Called by db4o before the node is updated. The key objects and value lists of a node
+    * stored by an earlier version are deleted, since they are replaced by the arrays.
+    *
+    * @param container
+    *           The container storing the node.
+    * @return <b>true</b>, the node may be stored.
+    */
+   public boolean objectCanUpdate(final ObjectContainer container) {
+      if (this.legacyKeys != null) {
+         for (int i = 0; i < this.legacyKeys.length; i++) {
+            if (this.legacyKeys[i] != null) {
+               container.delete(this.legacyKeys[i]);
+            }
+            if (this.legacyEntries[i] != null) {
+               container.delete(this.legacyEntries[i]);
+            }
+         }
+         this.legacyKeys = null;
+         this.legacyEntries = null;
+      }
+      this.toArrays();
+      return true;
+   }
+
+   /**
+    * Called by db4o after the node has been updated. It is no longer marked as changed.
+    *
+    * @param container
+    *           The container storing the node.
+    */
+   public void objectOnUpdate(final ObjectContainer container) {
+      this.changed = false;
+      this.releaseArrays();
+   }
+
+   /**
+    * Called by db4o after the node has been activated.
+    *
+    * @param container
+    *           The container holding the node.
+    */
+   public void objectOnActivate(final ObjectContainer container) {
+      BPlusTreeActivations.countActivation();
+      this.fromArrays(container);
+   }
+
+   /**
+    * Called by db4o after the node has been deactivated. The keys and values, which db4o
+    * does not know about, are dropped as well.
+    *
+    * @param container
+    *           The container holding the node.
+    */
+   public void objectOnDeactivate(final ObjectContainer container) {
+      this.keys = null;
+      this.entries = null;
+      this.referenced = false;
+   }
+
    /*****************************************************************************************
     * Activatable
     ****************************************************************************************/
@@ -1105,6 +2402,8 @@ public class BPlusTreeNode<T extends Comparable<T>> implements Activatable {
    @Override
    public void activate(final ActivationPurpose ap) {
       if (this.activator != null) {
+         BPlusTreeActivations.countVisit();
+         this.referenced = true;
          this.activator.activate(ap);
       }
    }
@@ -0,0 +1,108 @@
+/*
+ * @(#)BPlusTreeOperation.java   1.0   Oct 18, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+import java.util.Comparator;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A pending insert or remove operation on a B+ tree.
+ * Operations are collected in batches and applied to the tree in the order of their keys.
+ *
+ * @version 1.0
+ */
+class BPlusTreeOperation<T extends Comparable<T>> {
+
+   /**
+    * Returns a comparator that orders operations by their keys. <code>null</code> keys come
+    * first, as they do in the tree itself.
+    *
+    * @return The comparator.
+    */
+   static <T extends Comparable<T>> Comparator<BPlusTreeOperation<T>> keyOrder() {
+      return new Comparator<BPlusTreeOperation<T>>() {
+         @Override
+         public int compare(final BPlusTreeOperation<T> o1,
+               final BPlusTreeOperation<T> o2) {
+            return BPlusTreeKey.compare(o1.key, o2.key);
+         }
+      };
+   }
+
+   private final boolean isInsert;
+   private final T key;
+   private final Object value;
+   private final Thread issuer;
+   private RuntimeException failure;
+   private volatile boolean done;
+
+   /**
+    * Creates an operation issued by the current thread.
+    */
+   BPlusTreeOperation(final boolean isInsert, final T key, final Object value) {
+      this.isInsert = isInsert;
+      this.key = key;
+      this.value = value;
+      this.issuer = Thread.currentThread();
+      this.failure = null;
+      this.done = false;
+   }
+
+   boolean isInsert() {
+      return this.isInsert;
+   }
+
+   T key() {
+      return this.key;
+   }
+
+   Object value() {
+      return this.value;
+   }
+
+   /**
+    * Records that applying this operation failed. The failure is rethrown in the thread that
+    * issued the operation.
+    */
+   void fail(final RuntimeException e) {
+      this.failure = e;
+   }
+
+   /**
+    * Marks this operation as applied and wakes up the thread that issued it. Must be called
+    * after {@link #fail(RuntimeException)}.
+    */
+   void complete() {
+      this.done = true;
+      this.wakeUp();
+   }
+
+   /**
+    * Unparks the thread that issued this operation.
+    */
+   void wakeUp() {
+      LockSupport.unpark(this.issuer);
+   }
+
+   boolean isDone() {
+      return this.done;
+   }
+
+   /**
+    * Rethrows the failure recorded for this operation, if any.
+    */
+   void rethrow() {
+      if (this.failure != null) {
+         throw this.failure;
+      }
+   }
+
+}
@@ -0,0 +1,580 @@
+/*
+ * @(#)BPlusTreePage.java   1.0   Oct 19, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A node of a {@link PagedBPlusTree}, stored in a pinned page.
+ * The page starts with a header, followed by an array of slots that grows towards the end
+ * of the page. Each slot holds the offset and the length of a record. The records
+ * themselves are stored at the end of the page and grow towards the slots. The slots are
+ * kept in the order of the records, the records may be stored in any order.
+ * <p>
+ * A leaf record consists of the length of the key (2 bytes, 0xFFFF for <code>null</code>),
+ * the key and the value. An internal record consists of a leaf record, the separator,
+ * followed by the number of the child page to the right of the separator (4 bytes). The
+ * first child of an internal node is stored in the header.
+ * <p>
+ * Leaves whose keys all have 4 or 8 bytes, like those of
+ * {@link BPlusTreeSerializer#INTEGER} and {@link BPlusTreeSerializer#LONG}, may be packed
+ * instead. A packed leaf cuts its records into blocks of {@link #BLOCK} records. The first
+ * record of a block holds its key in full, every other record the difference to the key
+ * before it as a variable-length integer. If all values have the same length, it is stored
+ * once in the header, otherwise before each value. The header is followed by the offsets
+ * of the blocks, so that a search can find the block by its first key and only decodes the
+ * records of that block. Packed leaves are written by
+ * {@link PagedBPlusTree#bulkLoad(java.util.Iterator, double)} and cannot be modified.
+ *
+ * @version 1.0
+ */
+class BPlusTreePage {
+
+   static final int HEADER = 20;
+   static final int SLOT = 4;
+   static final int NULL_KEY = 0xFFFF;
+   static final int CHILD = 4;
+   static final int BLOCK = 16;
+
+   private static final int TYPE = 0;
+   private static final int FORMAT = 1;
+   private static final int COUNT = 2;
+   private static final int HEAP = 4;
+   private static final int KEY_WIDTH = 4;
+   private static final int VALUE_WIDTH = 6;
+   private static final int NEXT = 8;
+   private static final int PREVIOUS = 12;
+   private static final int FIRST_CHILD = 16;
+   private static final int PACKED_BYTES = 16;
+   private static final byte LEAF = 1;
+   private static final byte INTERNAL = 2;
+   private static final byte SLOTTED = 0;
+   private static final byte PACKED = 1;
+   private static final int VARIABLE = 0xFFFF;
+
+   private final int number;
+   private final ByteBuffer buffer;
+   private final int size;
+
+   // the record of a packed leaf that was decoded last, and the position of the decoder.
+   private int decoded;
+   private long decodedKey;
+   private int decodedValue;
+   private int decodedLength;
+   private int cursor;
+
+   BPlusTreePage(final int number, final ByteBuffer buffer, final int size) {
+      this.number = number;
+      this.buffer = buffer;
+      this.size = size;
+      this.decoded = -1;
+   }
+
+   /**
+    * Returns the number of bytes available for slots and records in a page of the given
+    * size.
+    */
+   static int capacity(final int pageSize) {
+      return pageSize - BPlusTreePage.HEADER;
+   }
+
+   /**
+    * Turns this page into an empty node.
+    *
+    * @param leaf
+    *           <b>true</b> for a leaf, <b>false</b> for an internal node.
+    */
+   void init(final boolean leaf) {
+      this.buffer.put(BPlusTreePage.TYPE, leaf ? BPlusTreePage.LEAF
+            : BPlusTreePage.INTERNAL);
+      this.buffer.put(BPlusTreePage.FORMAT, BPlusTreePage.SLOTTED);
+      this.setCount(0);
+      this.buffer.putInt(BPlusTreePage.HEAP, this.size);
+      this.setNext(BPlusTreePageStore.NO_PAGE);
+      this.setPrevious(BPlusTreePageStore.NO_PAGE);
+      this.setFirstChild(BPlusTreePageStore.NO_PAGE);
+   }
+
+   int number() {
+      return this.number;
+   }
+
+   ByteBuffer buffer() {
+      return this.buffer;
+   }
+
+   boolean isLeaf() {
+      return this.buffer.get(BPlusTreePage.TYPE) == BPlusTreePage.LEAF;
+   }
+
+   boolean isPacked() {
+      return this.buffer.get(BPlusTreePage.FORMAT) == BPlusTreePage.PACKED;
+   }
+
+   int count() {
+      return this.buffer.getShort(BPlusTreePage.COUNT) & 0xFFFF;
+   }
+
+   private void setCount(final int count) {
+      this.buffer.putShort(BPlusTreePage.COUNT, (short) count);
+   }
+
+   int next() {
+      return this.buffer.getInt(BPlusTreePage.NEXT);
+   }
+
+   void setNext(final int page) {
+      this.buffer.putInt(BPlusTreePage.NEXT, page);
+   }
+
+   int previous() {
+      return this.buffer.getInt(BPlusTreePage.PREVIOUS);
+   }
+
+   void setPrevious(final int page) {
+      this.buffer.putInt(BPlusTreePage.PREVIOUS, page);
+   }
+
+   int firstChild() {
+      return this.buffer.getInt(BPlusTreePage.FIRST_CHILD);
+   }
+
+   void setFirstChild(final int page) {
+      this.buffer.putInt(BPlusTreePage.FIRST_CHILD, page);
+   }
+
+   /**
+    * Returns the offset of the given record within the page.
+    */
+   int offset(final int index) {
+      return this.buffer.getShort(BPlusTreePage.HEADER + index * BPlusTreePage.SLOT)
+            & 0xFFFF;
+   }
+
+   /**
+    * Returns the length of the given record.
+    */
+   int length(final int index) {
+      return this.buffer.getShort(BPlusTreePage.HEADER + index * BPlusTreePage.SLOT + 2)
+            & 0xFFFF;
+   }
+
+   /**
+    * Returns the length of the given record without the child reference of internal
+    * records, i.e. the length of its key and value.
+    */
+   int entryLength(final int index) {
+      if (this.isPacked()) {
+         return 2 + this.keyWidth() + this.packedValueLength(index);
+      }
+      return this.isLeaf() ? this.length(index) : this.length(index) - BPlusTreePage.CHILD;
+   }
+
+   /**
+    * Returns the child at the given index of this internal node. Child i + 1 is stored
+    * along with record i.
+    */
+   int child(final int index) {
+      if (index == 0) {
+         return this.firstChild();
+      }
+      return this.buffer.getInt(this.offset(index - 1) + this.length(index - 1)
+            - BPlusTreePage.CHILD);
+   }
+
+   /**
+    * Returns the number of bytes occupied by slots and records, or by the blocks of a
+    * packed leaf.
+    */
+   int usedBytes() {
+      if (this.isPacked()) {
+         return this.buffer.getInt(BPlusTreePage.PACKED_BYTES);
+      }
+      final int count = this.count();
+      int used = count * BPlusTreePage.SLOT;
+      for (int i = 0; i < count; i++) {
+         used += this.length(i);
+      }
+      return used;
+   }
+
+   /**
+    * Returns whether a record of the given length can be added to this page. Nothing can be
+    * added to a packed leaf.
+    */
+   boolean fits(final int length) {
+      return !this.isPacked() && this.usedBytes() + BPlusTreePage.SLOT + length
+            <= BPlusTreePage.capacity(this.size);
+   }
+
+   /**
+    * Inserts the given record at the given index. The record must fit into the page.
+    */
+   void insert(final int index, final byte[] record) {
+      final int count = this.count();
+      int heap = this.buffer.getInt(BPlusTreePage.HEAP);
+      if (heap - record.length < BPlusTreePage.HEADER + (count + 1) * BPlusTreePage.SLOT) {
+         // there is enough space, but it is fragmented.
+         this.compact();
+         heap = this.buffer.getInt(BPlusTreePage.HEAP);
+      }
+      heap -= record.length;
+      for (int i = 0; i < record.length; i++) {
+         this.buffer.put(heap + i, record[i]);
+      }
+      this.buffer.putInt(BPlusTreePage.HEAP, heap);
+      for (int i = count; i > index; i--) {
+         this.buffer.putInt(BPlusTreePage.HEADER + i * BPlusTreePage.SLOT, this.buffer
+               .getInt(BPlusTreePage.HEADER + (i - 1) * BPlusTreePage.SLOT));
+      }
+      this.buffer.putShort(BPlusTreePage.HEADER + index * BPlusTreePage.SLOT, (short) heap);
+      this.buffer.putShort(BPlusTreePage.HEADER + index * BPlusTreePage.SLOT + 2,
+            (short) record.length);
+      this.setCount(count + 1);
+   }
+
+   /**
+    * Removes the record at the given index. Its space is reclaimed when the page is
+    * compacted.
+    */
+   void remove(final int index) {
+      final int count = this.count() - 1;
+      for (int i = index; i < count; i++) {
+         this.buffer.putInt(BPlusTreePage.HEADER + i * BPlusTreePage.SLOT, this.buffer
+               .getInt(BPlusTreePage.HEADER + (i + 1) * BPlusTreePage.SLOT));
+      }
+      this.setCount(count);
+      if (count == 0) {
+         this.buffer.putInt(BPlusTreePage.HEAP, this.size);
+      }
+   }
+
+   /**
+    * Returns a copy of the record at the given index.
+    */
+   byte[] record(final int index) {
+      if (this.isPacked()) {
+         this.decode(index);
+         final int width = this.keyWidth();
+         final byte[] record = new byte[2 + width + this.decodedLength];
+         final ByteBuffer buffer = ByteBuffer.wrap(record);
+         buffer.putShort(0, (short) width);
+         if (width == 4) {
+            buffer.putInt(2, (int) this.decodedKey);
+         } else {
+            buffer.putLong(2, this.decodedKey);
+         }
+         for (int i = 0; i < this.decodedLength; i++) {
+            record[2 + width + i] = this.buffer.get(this.decodedValue + i);
+         }
+         return record;
+      }
+      final int offset = this.offset(index);
+      final byte[] record = new byte[this.length(index)];
+      for (int i = 0; i < record.length; i++) {
+         record[i] = this.buffer.get(offset + i);
+      }
+      return record;
+   }
+
+   /**
+    * Returns copies of all records in this page.
+    */
+   List<byte[]> records() {
+      final int count = this.count();
+      final List<byte[]> records = new ArrayList<byte[]>(count);
+      for (int i = 0; i < count; i++) {
+         records.add(this.record(i));
+      }
+      return records;
+   }
+
+   /**
+    * Replaces the records of this page by the given range of records. A packed leaf becomes
+    * an ordinary one.
+    */
+   void write(final List<byte[]> records, final int from, final int to) {
+      if (this.isPacked()) {
+         this.buffer.put(BPlusTreePage.FORMAT, BPlusTreePage.SLOTTED);
+         this.setFirstChild(BPlusTreePageStore.NO_PAGE);
+         this.decoded = -1;
+      }
+      this.setCount(0);
+      this.buffer.putInt(BPlusTreePage.HEAP, this.size);
+      for (int i = from; i < to; i++) {
+         this.insert(i - from, records.get(i));
+      }
+   }
+
+   /**
+    * Moves all records to the end of the page, such that the free space between the slots
+    * and the records is contiguous.
+    */
+   private void compact() {
+      this.write(this.records(), 0, this.count());
+   }
+
+   /*****************************************************************************************
+    * Packed leaves
+    ****************************************************************************************/
+
+   /**
+    * Replaces the records of this leaf by the given range of records in packed form. The
+    * records must be packable and fit into the page, see {@link PackedSize}.
+    */
+   void pack(final List<byte[]> records, final int from, final int to) {
+      final PackedSize size = new PackedSize();
+      for (int i = from; i < to; i++) {
+         size.add(records.get(i));
+      }
+      final int width = BPlusTreePage.keyWidth(records.get(from));
+      this.buffer.put(BPlusTreePage.FORMAT, BPlusTreePage.PACKED);
+      this.setCount(to - from);
+      this.buffer.putShort(BPlusTreePage.KEY_WIDTH, (short) width);
+      this.buffer.putShort(BPlusTreePage.VALUE_WIDTH, (short) (size.fixed ? size.valueWidth
+            : BPlusTreePage.VARIABLE));
+      this.buffer.putInt(BPlusTreePage.PACKED_BYTES, size.bytes());
+      this.cursor = BPlusTreePage.HEADER + 2 * ((to - from + BPlusTreePage.BLOCK - 1)
+            / BPlusTreePage.BLOCK);
+      long previous = 0;
+      for (int i = from; i < to; i++) {
+         final byte[] record = records.get(i);
+         final long key = BPlusTreePage.key(record, width);
+         if ((i - from) % BPlusTreePage.BLOCK == 0) {
+            final int block = (i - from) / BPlusTreePage.BLOCK;
+            this.buffer.putShort(BPlusTreePage.HEADER + 2 * block, (short) this.cursor);
+            for (int j = 0; j < width; j++) {
+               this.buffer.put(this.cursor++, record[2 + j]);
+            }
+         } else {
+            this.putVarint(BPlusTreePage.zigzag(key - previous));
+         }
+         previous = key;
+         if (!size.fixed) {
+            this.putVarint(record.length - 2 - width);
+         }
+         for (int j = 2 + width; j < record.length; j++) {
+            this.buffer.put(this.cursor++, record[j]);
+         }
+      }
+      this.decoded = -1;
+   }
+
+   /**
+    * Returns the number of bytes of each key of this packed leaf.
+    */
+   int keyWidth() {
+      return this.buffer.getShort(BPlusTreePage.KEY_WIDTH) & 0xFFFF;
+   }
+
+   /**
+    * Returns the key of the given record of this packed leaf, as the number stored in its
+    * bytes.
+    */
+   long packedKey(final int index) {
+      this.decode(index);
+      return this.decodedKey;
+   }
+
+   /**
+    * Returns the offset of the value of the given record of this packed leaf.
+    */
+   int packedValueOffset(final int index) {
+      this.decode(index);
+      return this.decodedValue;
+   }
+
+   /**
+    * Returns the length of the value of the given record of this packed leaf.
+    */
+   int packedValueLength(final int index) {
+      this.decode(index);
+      return this.decodedLength;
+   }
+
+   /**
+    * Decodes the given record, starting at the first record of its block or, when reading
+    * the records of a block in order, at the record decoded before.
+    */
+   private void decode(final int index) {
+      if (index == this.decoded) {
+         return;
+      }
+      final int valueWidth = this.buffer.getShort(BPlusTreePage.VALUE_WIDTH) & 0xFFFF;
+      final int block = index / BPlusTreePage.BLOCK;
+      if (this.decoded < 0 || this.decoded > index
+            || this.decoded / BPlusTreePage.BLOCK != block) {
+         this.cursor = this.buffer.getShort(BPlusTreePage.HEADER + block * 2) & 0xFFFF;
+         if (this.keyWidth() == 4) {
+            this.decodedKey = this.buffer.getInt(this.cursor);
+         } else {
+            this.decodedKey = this.buffer.getLong(this.cursor);
+         }
+         this.cursor += this.keyWidth();
+         this.decoded = block * BPlusTreePage.BLOCK;
+         this.decodeValue(valueWidth);
+      }
+      while (this.decoded < index) {
+         this.cursor = this.decodedValue + this.decodedLength;
+         final long difference = this.getVarint();
+         this.decodedKey += (difference >>> 1) ^ -(difference & 1);
+         this.decoded++;
+         this.decodeValue(valueWidth);
+      }
+   }
+
+   private void decodeValue(final int valueWidth) {
+      this.decodedLength = valueWidth == BPlusTreePage.VARIABLE ? (int) this.getVarint()
+            : valueWidth;
+      this.decodedValue = this.cursor;
+   }
+
+   private long getVarint() {
+      long value = 0;
+      int shift = 0;
+      byte b;
+      do {
+         b = this.buffer.get(this.cursor++);
+         value |= (long) (b & 0x7F) << shift;
+         shift += 7;
+      } while (b < 0);
+      return value;
+   }
+
+   private void putVarint(final long value) {
+      long remaining = value;
+      while ((remaining & ~0x7FL) != 0) {
+         this.buffer.put(this.cursor++, (byte) (remaining | 0x80));
+         remaining >>>= 7;
+      }
+      this.buffer.put(this.cursor++, (byte) remaining);
+   }
+
+   private static int varintSize(final long value) {
+      int size = 1;
+      for (long remaining = value >>> 7; remaining != 0; remaining >>>= 7) {
+         size++;
+      }
+      return size;
+   }
+
+   /**
+    * Maps differences of small magnitude to small numbers, so that keys that are out of
+    * the order of their numbers still take few bytes.
+    */
+   private static long zigzag(final long difference) {
+      return (difference << 1) ^ (difference >> 63);
+   }
+
+   private static int keyWidth(final byte[] record) {
+      return ((record[0] & 0xFF) << 8) | (record[1] & 0xFF);
+   }
+
+   private static long key(final byte[] record, final int width) {
+      final ByteBuffer buffer = ByteBuffer.wrap(record);
+      return width == 4 ? buffer.getInt(2) : buffer.getLong(2);
+   }
+
+   /**
+    * Computes the number of bytes a sequence of leaf records takes in a packed leaf, as the
+    * records are added one after the other.
+    */
+   static class PackedSize {
+      private int count;
+      private int width;
+      private long previous;
+      private int keyBytes;
+      private int valueBytes;
+      private int lengthBytes;
+      private int valueWidth;
+      private boolean fixed;
+
+      /**
+       * Returns the number of bytes the records take with the given record added, or -1
+       * if the record cannot be packed with them.
+       */
+      int with(final byte[] record) {
+         final int width = BPlusTreePage.keyWidth(record);
+         if (width != 4 && width != 8 || this.count > 0 && width != this.width) {
+            return -1;
+         }
+         final int valueLength = record.length - 2 - width;
+         final boolean fixed = this.count == 0 || this.fixed
+               && valueLength == this.valueWidth;
+         return this.keyBytes + this.keyBytes(record, width) + this.valueBytes + valueLength
+               + (fixed ? 0 : this.lengthBytes + BPlusTreePage.varintSize(valueLength));
+      }
+
+      /**
+       * Adds the given record, which must be packable with the records added before.
+       */
+      void add(final byte[] record) {
+         final int width = BPlusTreePage.keyWidth(record);
+         final int valueLength = record.length - 2 - width;
+         this.keyBytes += this.keyBytes(record, width);
+         this.valueBytes += valueLength;
+         this.lengthBytes += BPlusTreePage.varintSize(valueLength);
+         this.fixed = this.count == 0 || this.fixed && valueLength == this.valueWidth;
+         this.valueWidth = valueLength;
+         this.width = width;
+         this.previous = BPlusTreePage.key(record, width);
+         this.count++;
+      }
+
+      /**
+       * Returns the number of bytes taken by the records added so far.
+       */
+      int bytes() {
+         return this.keyBytes + this.valueBytes + (this.fixed ? 0 : this.lengthBytes);
+      }
+
+      /**
+       * Returns the bytes for the key of the next record, including the offset of its block
+       * if it starts one.
+       */
+      private int keyBytes(final byte[] record, final int width) {
+         if (this.count % BPlusTreePage.BLOCK == 0) {
+            return 2 + width;
+         }
+         final long difference = BPlusTreePage.key(record, width) - this.previous;
+         return BPlusTreePage.varintSize(BPlusTreePage.zigzag(difference));
+      }
+   }
+
+   /**
+    * Returns the child reference of the given internal record.
+    */
+   static int child(final byte[] record) {
+      return ByteBuffer.wrap(record).getInt(record.length - BPlusTreePage.CHILD);
+   }
+
+   /**
+    * Returns a copy of the given internal record that refers to the given child.
+    */
+   static byte[] withChild(final byte[] record, final int child) {
+      final byte[] result = record.clone();
+      ByteBuffer.wrap(result).putInt(record.length - BPlusTreePage.CHILD, child);
+      return result;
+   }
+
+   /**
+    * Turns the given leaf record into an internal record that refers to the given child.
+    */
+   static byte[] separator(final byte[] record, final int child) {
+      final byte[] result = new byte[record.length + BPlusTreePage.CHILD];
+      System.arraycopy(record, 0, result, 0, record.length);
+      ByteBuffer.wrap(result).putInt(record.length, child);
+      return result;
+   }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * @(#)BPlusTreePageStore.java   1.0   Oct 19, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Holds the fixed-size pages in which a {@link PagedBPlusTree} stores its nodes.
+ * A page has to be pinned while it is accessed and unpinned afterwards, which allows stores
+ * to load pages on demand and to write modified pages back. Stores need not be thread-safe
+ * for {@link #allocate()}, {@link #free(int)} and modified pages, as the tree only changes
+ * pages while holding its write lock.
+ *
+ * @version 1.0
+ */
+public interface BPlusTreePageStore {
+
+   /**
+    * The number used instead of a page number where there is no page.
+    */
+   int NO_PAGE = -1;
+
+   /**
+    * Returns the size of the pages of this store.
+    *
+    * @return The page size in bytes.
+    */
+   int pageSize();
+
+   /**
+    * Allocates a new page. Its contents are undefined.
+    *
+    * @return The number of the new page.
+    */
+   int allocate();
+
+   /**
+    * Releases the given page. Its number may be returned by {@link #allocate()} again.
+    *
+    * @param page
+    *           The number of the page to be released. It must not be pinned.
+    */
+   void free(int page);
+
+   /**
+    * Pins the given page and returns its contents. The returned buffer holds the page at
+    * the positions 0 to {@link #pageSize()} - 1 and is to be accessed by absolute position
+    * only. It must not be used after the page has been unpinned.
+    *
+    * @param page
+    *           The number of the page.
+    * @return The contents of the page.
+    */
+   ByteBuffer pin(int page);
+
+   /**
+    * Releases a page pinned by {@link #pin(int)}.
+    *
+    * @param page
+    *           The number of the page.
+    * @param dirty
+    *           <b>true</b> if the page has been modified while it was pinned.
+    */
+   void unpin(int page, boolean dirty);
+
+   /**
+    * Returns the page holding the root of the tree.
+    *
+    * @return The number of the root page, or {@link #NO_PAGE} if the store is empty.
+    */
+   int rootPage();
+
+   /**
+    * Records the page holding the root of the tree.
+    *
+    * @param page
+    *           The number of the root page.
+    */
+   void setRootPage(int page);
+
+   /**
+    * Releases all resources held by this store.
+    */
+   void close();
+
+}
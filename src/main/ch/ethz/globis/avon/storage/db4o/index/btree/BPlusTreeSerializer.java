@@ -0,0 +1,129 @@
+/*
+ * @(#)BPlusTreeSerializer.java   1.0   Oct 19, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Converts keys or values to bytes and back, so that they can be stored in the pages of a
+ * {@link PagedBPlusTree}. The length of the bytes is stored along with them, so serializers
+ * for objects of variable size don't need to delimit them.
+ *
+ * @version 1.0
+ */
+public interface BPlusTreeSerializer<T> {
+
+   /**
+    * Stores <code>Integer</code> objects in 4 bytes.
+    */
+   BPlusTreeSerializer<Integer> INTEGER = new BPlusTreeSerializer<Integer>() {
+      @Override
+      public int size(final Integer object) {
+         return 4;
+      }
+
+      @Override
+      public void write(final ByteBuffer buffer, final int offset, final Integer object) {
+         buffer.putInt(offset, object.intValue());
+      }
+
+      @Override
+      public Integer read(final ByteBuffer buffer, final int offset, final int length) {
+         return Integer.valueOf(buffer.getInt(offset));
+      }
+   };
+
+   /**
+    * Stores <code>Long</code> objects in 8 bytes.
+    */
+   BPlusTreeSerializer<Long> LONG = new BPlusTreeSerializer<Long>() {
+      @Override
+      public int size(final Long object) {
+         return 8;
+      }
+
+      @Override
+      public void write(final ByteBuffer buffer, final int offset, final Long object) {
+         buffer.putLong(offset, object.longValue());
+      }
+
+      @Override
+      public Long read(final ByteBuffer buffer, final int offset, final int length) {
+         return Long.valueOf(buffer.getLong(offset));
+      }
+   };
+
+   /**
+    * Stores <code>String</code> objects in UTF-8.
+    */
+   BPlusTreeSerializer<String> STRING = new BPlusTreeSerializer<String>() {
+      private final Charset utf8 = Charset.forName("UTF-8");
+
+      @Override
+      public int size(final String object) {
+         return object.getBytes(this.utf8).length;
+      }
+
+      @Override
+      public void write(final ByteBuffer buffer, final int offset, final String object) {
+         final byte[] bytes = object.getBytes(this.utf8);
+         for (int i = 0; i < bytes.length; i++) {
+            buffer.put(offset + i, bytes[i]);
+         }
+      }
+
+      @Override
+      public String read(final ByteBuffer buffer, final int offset, final int length) {
+         final byte[] bytes = new byte[length];
+         for (int i = 0; i < length; i++) {
+            bytes[i] = buffer.get(offset + i);
+         }
+         return new String(bytes, this.utf8);
+      }
+   };
+
+   /**
+    * Returns the number of bytes needed to store the given object.
+    *
+    * @param object
+    *           The object to be stored, not <code>null</code>.
+    * @return The size of the object in bytes.
+    */
+   int size(T object);
+
+   /**
+    * Writes the given object to the buffer. Exactly {@link #size(Object)} bytes are
+    * written.
+    *
+    * @param buffer
+    *           The buffer to be written to. Its position is not changed.
+    * @param offset
+    *           The position at which the object is written.
+    * @param object
+    *           The object to be written, not <code>null</code>.
+    */
+   void write(ByteBuffer buffer, int offset, T object);
+
+   /**
+    * Reads an object from the buffer.
+    *
+    * @param buffer
+    *           The buffer to be read from. Its position is not changed.
+    * @param offset
+    *           The position at which the object starts.
+    * @param length
+    *           The number of bytes that have been written for the object.
+    * @return The object.
+    */
+   T read(ByteBuffer buffer, int offset, int length);
+
+}
@@ -0,0 +1,333 @@
+/*
+ * @(#)BPlusTreeSnapshot.java   1.0   Oct 19, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.CRC32;
+
+/**
+ * Writes the entries of a {@link BPlusTree} to a snapshot file and reads them back.
+ * <p>
+ * A snapshot is a sorted run of keys, each followed by its values, cut into blocks of
+ * about {@link #BLOCK_BYTES} bytes. Each block starts with the number of keys it holds,
+ * its length and a CRC-32 checksum of both and its contents. Keys are stored like in the
+ * pages of a {@link PagedBPlusTree}, with a length of 2 bytes. Value counts and value
+ * lengths are stored as variable-length integers. A block without keys ends the snapshot
+ * and holds the total number of entries.
+ *
+ * @version 1.0
+ */
+final class BPlusTreeSnapshot {
+
+   static final int BLOCK_BYTES = 1 << 16;
+
+   private static final int MAGIC = 0x42505453;
+   private static final int VERSION = 1;
+   private static final int BLOCK_HEADER = 12;
+
+   private BPlusTreeSnapshot() {
+   }
+
+   /*****************************************************************************************
+    * Writing
+    ****************************************************************************************/
+
+   /**
+    * Writes the entries below the given root to the given file. The snapshot is written
+    * under a temporary name, forced to the disk and then renamed, so that an existing
+    * snapshot is only replaced by a complete one.
+    */
+   static <T extends Comparable<T>> void write(final BPlusTreeNode<T> root, final Path path,
+         final BPlusTreeSerializer<T> keySerializer,
+         final BPlusTreeSerializer<Object> valueSerializer) throws IOException {
+      final Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+      final FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+            StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+      try {
+         final ByteBuffer header = ByteBuffer.allocate(8);
+         header.putInt(0, BPlusTreeSnapshot.MAGIC);
+         header.putInt(4, BPlusTreeSnapshot.VERSION);
+         BPlusTreeSnapshot.writeFully(channel, header);
+         final CRC32 crc = new CRC32();
+         ByteBuffer block = ByteBuffer.allocate(BPlusTreeSnapshot.BLOCK_HEADER
+               + BPlusTreeSnapshot.BLOCK_BYTES);
+         int keys = 0;
+         long total = 0;
+         int position = BPlusTreeSnapshot.BLOCK_HEADER;
+         for (BPlusTreeNode<T> leaf = root.firstLeaf(); leaf != null; leaf = leaf
+               .nextLeaf()) {
+            for (int i = 0; i < leaf.keyCount(); i++) {
+               final T key = leaf.key(i);
+               final int keyLength = key == null ? 0 : keySerializer.size(key);
+               int length = 2 + keyLength + 5;
+               for (final Object value : leaf.values(i)) {
+                  length += 5 + valueSerializer.size(value);
+               }
+               if (position + length > block.capacity()) {
+                  if (keys > 0) {
+                     BPlusTreeSnapshot.writeBlock(channel, block, keys, position, crc);
+                     keys = 0;
+                     position = BPlusTreeSnapshot.BLOCK_HEADER;
+                  }
+                  if (position + length > block.capacity()) {
+                     // a key with many values gets a block of its own.
+                     block = ByteBuffer.allocate(position + length);
+                  }
+               }
+               if (key == null) {
+                  block.putShort(position, (short) BPlusTreePage.NULL_KEY);
+               } else {
+                  block.putShort(position, (short) keyLength);
+                  keySerializer.write(block, position + 2, key);
+               }
+               position = BPlusTreeSnapshot.putVarint(block, position + 2 + keyLength, leaf
+                     .values(i).size());
+               for (final Object value : leaf.values(i)) {
+                  final int valueLength = valueSerializer.size(value);
+                  position = BPlusTreeSnapshot.putVarint(block, position, valueLength);
+                  valueSerializer.write(block, position, value);
+                  position += valueLength;
+               }
+               keys++;
+               total += leaf.values(i).size();
+            }
+         }
+         if (keys > 0) {
+            BPlusTreeSnapshot.writeBlock(channel, block, keys, position, crc);
+         }
+         block.putLong(BPlusTreeSnapshot.BLOCK_HEADER, total);
+         BPlusTreeSnapshot.writeBlock(channel, block, 0, BPlusTreeSnapshot.BLOCK_HEADER + 8,
+               crc);
+         channel.force(true);
+      } finally {
+         channel.close();
+      }
+      Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+   }
+
+   private static void writeBlock(final FileChannel channel, final ByteBuffer block,
+         final int keys, final int length, final CRC32 crc) throws IOException {
+      block.putInt(0, keys);
+      block.putInt(4, length - BPlusTreeSnapshot.BLOCK_HEADER);
+      crc.reset();
+      crc.update(block.array(), 0, 8);
+      crc.update(block.array(), BPlusTreeSnapshot.BLOCK_HEADER, length
+            - BPlusTreeSnapshot.BLOCK_HEADER);
+      block.putInt(8, (int) crc.getValue());
+      final ByteBuffer source = block.duplicate();
+      source.position(0);
+      source.limit(length);
+      BPlusTreeSnapshot.writeFully(channel, source);
+   }
+
+   private static void writeFully(final FileChannel channel, final ByteBuffer buffer)
+         throws IOException {
+      while (buffer.hasRemaining()) {
+         channel.write(buffer);
+      }
+   }
+
+   /**
+    * Writes the given non-negative number in 7-bit groups, least significant first.
+    *
+    * @return The position after the number.
+    */
+   private static int putVarint(final ByteBuffer buffer, final int position,
+         final int value) {
+      int offset = position;
+      int remaining = value;
+      while (remaining >= 0x80) {
+         buffer.put(offset++, (byte) (remaining | 0x80));
+         remaining >>>= 7;
+      }
+      buffer.put(offset++, (byte) remaining);
+      return offset;
+   }
+
+   /*****************************************************************************************
+    * Reading
+    ****************************************************************************************/
+
+   /**
+    * Reads the entries of a snapshot in order. The checksum of each block is verified
+    * before any of its entries are returned. Errors are thrown as {@link ReadFailure}s, since
+    * iterators cannot throw checked exceptions.
+    */
+   static class Reader<T extends Comparable<T>> implements Iterator<Map.Entry<T, Object>> {
+
+      private final Path path;
+      private final FileChannel channel;
+      private final BPlusTreeSerializer<T> keySerializer;
+      private final BPlusTreeSerializer<Object> valueSerializer;
+      private final CRC32 crc;
+      private final ByteBuffer header;
+      private ByteBuffer block;
+      private int keys;
+      private int position;
+      private T key;
+      private int values;
+      private long total;
+      private boolean end;
+
+      Reader(final Path path, final BPlusTreeSerializer<T> keySerializer,
+            final BPlusTreeSerializer<Object> valueSerializer) throws IOException {
+         this.path = path;
+         this.channel = FileChannel.open(path, StandardOpenOption.READ);
+         this.keySerializer = keySerializer;
+         this.valueSerializer = valueSerializer;
+         this.crc = new CRC32();
+         this.header = ByteBuffer.allocate(BPlusTreeSnapshot.BLOCK_HEADER);
+         this.block = ByteBuffer.allocate(BPlusTreeSnapshot.BLOCK_BYTES);
+         try {
+            final ByteBuffer start = ByteBuffer.allocate(8);
+            this.readFully(start);
+            if (start.getInt(0) != BPlusTreeSnapshot.MAGIC
+                  || start.getInt(4) != BPlusTreeSnapshot.VERSION) {
+               throw new IOException("'" + path + "' is not a B+ tree snapshot");
+            }
+         } catch (final IOException e) {
+            this.channel.close();
+            throw e;
+         }
+      }
+
+      @Override
+      public boolean hasNext() {
+         try {
+            while (this.values == 0 && !this.end) {
+               if (this.keys == 0) {
+                  this.readBlock();
+               } else {
+                  this.readKey();
+               }
+            }
+         } catch (final IOException e) {
+            throw new ReadFailure(e);
+         }
+         return this.values > 0;
+      }
+
+      @Override
+      public Map.Entry<T, Object> next() {
+         if (!this.hasNext()) {
+            throw new NoSuchElementException();
+         }
+         final int length = this.getVarint();
+         final Object value = this.valueSerializer.read(this.block, this.position, length);
+         this.position += length;
+         this.values--;
+         return new AbstractMap.SimpleImmutableEntry<T, Object>(this.key, value);
+      }
+
+      @Override
+      public void remove() {
+         throw new UnsupportedOperationException();
+      }
+
+      void close() throws IOException {
+         this.channel.close();
+      }
+
+      private void readBlock() throws IOException {
+         this.header.clear();
+         this.readFully(this.header);
+         final int keys = this.header.getInt(0);
+         final int length = this.header.getInt(4);
+         if (keys < 0 || length < 0) {
+            throw new IOException("'" + this.path + "' is damaged");
+         }
+         if (length > this.block.capacity()) {
+            this.block = ByteBuffer.allocate(length);
+         }
+         this.block.clear();
+         this.block.limit(length);
+         this.readFully(this.block);
+         this.crc.reset();
+         this.crc.update(this.header.array(), 0, 8);
+         this.crc.update(this.block.array(), 0, length);
+         if ((int) this.crc.getValue() != this.header.getInt(8)) {
+            throw new IOException("'" + this.path + "' is damaged");
+         }
+         this.position = 0;
+         this.keys = keys;
+         if (keys == 0) {
+            if (this.block.getLong(0) != this.total) {
+               throw new IOException("'" + this.path + "' holds '" + this.total
+                     + "' entries instead of '" + this.block.getLong(0) + "'");
+            }
+            this.end = true;
+         }
+      }
+
+      private void readKey() {
+         final int length = this.block.getShort(this.position) & 0xFFFF;
+         this.position += 2;
+         if (length == BPlusTreePage.NULL_KEY) {
+            this.key = null;
+         } else {
+            this.key = this.keySerializer.read(this.block, this.position, length);
+            this.position += length;
+         }
+         this.values = this.getVarint();
+         this.total += this.values;
+         this.keys--;
+      }
+
+      private int getVarint() {
+         int value = 0;
+         int shift = 0;
+         byte b;
+         do {
+            b = this.block.get(this.position++);
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+         } while (b < 0);
+         return value;
+      }
+
+      private void readFully(final ByteBuffer buffer) throws IOException {
+         while (buffer.hasRemaining()) {
+            if (this.channel.read(buffer) < 0) {
+               throw new IOException("'" + this.path + "' is incomplete");
+            }
+         }
+      }
+   }
+
+   /**
+    * Thrown by {@link Reader} if the snapshot cannot be read.
+    */
+   static class ReadFailure extends RuntimeException {
+
+      private static final long serialVersionUID = 1L;
+
+      ReadFailure(final IOException cause) {
+         super(cause);
+      }
+
+      @Override
+      public IOException getCause() {
+         return (IOException) super.getCause();
+      }
+   }
+
+}
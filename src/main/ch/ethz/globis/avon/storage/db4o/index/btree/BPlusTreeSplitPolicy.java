@@ -0,0 +1,76 @@
+/*
+ * @(#)BPlusTreeSplitPolicy.java   1.0   Oct 19, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+/**
+ * Determines where a node of a B+ tree is split when it overflows.
+ * Nodes are never split such that one half holds less than the minimum number of keys, so
+ * how far a split can be shifted away from the median depends on the order of the tree and,
+ * for leaves, on the leaf minimum (see {@link BPlusTree#setLeafMinimum(int)}).
+ *
+ * @version 1.0
+ */
+public enum BPlusTreeSplitPolicy {
+
+   /**
+    * Splits nodes into two halves of equal size.
+    */
+   MEDIAN,
+
+   /**
+    * Keeps as many keys as possible in the left node if the key causing the overflow has
+    * been inserted at the end of the node, as it happens with ascending keys. The left node
+    * then won't receive any further keys, so it should be as full as possible. Other nodes
+    * are split at the median.
+    */
+   RIGHT_BIASED,
+
+   /**
+    * Keeps as many keys as possible in the right node if the key causing the overflow has
+    * been inserted at the beginning of the node, as it happens with descending keys. Other
+    * nodes are split at the median.
+    */
+   LEFT_BIASED,
+
+   /**
+    * Chooses between {@link #RIGHT_BIASED}, {@link #LEFT_BIASED} and {@link #MEDIAN} based
+    * on whether the recently inserted keys have been ascending, descending or neither.
+    */
+   ADAPTIVE;
+
+   /**
+    * Returns the index at which an overflowing node is split.
+    *
+    * @param median
+    *           The index at which the node is split into halves of equal size.
+    * @param lowest
+    *           The lowest permitted index.
+    * @param highest
+    *           The highest permitted index.
+    * @param keyPosition
+    *           The position of the key whose insertion caused the overflow.
+    * @param keyCount
+    *           The number of keys in the overflowing node.
+    * @return The split index.
+    */
+   int splitIndex(final int median, final int lowest, final int highest,
+         final int keyPosition, final int keyCount) {
+      switch (this) {
+      case RIGHT_BIASED:
+         return keyPosition == keyCount - 1 ? highest : median;
+      case LEFT_BIASED:
+         return keyPosition == 0 ? lowest : median;
+      default:
+         return median;
+      }
+   }
+
+}
@@ -0,0 +1,1797 @@
+/*
+ * @(#)PagedBPlusTree.java   1.0   Oct 19, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Implementation of a B+ tree that stores its nodes in the fixed-size pages of a
+ * {@link BPlusTreePageStore} instead of as Java objects. Keys and values are converted to
+ * bytes by {@link BPlusTreeSerializer}s, so that with {@link BPlusTreeMemoryPageStore},
+ * the contents of the tree are kept outside of the Java heap.
+ * <p>
+ * The tree offers the same operations as {@link BPlusTree}. As keys and values are of
+ * variable size, nodes are split when their page is full rather than at a fixed number of
+ * keys, and re-balanced when less than a quarter of their page is used. Each key/value pair
+ * is stored as a record of its own, ordered by key and then by the bytes of the value, so
+ * that keys may have any number of values.
+ * Access to the tree is managed by a ReentrantReadWriteLock, like in {@link BPlusTree}.
+ * <p>
+ * A tree in a {@link BPlusTreeBufferPool} can be made durable with a {@link BPlusTreeLog}.
+ * Then each modification is logged before it returns, and opening the tree again replays
+ * the log, e.g. after a crash.
+ * <p>
+ * Trees with keys of {@link BPlusTreeSerializer#INTEGER} or
+ * {@link BPlusTreeSerializer#LONG} are bulk loaded into packed leaves, which store keys as
+ * differences to the key before and need a fraction of the space for dense keys such as
+ * time stamps or sequence numbers.
+ * A packed leaf is turned back into ordinary leaves when it is modified.
+ * <p>
+ * Scans of a tree in a {@link BPlusTreeBufferPool} can read the leaves they are going to
+ * visit next in the background, see {@link #setPrefetch(Executor, int)}, and the upper
+ * levels of such a tree can be read into the pool right after opening it, see
+ * {@link #preload(int)}.
+ *
+ * @version 1.0
+ */
+public class PagedBPlusTree<T extends Comparable<T>> {
+
+   private static final int MAX_HEIGHT = 64;
+   private static final int BEFORE = -1;
+   private static final int EXACT = 0;
+   private static final int AFTER = 1;
+
+   /**
+    * Orders the values of a key by their bytes, like the records of the tree.
+    */
+   private static final Comparator<byte[]> VALUE_ORDER = new Comparator<byte[]>() {
+      @Override
+      public int compare(final byte[] value1, final byte[] value2) {
+         for (int i = 0; i < Math.min(value1.length, value2.length); i++) {
+            final int difference = (value1[i] & 0xFF) - (value2[i] & 0xFF);
+            if (difference != 0) {
+               return difference;
+            }
+         }
+         return value1.length - value2.length;
+      }
+   };
+
+   private final BPlusTreePageStore store;
+   private final BPlusTreeSerializer<T> keySerializer;
+   private final BPlusTreeSerializer<Object> valueSerializer;
+   private final int pageSize;
+   private final int minimum;
+   private final int maxRecordLength;
+   private final boolean packLeaves;
+   private final ReentrantReadWriteLock rwl;
+   private final Lock readLock;
+   private final Lock writeLock;
+   private BPlusTreeBufferPool pool;
+   private BPlusTreeLog log;
+   private Executor prefetchExecutor;
+   private int prefetchLeaves;
+
+   /**
+    * The path from the root to a leaf, as found by
+    * {@link PagedBPlusTree#descend(Comparable, byte[], int, Path)}.
+    */
+   private static class Path {
+      private final int[] pages = new int[PagedBPlusTree.MAX_HEIGHT];
+      private final int[] indexes = new int[PagedBPlusTree.MAX_HEIGHT];
+      private int depth;
+   }
+
+   /**
+    * Creates a tree in the given store. If the store already holds a tree, that tree is
+    * opened.
+    *
+    * @param store
+    *          The store holding the pages of the tree.
+    * @param keySerializer
+    *          Converts the keys to bytes and back.
+    * @param valueSerializer
+    *          Converts the values to bytes and back.
+    */
+   @SuppressWarnings("unchecked")
+   public PagedBPlusTree(final BPlusTreePageStore store,
+         final BPlusTreeSerializer<T> keySerializer,
+         final BPlusTreeSerializer<?> valueSerializer) {
+      this.store = store;
+      this.keySerializer = keySerializer;
+      this.valueSerializer = (BPlusTreeSerializer<Object>) valueSerializer;
+      this.pageSize = store.pageSize();
+      final int capacity = BPlusTreePage.capacity(this.pageSize);
+      this.minimum = capacity / 4;
+      // records must be small enough that splitting or re-balancing a node leaves both
+      // halves above the minimum.
+      this.maxRecordLength = capacity / 8 - BPlusTreePage.CHILD - BPlusTreePage.SLOT;
+      this.packLeaves = (Object) keySerializer == BPlusTreeSerializer.INTEGER
+            || (Object) keySerializer == BPlusTreeSerializer.LONG;
+      this.rwl = new ReentrantReadWriteLock();
+      this.readLock = this.rwl.readLock();
+      this.writeLock = this.rwl.writeLock();
+      if (store.rootPage() == BPlusTreePageStore.NO_PAGE) {
+         final BPlusTreePage root = this.allocate(true);
+         store.setRootPage(root.number());
+         this.unpin(root, true);
+      }
+   }
+
+   /**
+    * Creates a durable tree in the given buffer pool. If the pool already holds a tree,
+    * that tree is opened and the modifications in the log that have not reached the file
+    * of the pool are recovered.
+    *
+    * @param pool
+    *          The buffer pool holding the pages of the tree. It needs at least 64 frames.
+    * @param log
+    *          The write-ahead log of the tree.
+    * @param keySerializer
+    *          Converts the keys to bytes and back.
+    * @param valueSerializer
+    *          Converts the values to bytes and back.
+    * @throws IOException
+    *           If the log cannot be read or recovering the tree fails.
+    */
+   public PagedBPlusTree(final BPlusTreeBufferPool pool, final BPlusTreeLog log,
+         final BPlusTreeSerializer<T> keySerializer,
+         final BPlusTreeSerializer<?> valueSerializer) throws IOException {
+      this(pool, keySerializer, valueSerializer);
+      pool.setLog(log);
+      this.pool = pool;
+      this.log = log;
+      this.recover();
+   }
+
+   /**
+    * Restores the last checkpoint in the log and applies all logged modifications again.
+    * Modifications that had reached the pool's file before are applied a second time, which
+    * has no effect, since inserting a present pair and removing an absent one are ignored.
+    */
+   private void recover() throws IOException {
+      final List<byte[]> records = this.log.read();
+      this.pool.restore(records);
+      for (final byte[] record : records) {
+         if (record[0] == BPlusTreeLog.CLEAR) {
+            this.clearPages();
+         } else if (record[0] == BPlusTreeLog.INSERT || record[0] == BPlusTreeLog.REMOVE) {
+            final ByteBuffer buffer = ByteBuffer.wrap(record, 1, record.length - 1).slice();
+            final int length = buffer.getShort(0) & 0xFFFF;
+            final T key = length == BPlusTreePage.NULL_KEY ? null : this.keySerializer.read(
+                  buffer, 2, length);
+            final int offset = 3 + (length == BPlusTreePage.NULL_KEY ? 0 : length);
+            final byte[] valueBytes = new byte[record.length - offset];
+            System.arraycopy(record, offset, valueBytes, 0, valueBytes.length);
+            if (record[0] == BPlusTreeLog.INSERT) {
+               final byte[] entry = new byte[record.length - 1];
+               System.arraycopy(record, 1, entry, 0, entry.length);
+               this.insert(key, valueBytes, entry);
+            } else {
+               this.remove(key, valueBytes);
+            }
+         }
+         if (this.pool.needsCheckpoint()) {
+            // the log must not be truncated before all records have been applied.
+            this.pool.checkpoint(false);
+         }
+      }
+      this.pool.checkpoint(true);
+   }
+
+   /**
+    * Makes a checkpoint, writing all modified pages to the file of the buffer pool, and
+    * empties the log. Checkpoints are also made automatically when half of the frames of
+    * the pool hold modified pages.
+    *
+    * @throws IOException
+    *           If writing the log or the file fails.
+    */
+   public void checkpoint() throws IOException {
+      if (this.log == null) {
+         throw new IllegalStateException("The tree has no log");
+      }
+      this.writeLock.lock();
+      try {
+         this.pool.checkpoint(true);
+      } finally {
+         this.writeLock.unlock();
+      }
+   }
+
+   /*****************************************************************************************
+    * Modification
+    ****************************************************************************************/
+
+   /**
+    * Inserts the given key/value pair into the tree. Inserting a pair that is already
+    * present has no effect.
+    *
+    * @param key
+    *          Key to be added.
+    * @param value
+    *          The value associated with the key.
+    */
+   @SuppressWarnings("unchecked")
+   public void insert(final Object key, final Object value) {
+      final byte[] valueBytes = this.valueBytes(value);
+      final byte[] record = this.record((T) key, valueBytes);
+      final long lsn;
+      this.writeLock.lock();
+      try {
+         this.insert((T) key, valueBytes, record);
+         lsn = this.log(BPlusTreeLog.INSERT, record);
+      } finally {
+         this.writeLock.unlock();
+      }
+      this.commit(lsn);
+   }
+
+   private void insert(final T key, final byte[] valueBytes, final byte[] record) {
+      final Path path = new Path();
+      final BPlusTreePage leaf = this.descend(key, valueBytes, PagedBPlusTree.EXACT, path);
+      if (leaf.isPacked()) {
+         this.unpack(leaf);
+         this.insert(key, valueBytes, record);
+         return;
+      }
+      final int position = this.position(leaf, key, valueBytes, PagedBPlusTree.EXACT);
+      if (position < leaf.count() && this.compare(key, valueBytes, PagedBPlusTree.EXACT,
+            leaf, position) == 0) {
+         this.unpin(leaf, false);
+         return;
+      }
+      this.insert(path, path.depth, leaf, position, record);
+   }
+
+   /**
+    * Inserts a record into the given node and splits it and its ancestors as far as
+    * necessary.
+    *
+    * @param path
+    *           The path from the root to the node.
+    * @param depth
+    *           The depth of the node.
+    * @param pinned
+    *           The node, pinned. It is unpinned by this method.
+    * @param position
+    *           The index at which the record is inserted.
+    * @param record
+    *           The record to be inserted.
+    */
+   private void insert(final Path path, final int depth, final BPlusTreePage pinned,
+         final int position, final byte[] record) {
+      BPlusTreePage node = pinned;
+      int level = depth;
+      int index = position;
+      byte[] pending = record;
+      while (!node.fits(pending.length)) {
+         final List<byte[]> records = node.records();
+         records.add(index, pending);
+         final int split = this.splitIndex(records, node.isLeaf());
+         final BPlusTreePage right = this.allocate(node.isLeaf());
+         if (node.isLeaf()) {
+            pending = BPlusTreePage.separator(records.get(split), right.number());
+            node.write(records, 0, split);
+            right.write(records, split, records.size());
+            this.link(node, right, node.next());
+         } else {
+            // the middle record moves up, its child becomes the first child of the new
+            // node.
+            final byte[] middle = records.get(split);
+            right.setFirstChild(BPlusTreePage.child(middle));
+            pending = BPlusTreePage.withChild(middle, right.number());
+            node.write(records, 0, split);
+            right.write(records, split + 1, records.size());
+         }
+         final int left = node.number();
+         this.unpin(node, true);
+         this.unpin(right, true);
+         if (level == 0) {
+            final BPlusTreePage root = this.allocate(false);
+            root.setFirstChild(left);
+            root.insert(0, pending);
+            this.store.setRootPage(root.number());
+            this.unpin(root, true);
+            return;
+         }
+         level--;
+         node = this.pin(path.pages[level]);
+         index = path.indexes[level];
+      }
+      node.insert(index, pending);
+      this.unpin(node, true);
+   }
+
+   /**
+    * Links the given new leaf between the given leaf and its former next leaf.
+    */
+   private void link(final BPlusTreePage left, final BPlusTreePage right, final int next) {
+      right.setNext(next);
+      right.setPrevious(left.number());
+      left.setNext(right.number());
+      if (next != BPlusTreePageStore.NO_PAGE) {
+         final BPlusTreePage following = this.pin(next);
+         following.setPrevious(right.number());
+         this.unpin(following, true);
+      }
+   }
+
+   /**
+    * Returns the index at which the given records are split into two nodes of about the
+    * same size. For leaves, the record at the index is the first one of the right node. For
+    * internal nodes, it moves up into the parent.
+    */
+   private int splitIndex(final List<byte[]> records, final boolean leaf) {
+      int total = 0;
+      for (final byte[] record : records) {
+         total += record.length + BPlusTreePage.SLOT;
+      }
+      int index = 0;
+      int left = 0;
+      while (left + records.get(index).length + BPlusTreePage.SLOT <= total / 2) {
+         left += records.get(index).length + BPlusTreePage.SLOT;
+         index++;
+      }
+      final int highest = leaf ? records.size() - 1 : records.size() - 2;
+      return Math.max(1, Math.min(highest, index));
+   }
+
+   /**
+    * Removes the given key/value pair from the tree.
+    *
+    * @param key
+    *          Key to be removed from the tree.
+    * @param value
+    *          The value associated with the key.
+    */
+   @SuppressWarnings("unchecked")
+   public void remove(final Object key, final Object value) {
+      final byte[] valueBytes = this.valueBytes(value);
+      final long lsn;
+      this.writeLock.lock();
+      try {
+         this.remove((T) key, valueBytes);
+         lsn = this.log == null ? 0 : this.log(BPlusTreeLog.REMOVE, this.record((T) key,
+               valueBytes));
+      } finally {
+         this.writeLock.unlock();
+      }
+      this.commit(lsn);
+   }
+
+   private void remove(final T key, final byte[] valueBytes) {
+      final Path path = new Path();
+      final BPlusTreePage leaf = this.descend(key, valueBytes, PagedBPlusTree.EXACT, path);
+      if (leaf.isPacked()) {
+         this.unpack(leaf);
+         this.remove(key, valueBytes);
+         return;
+      }
+      final int position = this.position(leaf, key, valueBytes, PagedBPlusTree.EXACT);
+      if (position == leaf.count() || this.compare(key, valueBytes, PagedBPlusTree.EXACT,
+            leaf, position) != 0) {
+         this.unpin(leaf, false);
+         return;
+      }
+      final int remaining = leaf.usedBytes() - leaf.length(position) - BPlusTreePage.SLOT;
+      if (path.depth > 0 && remaining < this.minimum) {
+         // the leaf is re-balanced with the sibling chosen by rebalance, which must not be
+         // packed.
+         final BPlusTreePage parent = this.pin(path.pages[path.depth - 1]);
+         final int index = path.indexes[path.depth - 1];
+         final BPlusTreePage sibling = this.pin(parent.child(index > 0 ? index - 1 : 1));
+         this.unpin(parent, false);
+         if (sibling.isPacked()) {
+            this.unpin(leaf, false);
+            this.unpack(sibling);
+            this.remove(key, valueBytes);
+            return;
+         }
+         this.unpin(sibling, false);
+      }
+      leaf.remove(position);
+      this.rebalance(path, leaf);
+   }
+
+   /**
+    * Rewrites the given packed leaf as ordinary leaves, so that it can be modified. As the
+    * records take more space unpacked, they are distributed over as many leaves as needed
+    * to fill each to about three quarters, which leaves room for further insertions.
+    *
+    * @param packed
+    *           The leaf, pinned. It is unpinned by this method.
+    */
+   private void unpack(final BPlusTreePage packed) {
+      final List<byte[]> records = packed.records();
+      final int limit = BPlusTreePage.capacity(this.pageSize) * 3 / 4;
+      final List<Integer> starts = new ArrayList<Integer>();
+      starts.add(0);
+      int bytes = 0;
+      for (int i = 0; i < records.size(); i++) {
+         final int length = records.get(i).length + BPlusTreePage.SLOT;
+         if (bytes > 0 && bytes + length > limit) {
+            starts.add(i);
+            bytes = 0;
+         }
+         bytes += length;
+      }
+      if (starts.size() > 1 && bytes < this.minimum) {
+         // the last leaf would be too small, its records go to the leaf before.
+         starts.remove(starts.size() - 1);
+      }
+      starts.add(records.size());
+      packed.write(records, 0, starts.get(1));
+      BPlusTreePage left = packed;
+      for (int i = 1; i + 1 < starts.size(); i++) {
+         final BPlusTreePage right = this.allocate(true);
+         right.write(records, starts.get(i), starts.get(i + 1));
+         this.link(left, right, left.next());
+         final int page = right.number();
+         this.unpin(left, true);
+         this.unpin(right, true);
+         this.addSeparator(records.get(starts.get(i)), page);
+         left = this.pin(page);
+      }
+      this.unpin(left, true);
+   }
+
+   /**
+    * Inserts the separator for a new leaf, which starts with the given record, into the
+    * parent of the leaf to its left.
+    */
+   private void addSeparator(final byte[] first, final int page) {
+      final byte[] separator = BPlusTreePage.separator(first, page);
+      final Path path = new Path();
+      final BPlusTreePage left = this.descend(this.recordKey(first),
+            this.recordValue(first), PagedBPlusTree.EXACT, path);
+      this.unpin(left, false);
+      if (path.depth == 0) {
+         final BPlusTreePage root = this.allocate(false);
+         root.setFirstChild(left.number());
+         root.insert(0, separator);
+         this.store.setRootPage(root.number());
+         this.unpin(root, true);
+         return;
+      }
+      final int level = path.depth - 1;
+      this.insert(path, level, this.pin(path.pages[level]), path.indexes[level], separator);
+   }
+
+   /**
+    * Merges the given node with a sibling or moves records from the sibling to the node if
+    * the node uses less than a quarter of its page, and does the same for its ancestors as
+    * far as necessary.
+    *
+    * @param path
+    *           The path from the root to the leaf.
+    * @param pinned
+    *           The leaf, pinned. It is unpinned by this method.
+    */
+   private void rebalance(final Path path, final BPlusTreePage pinned) {
+      BPlusTreePage node = pinned;
+      int level = path.depth;
+      while (level > 0 && node.usedBytes() < this.minimum) {
+         final BPlusTreePage parent = this.pin(path.pages[level - 1]);
+         final int index = path.indexes[level - 1];
+         final int pivot = index > 0 ? index - 1 : 0;
+         final BPlusTreePage left = index > 0 ? this.pin(parent.child(pivot)) : node;
+         final BPlusTreePage right = index > 0 ? node : this.pin(parent.child(1));
+
+         final List<byte[]> records = left.records();
+         if (!left.isLeaf()) {
+            // the separator moves down between the records of both nodes.
+            final byte[] separator = parent.record(pivot);
+            records.add(BPlusTreePage.withChild(separator, right.firstChild()));
+         }
+         records.addAll(right.records());
+         int total = 0;
+         for (final byte[] record : records) {
+            total += record.length + BPlusTreePage.SLOT;
+         }
+
+         if (total <= BPlusTreePage.capacity(this.pageSize)) {
+            // merge the right node into the left one.
+            left.write(records, 0, records.size());
+            if (left.isLeaf()) {
+               left.setNext(right.next());
+               if (right.next() != BPlusTreePageStore.NO_PAGE) {
+                  final BPlusTreePage following = this.pin(right.next());
+                  following.setPrevious(left.number());
+                  this.unpin(following, true);
+               }
+            }
+            parent.remove(pivot);
+            this.unpin(left, true);
+            this.unpin(right, false);
+            this.store.free(right.number());
+            node = parent;
+            level--;
+            continue;
+         }
+
+         // redistribute the records between both nodes.
+         final int split = this.splitIndex(records, left.isLeaf());
+         final byte[] separator;
+         if (left.isLeaf()) {
+            separator = BPlusTreePage.separator(records.get(split), right.number());
+            left.write(records, 0, split);
+            right.write(records, split, records.size());
+         } else {
+            final byte[] middle = records.get(split);
+            right.setFirstChild(BPlusTreePage.child(middle));
+            separator = BPlusTreePage.withChild(middle, right.number());
+            left.write(records, 0, split);
+            right.write(records, split + 1, records.size());
+         }
+         this.unpin(left, true);
+         this.unpin(right, true);
+         final int replaced = parent.length(pivot);
+         parent.remove(pivot);
+         if (separator.length > replaced) {
+            // the new separator may overflow the parent, which is then split.
+            this.insert(path, level - 1, parent, pivot, separator);
+            return;
+         }
+         // a shorter separator may leave the parent too small.
+         parent.insert(pivot, separator);
+         node = parent;
+         level--;
+      }
+
+      if (level == 0 && !node.isLeaf() && node.count() == 0) {
+         // the root has a single child left, which becomes the new root.
+         this.store.setRootPage(node.firstChild());
+         this.unpin(node, false);
+         this.store.free(node.number());
+      } else {
+         this.unpin(node, true);
+      }
+   }
+
+   /**
+    * Removes all entries from the tree.
+    */
+   public void clear() {
+      final long lsn;
+      this.writeLock.lock();
+      try {
+         this.clearPages();
+         lsn = this.log(BPlusTreeLog.CLEAR, new byte[0]);
+      } finally {
+         this.writeLock.unlock();
+      }
+      this.commit(lsn);
+   }
+
+   private void clearPages() {
+      this.freeSubtree(this.store.rootPage());
+      final BPlusTreePage root = this.allocate(true);
+      this.store.setRootPage(root.number());
+      this.unpin(root, true);
+   }
+
+   /**
+    * Replaces all entries in the tree with the given key/value pairs. The tree is built
+    * bottom-up like in {@link BPlusTree#bulkLoad(Iterator, double)}: the leaves are filled
+    * sequentially and the internal levels are built on top of them, so that every page is
+    * written once and the pages of each level follow each other in the store.
+    *
+    * @param sorted
+    *          The key/value pairs to be stored, sorted ascending by key. The values of a
+    *          key may come in any order, a pair that occurs several times is stored once.
+    * @param fillFactor
+    *          The fraction of each page to be filled, 0 &lt; fillFactor &lt;= 1. Pages are
+    *          filled at least to half, so that the last page of each level can be balanced
+    *          against its left neighbour.
+    * @throws IllegalArgumentException
+    *           If the pairs are not sorted or the fill factor is out of range.
+    * @throws IllegalStateException
+    *           If the tree has a log.
+    */
+   public void bulkLoad(final Iterator<? extends Map.Entry<? extends T, ?>> sorted,
+         final double fillFactor) {
+      if (!(fillFactor > 0 && fillFactor <= 1)) {
+         throw new IllegalArgumentException("Fill factor must be in (0, 1]. Given: '"
+               + fillFactor + "'");
+      }
+      if (this.log != null) {
+         throw new IllegalStateException("A tree with a log cannot be bulk loaded");
+      }
+      final int capacity = BPlusTreePage.capacity(this.pageSize);
+      final int target = Math.max(capacity / 2, (int) (capacity * fillFactor));
+      this.writeLock.lock();
+      // the pages written so far are freed if the input turns out to be invalid.
+      final List<Level> levels = new ArrayList<Level>();
+      try {
+         Level level = new Level(true, target, BPlusTreePageStore.NO_PAGE);
+         levels.add(level);
+         final List<byte[]> values = new ArrayList<byte[]>();
+         T key = null;
+         while (sorted.hasNext()) {
+            final Map.Entry<? extends T, ?> entry = sorted.next();
+            if (!values.isEmpty()) {
+               final int comparison = BPlusTreeKey.compare(entry.getKey(), key);
+               if (comparison < 0) {
+                  throw new IllegalArgumentException("Input is not sorted: '"
+                        + entry.getKey() + "' follows '" + key + "'");
+               } else if (comparison > 0) {
+                  this.addRecords(level, key, values);
+               }
+            }
+            key = entry.getKey();
+            values.add(this.valueBytes(entry.getValue()));
+         }
+         this.addRecords(level, key, values);
+         List<byte[]> separators = level.finish();
+         while (!separators.isEmpty()) {
+            level = new Level(false, target, level.first);
+            levels.add(level);
+            for (final byte[] separator : separators) {
+               level.add(separator);
+            }
+            separators = level.finish();
+         }
+         final int oldRoot = this.store.rootPage();
+         this.store.setRootPage(level.first);
+         this.freeSubtree(oldRoot);
+      } catch (final RuntimeException e) {
+         for (final Level level : levels) {
+            level.release();
+         }
+         throw e;
+      } finally {
+         this.writeLock.unlock();
+      }
+   }
+
+   /**
+    * Adds the records of a key with the given values to the leaf level, ordered by value,
+    * and empties the list of values.
+    */
+   private void addRecords(final Level leaves, final T key, final List<byte[]> values) {
+      Collections.sort(values, PagedBPlusTree.VALUE_ORDER);
+      for (int i = 0; i < values.size(); i++) {
+         if (i == 0 || PagedBPlusTree.VALUE_ORDER.compare(values.get(i - 1),
+               values.get(i)) != 0) {
+            leaves.add(this.record(key, values.get(i)));
+         }
+      }
+      values.clear();
+   }
+
+   /**
+    * One level of a tree that is built bottom-up by
+    * {@link PagedBPlusTree#bulkLoad(Iterator, double)}. The records are collected into
+    * nodes of the target size. The last two nodes are kept in memory, so that the last node
+    * can be merged with its left neighbour or balanced against it when the level is
+    * finished. Leaves are packed where possible, and then filled to the target size in
+    * packed form. The level keeps track of the pages it allocates, so that they can be
+    * freed if loading fails.
+    */
+   private class Level {
+      private final boolean leaf;
+      private final int target;
+      private final int firstChild;
+      private final List<byte[]> separators;
+      private final List<Integer> pages;
+      private int first;
+      private int written;
+      private List<byte[]> previous;
+      private int previousPage;
+      private List<byte[]> current;
+      private int currentPage;
+      private int currentBytes;
+      private BPlusTreePage.PackedSize currentPacked;
+
+      /**
+       * @param firstChild
+       *           For internal levels, the first node of the level below. The other nodes
+       *           of that level come with the records.
+       */
+      private Level(final boolean leaf, final int target, final int firstChild) {
+         this.leaf = leaf;
+         this.target = target;
+         this.firstChild = firstChild;
+         this.separators = new ArrayList<byte[]>();
+         this.pages = new ArrayList<Integer>();
+         this.first = BPlusTreePageStore.NO_PAGE;
+         this.written = BPlusTreePageStore.NO_PAGE;
+         this.previous = null;
+         this.current = new ArrayList<byte[]>();
+         this.currentPage = BPlusTreePageStore.NO_PAGE;
+         this.currentPacked = this.newPackedSize();
+      }
+
+      private void add(final byte[] record) {
+         final int packed = this.currentPacked == null ? -1 : this.currentPacked
+               .with(record);
+         final int bytes = packed >= 0 ? packed : this.currentBytes + record.length
+               + BPlusTreePage.SLOT;
+         if (!this.current.isEmpty() && bytes > this.target) {
+            if (this.previous != null) {
+               this.write(this.previous, this.previousPage, this.currentPage);
+            }
+            this.previous = this.current;
+            this.previousPage = this.currentPage;
+            this.current = new ArrayList<byte[]>();
+            this.currentBytes = 0;
+            this.currentPacked = this.newPackedSize();
+         }
+         if (this.current.isEmpty()) {
+            this.currentPage = this.allocate();
+            if (this.first == BPlusTreePageStore.NO_PAGE) {
+               this.first = this.currentPage;
+            }
+         }
+         this.current.add(record);
+         this.currentBytes += record.length + BPlusTreePage.SLOT;
+         if (this.currentPacked != null) {
+            if (this.currentPacked.with(record) < 0) {
+               // the node is stored unpacked.
+               this.currentPacked = null;
+            } else {
+               this.currentPacked.add(record);
+            }
+         }
+      }
+
+      private int allocate() {
+         final int page = PagedBPlusTree.this.store.allocate();
+         this.pages.add(Integer.valueOf(page));
+         return page;
+      }
+
+      private void free(final int page) {
+         PagedBPlusTree.this.store.free(page);
+         this.pages.remove(Integer.valueOf(page));
+      }
+
+      /**
+       * Frees all pages allocated by this level.
+       */
+      private void release() {
+         for (final Integer page : this.pages) {
+            PagedBPlusTree.this.store.free(page.intValue());
+         }
+         this.pages.clear();
+      }
+
+      private BPlusTreePage.PackedSize newPackedSize() {
+         return this.leaf && PagedBPlusTree.this.packLeaves ? new BPlusTreePage.PackedSize()
+               : null;
+      }
+
+      /**
+       * Returns the number of bytes the given records take in a node, packed if possible.
+       */
+      private int bytes(final List<byte[]> records) {
+         final int packed = this.packedBytes(records);
+         if (packed >= 0) {
+            return packed;
+         }
+         int total = 0;
+         for (final byte[] record : records) {
+            total += record.length + BPlusTreePage.SLOT;
+         }
+         return total;
+      }
+
+      /**
+       * Returns the number of bytes the given records take in a packed leaf, or -1 if they
+       * are not packed.
+       */
+      private int packedBytes(final List<byte[]> records) {
+         BPlusTreePage.PackedSize size = this.newPackedSize();
+         for (int i = 0; size != null && i < records.size(); i++) {
+            if (size.with(records.get(i)) < 0) {
+               size = null;
+            } else {
+               size.add(records.get(i));
+            }
+         }
+         return size == null || records.isEmpty() ? -1 : size.bytes();
+      }
+
+      /**
+       * Writes the remaining nodes.
+       *
+       * @return The records of the level above, empty if the level consists of the root.
+       */
+      private List<byte[]> finish() {
+         if (this.current.isEmpty()) {
+            // the tree is empty.
+            this.currentPage = this.allocate();
+            this.first = this.currentPage;
+         }
+         // the first record of an internal node moves up to the parent.
+         final int stored = this.bytes(this.current.subList(this.leaf ? 0 : 1, this.current
+               .size()));
+         if (this.previous == null || stored >= PagedBPlusTree.this.minimum) {
+            if (this.previous != null) {
+               this.write(this.previous, this.previousPage, this.currentPage);
+            }
+            this.write(this.current, this.currentPage, BPlusTreePageStore.NO_PAGE);
+            return this.separators;
+         }
+         final boolean packed = this.packedBytes(this.previous) >= 0;
+         final List<byte[]> records = this.previous;
+         records.addAll(this.current);
+         if (this.bytes(records) <= BPlusTreePage.capacity(PagedBPlusTree.this.pageSize)) {
+            this.write(records, this.previousPage, BPlusTreePageStore.NO_PAGE);
+            this.free(this.currentPage);
+         } else if (packed && this.packedBytes(records) < 0) {
+            // the last node cannot be packed and is left as it is.
+            final int split = records.size() - this.current.size();
+            this.write(records.subList(0, split), this.previousPage, this.currentPage);
+            this.write(records.subList(split, records.size()), this.currentPage,
+                  BPlusTreePageStore.NO_PAGE);
+         } else {
+            final int split = PagedBPlusTree.this.splitIndex(records, this.leaf);
+            this.write(records.subList(0, split), this.previousPage, this.currentPage);
+            this.write(records.subList(split, records.size()), this.currentPage,
+                  BPlusTreePageStore.NO_PAGE);
+         }
+         return this.separators;
+      }
+
+      /**
+       * Writes a node with the given records. The first record of an internal node other
+       * than the first one moves up to the parent, its child becomes the first child.
+       */
+      private void write(final List<byte[]> records, final int page, final int next) {
+         final BPlusTreePage node = PagedBPlusTree.this.pin(page);
+         node.init(this.leaf);
+         if (this.leaf) {
+            if (this.packedBytes(records) >= 0) {
+               node.pack(records, 0, records.size());
+            } else {
+               node.write(records, 0, records.size());
+            }
+            node.setPrevious(this.written);
+            node.setNext(next);
+            if (page != this.first) {
+               this.separators.add(BPlusTreePage.separator(records.get(0), page));
+            }
+         } else if (page == this.first) {
+            node.setFirstChild(this.firstChild);
+            node.write(records, 0, records.size());
+         } else {
+            node.setFirstChild(BPlusTreePage.child(records.get(0)));
+            node.write(records, 1, records.size());
+            this.separators.add(BPlusTreePage.withChild(records.get(0), page));
+         }
+         PagedBPlusTree.this.unpin(node, true);
+         this.written = page;
+      }
+   }
+
+   private void freeSubtree(final int page) {
+      final BPlusTreePage node = this.pin(page);
+      if (!node.isLeaf()) {
+         for (int i = 0; i <= node.count(); i++) {
+            this.freeSubtree(node.child(i));
+         }
+      }
+      this.unpin(node, false);
+      this.store.free(page);
+   }
+
+   /*****************************************************************************************
+    * Querying
+    ****************************************************************************************/
+
+   /**
+    * Returns whether the index contains the given key.
+    *
+    * @param key
+    *           Key to be looked for in the index.
+    * @return <b>true</b> if the index contains the key. <b>false</b> otherwise.
+    */
+   public boolean contains(final T key) {
+      return this.get(key).hasNext();
+   }
+
+   /**
+    * Returns an iterator for the entries associated with the given key.
+    *
+    * @param key
+    *           Key, whose corresponding entries should be returned.
+    * @return The entries associated with the given key.
+    */
+   public Iterator<Object> get(final T key) {
+      return this.scan(key, PagedBPlusTree.BEFORE, true, false);
+   }
+
+   /**
+    * Returns all entries in the index, that are equal to the given key.
+    *
+    * @param key
+    * @return An iterator containing all elements in the index that are equal to the given
+    *         key.
+    */
+   public Iterator<Object> equal(final T key) {
+      return this.get(key);
+   }
+
+   /**
+    * Returns all entries in the index, that are strictly greater than the given key.
+    *
+    * @param key
+    * @return An iterator containing all elements in the index that are strictly greater
+    *         than the given key.
+    */
+   public Iterator<Object> greater(final T key) {
+      return this.scan(key, PagedBPlusTree.AFTER, false, false);
+   }
+
+   /**
+    * Returns all entries in the index, that are greater than or equal to the given key.
+    *
+    * @param key
+    * @return An iterator containing all elements in the index that are greater than or
+    *         equal to the given key.
+    */
+   public Iterator<Object> greaterOrEqual(final T key) {
+      return this.scan(key, PagedBPlusTree.BEFORE, false, false);
+   }
+
+   /**
+    * Returns all entries in the index, that are strictly less than the given key, starting
+    * with the largest key.
+    *
+    * @param key
+    * @return An iterator containing all elements in the index that are strictly less than
+    *         the given key.
+    */
+   public Iterator<Object> less(final T key) {
+      return this.scan(key, PagedBPlusTree.BEFORE, false, true);
+   }
+
+   /**
+    * Returns all entries in the index, that are less than or equal to the given key,
+    * starting with the largest key.
+    *
+    * @param key
+    * @return An iterator containing all elements in the index that are less than or equal
+    *         to the given key.
+    */
+   public Iterator<Object> lessOrEqual(final T key) {
+      return this.scan(key, PagedBPlusTree.AFTER, false, true);
+   }
+
+   /**
+    * Returns all entries in the index, that are not equal to the given key.
+    *
+    * @param key
+    * @return An iterator containing all elements in the index that are not equal to the
+    *         given key.
+    */
+   public Iterator<Object> notEqual(final T key) {
+      this.readLock.lock();
+      try {
+         final List<Object> result = new ArrayList<Object>();
+         final Path path = this.prefetchExecutor != null ? new Path() : null;
+         BPlusTreePage leaf = this.pin(this.firstLeaf(path));
+         final Prefetch prefetch = path != null ? new Prefetch(path, false) : null;
+         while (true) {
+            for (int i = 0; i < leaf.count(); i++) {
+               if (BPlusTreeKey.compare(key, this.key(leaf, i)) != 0) {
+                  result.add(this.value(leaf, i));
+               }
+            }
+            final int next = leaf.next();
+            this.unpin(leaf, false);
+            if (next == BPlusTreePageStore.NO_PAGE) {
+               return result.iterator();
+            }
+            if (prefetch != null) {
+               prefetch.next(next);
+            }
+            leaf = this.pin(next);
+         }
+      } finally {
+         this.readLock.unlock();
+      }
+   }
+
+   /**
+    * Returns all entries in the index in order.
+    *
+    * @return An Iterator containing all index entries in order.
+    */
+   public Iterator<Object> inOrder() {
+      this.readLock.lock();
+      try {
+         final List<Object> result = new ArrayList<Object>();
+         final Path path = this.prefetchExecutor != null ? new Path() : null;
+         BPlusTreePage leaf = this.pin(this.firstLeaf(path));
+         final Prefetch prefetch = path != null ? new Prefetch(path, false) : null;
+         while (true) {
+            for (int i = 0; i < leaf.count(); i++) {
+               result.add(this.value(leaf, i));
+            }
+            final int next = leaf.next();
+            this.unpin(leaf, false);
+            if (next == BPlusTreePageStore.NO_PAGE) {
+               return result.iterator();
+            }
+            if (prefetch != null) {
+               prefetch.next(next);
+            }
+            leaf = this.pin(next);
+         }
+      } finally {
+         this.readLock.unlock();
+      }
+   }
+
+   /**
+    * Returns the number of entries (key/value pairs) currently stored in the index.
+    *
+    * @return Number of entries in the index.
+    */
+   public int size() {
+      this.readLock.lock();
+      try {
+         int size = 0;
+         final Path path = this.prefetchExecutor != null ? new Path() : null;
+         int page = this.firstLeaf(path);
+         final Prefetch prefetch = path != null ? new Prefetch(path, false) : null;
+         while (page != BPlusTreePageStore.NO_PAGE) {
+            final BPlusTreePage leaf = this.pin(page);
+            size += leaf.count();
+            page = leaf.next();
+            this.unpin(leaf, false);
+            if (prefetch != null && page != BPlusTreePageStore.NO_PAGE) {
+               prefetch.next(page);
+            }
+         }
+         return size;
+      } finally {
+         this.readLock.unlock();
+      }
+   }
+
+   /**
+    * Collects the values of the records from the given position on, either to the right up
+    * to the end of the tree, or to the left down to its beginning.
+    *
+    * @param key
+    *           The key at which the scan starts.
+    * @param bound
+    *           {@link #BEFORE} to start at the first record of the key, {@link #AFTER} to
+    *           start after its last record.
+    * @param equal
+    *           <b>true</b> to stop at the first record of another key.
+    * @param backwards
+    *           <b>true</b> to collect the records before the starting position, in
+    *           descending order.
+    * @return The collected values.
+    */
+   private Iterator<Object> scan(final T key, final int bound, final boolean equal,
+         final boolean backwards) {
+      this.readLock.lock();
+      try {
+         BPlusTreePage leaf = this.descend(key, null, bound, null);
+         int position = this.position(leaf, key, null, bound);
+         if (backwards) {
+            position--;
+         }
+         List<Object> result = null;
+         Prefetch prefetch = null;
+         while (true) {
+            if (backwards) {
+               for (; position >= 0; position--) {
+                  result = this.add(result, this.value(leaf, position));
+               }
+            } else {
+               for (; position < leaf.count(); position++) {
+                  if (equal && BPlusTreeKey.compare(key, this.key(leaf, position)) != 0) {
+                     this.unpin(leaf, false);
+                     return this.iterator(result);
+                  }
+                  result = this.add(result, this.value(leaf, position));
+               }
+            }
+            final int following = backwards ? leaf.previous() : leaf.next();
+            this.unpin(leaf, false);
+            if (following == BPlusTreePageStore.NO_PAGE) {
+               return this.iterator(result);
+            }
+            if (prefetch == null && this.prefetchExecutor != null) {
+               // reading ahead starts with the second leaf, so that lookups are not slowed.
+               final Path path = new Path();
+               this.unpin(this.descend(key, null, bound, path), false);
+               prefetch = new Prefetch(path, backwards);
+            }
+            if (prefetch != null) {
+               prefetch.next(following);
+            }
+            leaf = this.pin(following);
+            position = backwards ? leaf.count() - 1 : 0;
+         }
+      } finally {
+         this.readLock.unlock();
+      }
+   }
+
+   private List<Object> add(final List<Object> list, final Object value) {
+      final List<Object> result = list == null ? new ArrayList<Object>() : list;
+      result.add(value);
+      return result;
+   }
+
+   private Iterator<Object> iterator(final List<Object> list) {
+      if (list == null) {
+         return Collections.emptyIterator();
+      }
+      return list.iterator();
+   }
+
+   /*****************************************************************************************
+    * Preloading
+    ****************************************************************************************/
+
+   /**
+    * Reads the nodes of the given number of levels from the root down into the buffer pool,
+    * so that the first queries after opening the tree find them in memory instead of
+    * reading them one at a time. If an executor has been set by
+    * {@link #setPrefetch(Executor, int)}, the nodes of a level are read by its threads at
+    * the same time. Levels are only preloaded while they fit into half of the frames of the
+    * pool.
+    *
+    * @param levels
+    *           The number of levels, 1 for the root only.
+    * @return The number of nodes preloaded.
+    */
+   public int preload(final int levels) {
+      if (!(this.store instanceof BPlusTreeBufferPool)) {
+         throw new IllegalStateException("The tree is not stored in a buffer pool");
+      }
+      if (levels < 0) {
+         throw new IllegalArgumentException("Number of levels must not be negative. "
+               + "Given: '" + levels + "'");
+      }
+      final BPlusTreeBufferPool pool = (BPlusTreeBufferPool) this.store;
+      this.readLock.lock();
+      try {
+         int preloaded = 0;
+         List<Integer> level = Collections.singletonList(this.store.rootPage());
+         for (int depth = 0; depth < levels && !level.isEmpty()
+               && preloaded + level.size() <= pool.frameCount() / 2; depth++) {
+            this.read(pool, level);
+            final List<Integer> next = new ArrayList<Integer>();
+            for (final int page : level) {
+               final BPlusTreePage node = this.pin(page);
+               if (!node.isLeaf()) {
+                  for (int i = 0; i <= node.count(); i++) {
+                     next.add(node.child(i));
+                  }
+               }
+               this.unpin(node, false);
+            }
+            preloaded += level.size();
+            level = next;
+         }
+         return preloaded;
+      } finally {
+         this.readLock.unlock();
+      }
+   }
+
+   /**
+    * Reads the given pages into the pool with the executor set by
+    * {@link #setPrefetch(Executor, int)} and waits until all of them have been read. Pages
+    * that have not been read by then are read when they are pinned.
+    */
+   private void read(final BPlusTreeBufferPool pool, final List<Integer> pages) {
+      if (this.prefetchExecutor == null) {
+         return;
+      }
+      final CountDownLatch done = new CountDownLatch(pages.size());
+      try {
+         for (final int page : pages) {
+            this.prefetchExecutor.execute(new Runnable() {
+               @Override
+               public void run() {
+                  try {
+                     pool.prefetch(page);
+                  } finally {
+                     done.countDown();
+                  }
+               }
+            });
+         }
+         done.await();
+      } catch (final RejectedExecutionException e) {
+         // the executor has been shut down.
+      } catch (final InterruptedException e) {
+         Thread.currentThread().interrupt();
+      }
+   }
+
+   /*****************************************************************************************
+    * Prefetching
+    ****************************************************************************************/
+
+   /**
+    * Makes scans read the leaves they are going to visit next in the background, while they
+    * collect the records of the current leaf. A scan starts reading ahead when it moves to
+    * its second leaf, so that lookups are not affected. The number of leaves read ahead
+    * adapts to the speed of the scan, up to the given maximum and a quarter of the frames
+    * of the pool.
+    * <p>
+    * Only trees in a {@link BPlusTreeBufferPool} read ahead, the pages of other stores are
+    * in memory or read directly from the file.
+    *
+    * @param executor
+    *           Runs the reads, e.g. a small pool of daemon threads. <code>null</code> to
+    *           stop reading ahead.
+    * @param maxLeaves
+    *           The largest number of leaves read ahead of a scan, at least 1.
+    */
+   public void setPrefetch(final Executor executor, final int maxLeaves) {
+      if (!(this.store instanceof BPlusTreeBufferPool)) {
+         throw new IllegalStateException("The tree is not stored in a buffer pool");
+      }
+      if (executor != null && maxLeaves < 1) {
+         throw new IllegalArgumentException(
+               "Maximum number of leaves must be at least '1'. Given: '" + maxLeaves + "'");
+      }
+      this.writeLock.lock();
+      try {
+         this.prefetchExecutor = executor;
+         this.prefetchLeaves = Math.min(maxLeaves, Math.max(1,
+               ((BPlusTreeBufferPool) this.store).frameCount() / 4));
+      } finally {
+         this.writeLock.unlock();
+      }
+   }
+
+   /**
+    * Requests the leaves ahead of a scan from the executor. Keeps a path to the last leaf
+    * requested and up to depth leaves requested ahead of the scan. The depth is doubled
+    * when the scan reaches a leaf before it has been read, and decreased when the scan
+    * finds its leaves in the pool many times in a row, i.e. when it is slower than the
+    * reads.
+    * Leaves the scan has passed before their read started are not read any more.
+    */
+   private final class Prefetch {
+
+      private final Path path;
+      private final boolean backwards;
+      private final Executor executor;
+      private final BPlusTreeBufferPool pool;
+      private final int maxDepth;
+      private int depth;
+      private int requested;
+      private int ready;
+      private boolean end;
+      private volatile int visited;
+
+      /**
+       * @param path
+       *           The path to the leaf the scan is at.
+       */
+      Prefetch(final Path path, final boolean backwards) {
+         this.path = path;
+         this.backwards = backwards;
+         this.executor = PagedBPlusTree.this.prefetchExecutor;
+         this.pool = (BPlusTreeBufferPool) PagedBPlusTree.this.store;
+         this.maxDepth = PagedBPlusTree.this.prefetchLeaves;
+         this.depth = Math.min(2, this.maxDepth);
+      }
+
+      /**
+       * Called before the scan pins the given leaf, which follows the one it was at.
+       */
+      void next(final int leaf) {
+         this.visited++;
+         if (this.requested == 0) {
+            // nothing is requested ahead, the path moves along with the scan.
+            this.end = !PagedBPlusTree.this.step(this.path, this.backwards);
+         } else {
+            this.requested--;
+            if (!this.pool.contains(leaf)) {
+               this.depth = Math.min(2 * this.depth, this.maxDepth);
+               this.ready = 0;
+            } else if (++this.ready >= 2 * this.depth && this.depth > 1) {
+               this.depth--;
+               this.ready = 0;
+            }
+         }
+         while (!this.end && this.requested < this.depth) {
+            if (!PagedBPlusTree.this.step(this.path, this.backwards)) {
+               this.end = true;
+               return;
+            }
+            final int page = this.path.pages[this.path.depth];
+            final int index = this.visited + this.requested + 1;
+            try {
+               this.executor.execute(new Runnable() {
+                  @Override
+                  public void run() {
+                     if (Prefetch.this.visited < index) {
+                        Prefetch.this.pool.prefetch(page);
+                     }
+                  }
+               });
+            } catch (final RejectedExecutionException e) {
+               // the executor has been shut down, the scan reads its leaves itself.
+               this.depth = 0;
+               return;
+            }
+            this.requested++;
+         }
+      }
+   }
+
+   /*****************************************************************************************
+    * Navigation
+    ****************************************************************************************/
+
+   /**
+    * Descends from the root to the leaf responsible for the given key and value.
+    *
+    * @param key
+    *           The key to be looked for.
+    * @param value
+    *           The bytes of the value, if bound is {@link #EXACT}.
+    * @param bound
+    *           Whether to look for the given value, or for the position before or after all
+    *           values of the key.
+    * @param path
+    *           Receives the path from the root to the leaf. May be <code>null</code>.
+    * @return The leaf, pinned.
+    */
+   private BPlusTreePage descend(final T key, final byte[] value, final int bound,
+         final Path path) {
+      int depth = 0;
+      int page = this.store.rootPage();
+      while (true) {
+         final BPlusTreePage node = this.pin(page);
+         if (path != null) {
+            path.pages[depth] = page;
+            path.depth = depth;
+         }
+         if (node.isLeaf()) {
+            return node;
+         }
+         // the child to the right of the last separator that is not greater than the key.
+         int low = 0;
+         int high = node.count();
+         while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (this.compare(key, value, bound, node, middle) >= 0) {
+               low = middle + 1;
+            } else {
+               high = middle;
+            }
+         }
+         if (path != null) {
+            path.indexes[depth] = low;
+         }
+         page = node.child(low);
+         this.unpin(node, false);
+         depth++;
+      }
+   }
+
+   /**
+    * Returns the index of the first record in the given leaf that is not smaller than the
+    * given key and value.
+    */
+   private int position(final BPlusTreePage leaf, final T key, final byte[] value,
+         final int bound) {
+      if (leaf.isPacked()) {
+         return this.packedPosition(leaf, key, value, bound);
+      }
+      int low = 0;
+      int high = leaf.count();
+      while (low < high) {
+         final int middle = (low + high) >>> 1;
+         if (this.compare(key, value, bound, leaf, middle) > 0) {
+            low = middle + 1;
+         } else {
+            high = middle;
+         }
+      }
+      return low;
+   }
+
+   /**
+    * Like {@link #position(BPlusTreePage, Comparable, byte[], int)} for a packed leaf:
+    * finds the block by the first records of the blocks, whose keys are stored in full,
+    * then decodes the records of the block up to the position.
+    */
+   private int packedPosition(final BPlusTreePage leaf, final T key, final byte[] value,
+         final int bound) {
+      int low = 0;
+      int high = (leaf.count() + BPlusTreePage.BLOCK - 1) / BPlusTreePage.BLOCK;
+      while (low < high) {
+         final int middle = (low + high) >>> 1;
+         if (this.compare(key, value, bound, leaf, middle * BPlusTreePage.BLOCK) > 0) {
+            low = middle + 1;
+         } else {
+            high = middle;
+         }
+      }
+      if (low == 0) {
+         return 0;
+      }
+      int position = (low - 1) * BPlusTreePage.BLOCK + 1;
+      final int end = Math.min(low * BPlusTreePage.BLOCK, leaf.count());
+      while (position < end && this.compare(key, value, bound, leaf, position) > 0) {
+         position++;
+      }
+      return position;
+   }
+
+   /**
+    * Descends from the root to the leftmost leaf.
+    *
+    * @param path
+    *           Receives the path from the root to the leaf. May be <code>null</code>.
+    * @return The page of the leaf.
+    */
+   private int firstLeaf(final Path path) {
+      int depth = 0;
+      int page = this.store.rootPage();
+      while (true) {
+         final BPlusTreePage node = this.pin(page);
+         if (path != null) {
+            path.pages[depth] = page;
+            path.depth = depth;
+            path.indexes[depth] = 0;
+         }
+         if (node.isLeaf()) {
+            this.unpin(node, false);
+            return page;
+         }
+         page = node.firstChild();
+         this.unpin(node, false);
+         depth++;
+      }
+   }
+
+   /**
+    * Moves the given path to the following leaf, to the right or to the left: ascends to
+    * the lowest ancestor with a following child and descends from that child to the nearest
+    * leaf.
+    *
+    * @return <b>false</b> if the path leads to the last leaf in the given direction.
+    */
+   private boolean step(final Path path, final boolean backwards) {
+      int level = path.depth - 1;
+      int page = BPlusTreePageStore.NO_PAGE;
+      while (page == BPlusTreePageStore.NO_PAGE) {
+         if (level < 0) {
+            return false;
+         }
+         final BPlusTreePage node = this.pin(path.pages[level]);
+         final int index = path.indexes[level] + (backwards ? -1 : 1);
+         if (index >= 0 && index <= node.count()) {
+            path.indexes[level] = index;
+            page = node.child(index);
+         } else {
+            level--;
+         }
+         this.unpin(node, false);
+      }
+      for (level++; level < path.depth; level++) {
+         path.pages[level] = page;
+         final BPlusTreePage node = this.pin(page);
+         path.indexes[level] = backwards ? node.count() : 0;
+         page = node.child(path.indexes[level]);
+         this.unpin(node, false);
+      }
+      path.pages[path.depth] = page;
+      return true;
+   }
+
+   /*****************************************************************************************
+    * Records
+    ****************************************************************************************/
+
+   /**
+    * Compares the given key and value to the key and value of a record.
+    *
+    * @param key
+    *           The key to be compared.
+    * @param value
+    *           The bytes of the value to be compared.
+    * @param bound
+    *           {@link #EXACT} to compare the value, {@link #BEFORE} or {@link #AFTER} to
+    *           sort before or after all values of the same key.
+    * @param page
+    *           The page holding the record.
+    * @param index
+    *           The index of the record.
+    * @return A negative integer, zero, or a positive integer as the key and value are less
+    *         than, equal to, or greater than those of the record.
+    */
+   private int compare(final T key, final byte[] value, final int bound,
+         final BPlusTreePage page, final int index) {
+      final int comparison = BPlusTreeKey.compare(key, this.key(page, index));
+      if (comparison != 0 || bound != PagedBPlusTree.EXACT) {
+         return comparison != 0 ? comparison : bound;
+      }
+      final ByteBuffer buffer = page.buffer();
+      final int offset = this.valueOffset(page, index);
+      final int length = this.valueLength(page, index);
+      for (int i = 0; i < Math.min(value.length, length); i++) {
+         final int difference = (value[i] & 0xFF) - (buffer.get(offset + i) & 0xFF);
+         if (difference != 0) {
+            return difference;
+         }
+      }
+      return value.length - length;
+   }
+
+   private T key(final BPlusTreePage page, final int index) {
+      if (page.isPacked()) {
+         final ByteBuffer buffer = ByteBuffer.allocate(8);
+         if (page.keyWidth() == 4) {
+            buffer.putInt(0, (int) page.packedKey(index));
+         } else {
+            buffer.putLong(0, page.packedKey(index));
+         }
+         return this.keySerializer.read(buffer, 0, page.keyWidth());
+      }
+      final int offset = page.offset(index);
+      final int length = page.buffer().getShort(offset) & 0xFFFF;
+      if (length == BPlusTreePage.NULL_KEY) {
+         return null;
+      }
+      return this.keySerializer.read(page.buffer(), offset + 2, length);
+   }
+
+   private Object value(final BPlusTreePage page, final int index) {
+      return this.valueSerializer.read(page.buffer(), this.valueOffset(page, index), this
+            .valueLength(page, index));
+   }
+
+   private int valueOffset(final BPlusTreePage page, final int index) {
+      if (page.isPacked()) {
+         return page.packedValueOffset(index);
+      }
+      final int offset = page.offset(index);
+      final int length = page.buffer().getShort(offset) & 0xFFFF;
+      return offset + 2 + (length == BPlusTreePage.NULL_KEY ? 0 : length);
+   }
+
+   private int valueLength(final BPlusTreePage page, final int index) {
+      if (page.isPacked()) {
+         return page.packedValueLength(index);
+      }
+      return page.offset(index) + page.entryLength(index) - this.valueOffset(page, index);
+   }
+
+   private byte[] valueBytes(final Object value) {
+      final byte[] bytes = new byte[this.valueSerializer.size(value)];
+      this.valueSerializer.write(ByteBuffer.wrap(bytes), 0, value);
+      return bytes;
+   }
+
+   /**
+    * Returns the leaf record for the given key and value.
+    */
+   private byte[] record(final T key, final byte[] value) {
+      final int keyLength = key == null ? 0 : this.keySerializer.size(key);
+      final byte[] record = new byte[2 + keyLength + value.length];
+      if (record.length > this.maxRecordLength) {
+         throw new IllegalArgumentException("Key and value need '" + record.length
+               + "' bytes, but at most '" + this.maxRecordLength
+               + "' bytes fit into a page of '" + this.pageSize + "' bytes");
+      }
+      final ByteBuffer buffer = ByteBuffer.wrap(record);
+      buffer.putShort(0, (short) (key == null ? BPlusTreePage.NULL_KEY : keyLength));
+      if (key != null) {
+         this.keySerializer.write(buffer, 2, key);
+      }
+      System.arraycopy(value, 0, record, 2 + keyLength, value.length);
+      return record;
+   }
+
+   /**
+    * Returns the key of the given leaf record.
+    */
+   private T recordKey(final byte[] record) {
+      final int length = ((record[0] & 0xFF) << 8) | (record[1] & 0xFF);
+      if (length == BPlusTreePage.NULL_KEY) {
+         return null;
+      }
+      return this.keySerializer.read(ByteBuffer.wrap(record), 2, length);
+   }
+
+   /**
+    * Returns the bytes of the value of the given leaf record.
+    */
+   private byte[] recordValue(final byte[] record) {
+      final int length = ((record[0] & 0xFF) << 8) | (record[1] & 0xFF);
+      final int offset = 2 + (length == BPlusTreePage.NULL_KEY ? 0 : length);
+      final byte[] value = new byte[record.length - offset];
+      System.arraycopy(record, offset, value, 0, value.length);
+      return value;
+   }
+
+   /*****************************************************************************************
+    * Pages
+    ****************************************************************************************/
+
+   /**
+    * Appends a modification to the log, if the tree has one, and makes a checkpoint if
+    * necessary. Must be called while holding the write lock.
+    *
+    * @return The log sequence number to be passed to {@link #commit(long)}.
+    */
+   private long log(final byte type, final byte[] contents) {
+      if (this.log == null) {
+         return 0;
+      }
+      final long lsn = this.log.append(type, contents);
+      if (this.pool.needsCheckpoint()) {
+         try {
+            this.pool.checkpoint(true);
+         } catch (final IOException e) {
+            throw new RuntimeException("Could not make a checkpoint", e);
+         }
+      }
+      return lsn;
+   }
+
+   /**
+    * Waits until the logged modification is durable. Called after releasing the write lock,
+    * so that other threads can modify the tree and join the same sync of the log.
+    */
+   private void commit(final long lsn) {
+      if (this.log != null) {
+         try {
+            this.log.commit(lsn);
+         } catch (final IOException e) {
+            throw new RuntimeException("Could not write the log", e);
+         }
+      }
+   }
+
+   private BPlusTreePage pin(final int page) {
+      return new BPlusTreePage(page, this.store.pin(page), this.pageSize);
+   }
+
+   private void unpin(final BPlusTreePage page, final boolean dirty) {
+      this.store.unpin(page.number(), dirty);
+   }
+
+   private BPlusTreePage allocate(final boolean leaf) {
+      final BPlusTreePage page = this.pin(this.store.allocate());
+      page.init(leaf);
+      return page;
+   }
+
+   /*****************************************************************************************
+    * Integrity checking
+    ****************************************************************************************/
+
+   /**
+    * Checks the tree for consistency: the order of the records, the separators, the links
+    * between the leaves, the depth of the leaves and the fill of the nodes.
+    *
+    * @throws IntegrityException
+    *           If the tree is not consistent.
+    */
+   public void checkIntegrity() throws IntegrityException {
+      this.readLock.lock();
+      try {
+         final List<Integer> leaves = new ArrayList<Integer>();
+         this.checkSubtree(this.store.rootPage(), null, null, 0, new int[] { -1 }, leaves);
+         int previous = BPlusTreePageStore.NO_PAGE;
+         for (int i = 0; i < leaves.size(); i++) {
+            final BPlusTreePage leaf = this.pin(leaves.get(i));
+            final int next = i + 1 < leaves.size() ? leaves.get(i + 1)
+                  : BPlusTreePageStore.NO_PAGE;
+            final boolean linked = leaf.previous() == previous && leaf.next() == next;
+            this.unpin(leaf, false);
+            if (!linked) {
+               throw new IntegrityException("Leaf " + leaves.get(i)
+                     + " is not linked to its neighbours " + previous + " and " + next);
+            }
+            previous = leaves.get(i);
+         }
+      } finally {
+         this.readLock.unlock();
+      }
+   }
+
+   /**
+    * Checks the subtree of the given page. All records must lie between low (inclusive) and
+    * high (exclusive), given as leaf records or <code>null</code> if unbounded.
+    */
+   private void checkSubtree(final int page, final byte[] low, final byte[] high,
+         final int depth, final int[] leafDepth, final List<Integer> leaves)
+         throws IntegrityException {
+      final BPlusTreePage node = this.pin(page);
+      try {
+         final int count = node.count();
+         if (page != this.store.rootPage() && node.usedBytes() < this.minimum) {
+            throw new IntegrityException("Node " + page + " is too small: "
+                  + node.usedBytes() + " bytes used");
+         }
+         if (!node.isLeaf() && count == 0 && page == this.store.rootPage()) {
+            throw new IntegrityException("Internal root has no separators");
+         }
+         for (int i = 0; i < count; i++) {
+            if (low != null && this.compareRecord(low, node, i) > 0) {
+               throw new IntegrityException("Record " + i + " of node " + page
+                     + " is smaller than the separator on its left");
+            }
+            if (high != null && this.compareRecord(high, node, i) <= 0) {
+               throw new IntegrityException("Record " + i + " of node " + page
+                     + " is not smaller than the separator on its right");
+            }
+            if (i > 0 && this.compareRecord(this.entry(node, i - 1), node, i) >= 0) {
+               throw new IntegrityException("Wrong order of records " + (i - 1) + " and "
+                     + i + " in node " + page);
+            }
+         }
+         if (node.isLeaf()) {
+            if (leafDepth[0] == -1) {
+               leafDepth[0] = depth;
+            } else if (leafDepth[0] != depth) {
+               throw new IntegrityException("Leaves at depths " + leafDepth[0] + " and "
+                     + depth);
+            }
+            leaves.add(page);
+            return;
+         }
+         for (int i = 0; i <= count; i++) {
+            final byte[] childLow = i == 0 ? low : this.entry(node, i - 1);
+            final byte[] childHigh = i == count ? high : this.entry(node, i);
+            this.checkSubtree(node.child(i), childLow, childHigh, depth + 1, leafDepth,
+                  leaves);
+         }
+      } finally {
+         this.unpin(node, false);
+      }
+   }
+
+   /**
+    * Returns the key and value of the given record as a leaf record.
+    */
+   private byte[] entry(final BPlusTreePage page, final int index) {
+      final byte[] record = page.record(index);
+      final byte[] entry = new byte[page.entryLength(index)];
+      System.arraycopy(record, 0, entry, 0, entry.length);
+      return entry;
+   }
+
+   /**
+    * Compares the given leaf record to the record at the given index.
+    */
+   private int compareRecord(final byte[] record, final BPlusTreePage page,
+         final int index) {
+      return this.compare(this.recordKey(record), this.recordValue(record),
+            PagedBPlusTree.EXACT, page, index);
+   }
+
+}
@@ -0,0 +1,94 @@
+/*
+ * @(#)BPlusTreeCombiningBenchmark.java   1.0   Oct 19, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+import java.util.concurrent.CountDownLatch;
+
+
+/**
+ * Measures the throughput of contended inserts with and without flat combining.
+ * Not part of the unit tests; run it with <code>main</code>, optionally passing the number
+ * of threads and the number of keys per thread.
+ *
+ * @version 1.0
+ */
+public class BPlusTreeCombiningBenchmark {
+
+   private static final int ROUNDS = 5;
+
+   private final int threadCount;
+   private final int keysPerThread;
+
+   public static void main(final String[] args) throws InterruptedException {
+      final int threadCount = args.length > 0 ? Integer.parseInt(args[0]) : Runtime
+            .getRuntime().availableProcessors();
+      final int keysPerThread = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+      new BPlusTreeCombiningBenchmark(threadCount, keysPerThread).run();
+   }
+
+   public BPlusTreeCombiningBenchmark(final int threadCount, final int keysPerThread) {
+      this.threadCount = threadCount;
+      this.keysPerThread = keysPerThread;
+   }
+
+   private void run() throws InterruptedException {
+      System.out.println(this.threadCount + " threads, " + this.keysPerThread
+            + " keys per thread");
+      for (int i = 0; i < BPlusTreeCombiningBenchmark.ROUNDS; i++) {
+         final double locking = this.measure(false);
+         final double combining = this.measure(true);
+         System.out.println("locking: " + Math.round(locking) + " inserts/s, combining: "
+               + Math.round(combining) + " inserts/s, speedup: "
+               + Math.round(combining / locking * 100) / 100.0);
+      }
+   }
+
+   /**
+    * Inserts the keys of all threads concurrently into a new tree.
+    *
+    * @param combining
+    *          Whether the tree combines the inserts.
+    * @return The number of inserts per second.
+    */
+   private double measure(final boolean combining) throws InterruptedException {
+      final BPlusTree<Integer> tree = new BPlusTree<Integer>(64);
+      tree.setCombining(combining);
+      final CountDownLatch start = new CountDownLatch(1);
+      final Thread[] threads = new Thread[this.threadCount];
+      for (int i = 0; i < this.threadCount; i++) {
+         final int offset = i;
+         threads[i] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               try {
+                  start.await();
+               } catch (final InterruptedException e) {
+                  return;
+               }
+               final int step = BPlusTreeCombiningBenchmark.this.threadCount;
+               for (int j = 0; j < BPlusTreeCombiningBenchmark.this.keysPerThread; j++) {
+                  final Integer key = Integer.valueOf(j * step + offset);
+                  tree.insert(key, key);
+               }
+            }
+         });
+         threads[i].start();
+      }
+      final long begin = System.nanoTime();
+      start.countDown();
+      for (final Thread thread : threads) {
+         thread.join();
+      }
+      final long elapsed = System.nanoTime() - begin;
+      return (double) this.threadCount * this.keysPerThread * 1e9 / elapsed;
+   }
+
+}
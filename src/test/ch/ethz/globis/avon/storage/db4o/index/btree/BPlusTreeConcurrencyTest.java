@@ -12,14 +12,17 @@ package ch.ethz.globis.avon.storage.db4o.index.btree;
 
 import java.util.Random;
 
+import org.junit.Assert;
 import org.junit.Test;
 
 import ch.ethz.globis.avon.storage.db4o.index.btree.BPlusTree;
+import ch.ethz.globis.avon.storage.db4o.index.btree.IntegrityException;
 
 
 public class BPlusTreeConcurrencyTest {
 
    private static final int THREAD_COUNT = 5;
+   private static final int KEYS_PER_THREAD = 2000;
 
    private BPlusTree<Integer> tree;
    private Thread[] threads;
@@ -33,6 +36,42 @@ public class BPlusTreeConcurrencyTest {
       this.run();
    }
 
+   @Test
+   public void combining() throws InterruptedException, IntegrityException {
+      this.tree = new BPlusTree<Integer>(3);
+      this.tree.setCombining(true);
+      this.threads = new Thread[BPlusTreeConcurrencyTest.THREAD_COUNT];
+      for (int i = 0; i < BPlusTreeConcurrencyTest.THREAD_COUNT; i++) {
+         final int offset = i;
+         this.threads[i] = new Thread(new Runnable() {
+            @Override
+            public void run() {
+               final BPlusTree<Integer> tree = BPlusTreeConcurrencyTest.this.tree;
+               // insert all keys of this thread, then remove every other one again
+               for (int j = 0; j < BPlusTreeConcurrencyTest.KEYS_PER_THREAD; j++) {
+                  final int key = j * BPlusTreeConcurrencyTest.THREAD_COUNT + offset;
+                  tree.insert(key, key);
+               }
+               for (int j = 0; j < BPlusTreeConcurrencyTest.KEYS_PER_THREAD; j += 2) {
+                  final int key = j * BPlusTreeConcurrencyTest.THREAD_COUNT + offset;
+                  tree.remove(key, key);
+               }
+            }
+         });
+      }
+      for (int i = 0; i < BPlusTreeConcurrencyTest.THREAD_COUNT; i++) {
+         this.threads[i].start();
+      }
+      for (int i = 0; i < BPlusTreeConcurrencyTest.THREAD_COUNT; i++) {
+         this.threads[i].join();
+      }
+      this.tree.checkIntegrity();
+      Assert.assertEquals(BPlusTreeConcurrencyTest.THREAD_COUNT
+            * BPlusTreeConcurrencyTest.KEYS_PER_THREAD / 2, this.tree.size());
+      Assert.assertFalse(this.tree.contains(0));
+      Assert.assertTrue(this.tree.contains(BPlusTreeConcurrencyTest.THREAD_COUNT));
+   }
+
    private void run() {
       this.tree = new BPlusTree<Integer>(3);
       this.threads = new Thread[BPlusTreeConcurrencyTest.THREAD_COUNT];
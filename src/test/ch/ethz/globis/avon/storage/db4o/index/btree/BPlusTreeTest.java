@@ -11,8 +11,18 @@
 package ch.ethz.globis.avon.storage.db4o.index.btree;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.management.ManagementFactory;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
 
 import com.db4o.Db4oEmbedded;
 import com.db4o.ObjectContainer;
@@ -36,6 +46,7 @@ public class BPlusTreeTest extends AbstractBPlusTreeTest {
    private static final int RANDOMISED_TEST_MAX_KEY = 1000;
    private static final int RANDOMISED_TEST_MIN_ITERATIONS = 100;
    private static final int RANDOMISED_TEST_MAX_ITERATIONS = 1000;
+   private static final int ALLOCATION_TEST_ROUNDS = 10;
 
 
    @Test(expected = IllegalArgumentException.class)
@@ -162,6 +173,338 @@ public class BPlusTreeTest extends AbstractBPlusTreeTest {
    }
 
 
+   @Test
+   public void insertAll() throws IntegrityException {
+      this.setTree(new BPlusTree<Integer>(2));
+      final List<Map.Entry<Integer, Object>> entries = this.entries(0, 100);
+      Collections.shuffle(entries);
+      this.tree().insertAll(entries);
+      this.tree().checkIntegrity();
+      Assert.assertEquals(100, this.tree().size());
+      for (int i = 0; i < 100; i++) {
+         Assert.assertTrue(this.tree().contains(i));
+      }
+      Assert.assertFalse(this.tree().contains(100));
+   }
+
+   @Test
+   public void removeAll() throws IntegrityException {
+      this.setTree(new BPlusTree<Integer>(2));
+      this.tree().insertAll(this.entries(0, 100));
+      final List<Map.Entry<Integer, Object>> entries = this.entries(20, 70);
+      Collections.shuffle(entries);
+      this.tree().removeAll(entries);
+      this.tree().checkIntegrity();
+      Assert.assertEquals(50, this.tree().size());
+      Assert.assertTrue(this.tree().contains(19));
+      Assert.assertFalse(this.tree().contains(20));
+      Assert.assertFalse(this.tree().contains(69));
+      Assert.assertTrue(this.tree().contains(70));
+   }
+
+   @Test
+   public void bulkLoad() throws IntegrityException {
+      for (int order = 2; order < 6; order++) {
+         for (int count = 0; count < 200; count += 7) {
+            this.setTree(new BPlusTree<Integer>(order));
+            this.tree().bulkLoad(this.entries(0, count).iterator(), 0.7);
+            this.tree().checkIntegrity();
+            Assert.assertEquals(count, this.tree().size());
+            // the tree must still be usable as usual after loading
+            this.tree().insert(count, count);
+            this.tree().remove(0, 0);
+            this.tree().checkIntegrity();
+            Assert.assertEquals(count, this.tree().size());
+         }
+      }
+   }
+
+   @Test
+   public void bulkLoadUnsorted() throws IntegrityException {
+      this.setTree(new BPlusTree<Integer>(3));
+      this.insertKeys();
+      final List<Map.Entry<Integer, Object>> entries = this.entries(0, 100);
+      entries.add(new AbstractMap.SimpleEntry<Integer, Object>(50, "fifty"));
+      Collections.shuffle(entries);
+      this.tree().bulkLoad(entries.iterator(), 1.0, true);
+      this.tree().checkIntegrity();
+      Assert.assertEquals(101, this.tree().size());
+      Assert.assertEquals(2, this.printIterator(this.tree().equal(50)));
+   }
+
+   @Test
+   public void bulkLoadParallel() throws IntegrityException {
+      final ForkJoinPool pool = new ForkJoinPool(4);
+      try {
+         for (int order = 2; order < 6; order++) {
+            this.setTree(new BPlusTree<Integer>(order));
+            final List<Map.Entry<Integer, Object>> entries = this.entries(0, 5000);
+            entries.add(new AbstractMap.SimpleEntry<Integer, Object>(2500, "second"));
+            Collections.shuffle(entries);
+            this.tree().bulkLoadParallel(entries, 0.8, pool);
+            this.tree().checkIntegrity();
+            Assert.assertEquals(5001, this.tree().size());
+            Assert.assertEquals(2, this.printIterator(this.tree().equal(2500)));
+         }
+      } finally {
+         pool.shutdown();
+      }
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void bulkLoadNotSorted() {
+      this.setTree(new BPlusTree<Integer>(2));
+      final List<Map.Entry<Integer, Object>> entries = this.entries(0, 10);
+      Collections.reverse(entries);
+      this.tree().bulkLoad(entries.iterator(), 1.0);
+   }
+
+   @Test
+   public void snapshot() throws IOException, IntegrityException {
+      final File file = File.createTempFile("tree_test", ".snapshot");
+      try {
+         final BPlusTree<Integer> tree = new BPlusTree<Integer>(4);
+         // keys with several values, and a key with enough values to fill several blocks.
+         for (int i = 0; i < 50000; i++) {
+            tree.insert(i % 20000, i);
+         }
+         for (int i = 0; i < 20000; i++) {
+            tree.insert(-1, i);
+         }
+         tree.writeSnapshot(file.toPath(), BPlusTreeSerializer.INTEGER,
+               BPlusTreeSerializer.INTEGER);
+
+         final BPlusTree<Integer> loaded = new BPlusTree<Integer>(4);
+         loaded.insert(100000, 0);
+         loaded.readSnapshot(file.toPath(), BPlusTreeSerializer.INTEGER,
+               BPlusTreeSerializer.INTEGER, 0.8);
+         loaded.checkIntegrity();
+         Assert.assertEquals(70000, loaded.size());
+         final Iterator<Object> expected = tree.inOrder();
+         final Iterator<Object> actual = loaded.inOrder();
+         while (expected.hasNext()) {
+            Assert.assertEquals(expected.next(), actual.next());
+         }
+         Assert.assertFalse(loaded.contains(100000));
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void snapshotDamaged() throws IOException {
+      final File file = File.createTempFile("tree_test", ".snapshot");
+      try {
+         final BPlusTree<Integer> tree = new BPlusTree<Integer>(4);
+         for (int i = 0; i < 50000; i++) {
+            tree.insert(i, i);
+         }
+         tree.writeSnapshot(file.toPath(), BPlusTreeSerializer.INTEGER,
+               BPlusTreeSerializer.INTEGER);
+         final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+         randomAccessFile.seek(randomAccessFile.length() / 2);
+         final int b = randomAccessFile.read();
+         randomAccessFile.seek(randomAccessFile.length() / 2);
+         randomAccessFile.write(b ^ 1);
+         randomAccessFile.close();
+
+         final BPlusTree<Integer> loaded = new BPlusTree<Integer>(4);
+         loaded.insert(1, 1);
+         try {
+            loaded.readSnapshot(file.toPath(), BPlusTreeSerializer.INTEGER,
+                  BPlusTreeSerializer.INTEGER, 1.0);
+            Assert.fail();
+         } catch (final IOException e) {
+            // the tree is left as it was.
+            Assert.assertEquals(1, loaded.size());
+         }
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void removeRange() throws IntegrityException {
+      for (int order = 2; order < 6; order++) {
+         for (int low = 0; low < 300; low += 37) {
+            for (int high = low; high < 320; high += 53) {
+               this.setTree(new BPlusTree<Integer>(order));
+               if (low % 2 == 0) {
+                  this.tree().bulkLoad(this.entries(0, 300).iterator(), 0.8);
+               } else {
+                  for (int i = 0; i < 300; i++) {
+                     this.tree().insert(i, i);
+                  }
+               }
+               this.tree().removeRange(low, high);
+               this.tree().checkIntegrity();
+               final int removed = Math.min(high, 300) - low;
+               Assert.assertEquals(300 - removed, this.tree().size());
+               Assert.assertEquals(300 - low - removed, this.printIterator(this.tree()
+                     .greaterOrEqual(low)));
+               Assert.assertEquals(high == low ? 1 : 0, this.printIterator(this.tree().equal(
+                     low)));
+               // the tree must still be usable as usual afterwards
+               this.tree().insert(low, low);
+               this.tree().checkIntegrity();
+            }
+         }
+      }
+   }
+
+   @Test
+   public void removeRangeAll() throws IntegrityException {
+      this.setTree(new BPlusTree<Integer>(3));
+      this.insertKeys();
+      this.tree().removeRange(Integer.MIN_VALUE, Integer.MAX_VALUE);
+      this.tree().checkIntegrity();
+      Assert.assertEquals(0, this.tree().size());
+      this.insertKeys();
+      this.tree().checkIntegrity();
+   }
+
+   @Test
+   public void append() throws IntegrityException {
+      for (int order = 2; order < 6; order++) {
+         this.setTree(new BPlusTree<Integer>(order));
+         for (int i = 0; i < 500; i++) {
+            this.tree().insert(i, i);
+            if (i % 2 == 0) {
+               this.tree().insert(i, "second");
+            }
+            if (i % 10 == 9) {
+               // removals and inserts elsewhere must not confuse the appends
+               this.tree().remove(i - 4, i - 4);
+               this.tree().remove(i, i);
+               this.tree().insert(-i, -i);
+            }
+         }
+         this.tree().checkIntegrity();
+         Assert.assertEquals(700, this.tree().size());
+         Assert.assertEquals(2, this.printIterator(this.tree().equal(498)));
+         Assert.assertEquals(1, this.printIterator(this.tree().equal(497)));
+         Assert.assertEquals(0, this.printIterator(this.tree().equal(499)));
+      }
+   }
+
+   @Test
+   public void splitPolicies() throws IntegrityException {
+      for (final BPlusTreeSplitPolicy policy : BPlusTreeSplitPolicy.values()) {
+         for (int order = 2; order < 6; order++) {
+            this.setTree(new BPlusTree<Integer>(order));
+            this.tree().setSplitPolicy(policy);
+            this.tree().setLeafMinimum(1);
+            for (int i = 0; i < 300; i++) {
+               this.tree().insert(i, i);
+               this.tree().insert(-i - 1, -i - 1);
+            }
+            this.tree().insertAll(this.entries(1000, 1100));
+            this.tree().checkIntegrity();
+            Assert.assertEquals(700, this.tree().size());
+            for (int i = -300; i < 300; i += 3) {
+               this.tree().remove(i, i);
+            }
+            this.tree().checkIntegrity();
+            Assert.assertEquals(500, this.tree().size());
+         }
+      }
+   }
+
+   @Test
+   public void separateOrders() throws IntegrityException {
+      final int[][] orders = { { 2, 7 }, { 7, 2 }, { 3, 16 } };
+      for (final int[] order : orders) {
+         this.setTree(new BPlusTree<Integer>(order[0], order[1]));
+         for (int i = 0; i < 500; i++) {
+            this.tree().insert((i * 7) % 500, i);
+         }
+         this.tree().checkIntegrity();
+         for (int i = 0; i < 500; i += 2) {
+            this.tree().remove(i, (i * 143) % 500);
+         }
+         this.tree().checkIntegrity();
+         Assert.assertEquals(250, this.tree().size());
+         this.tree().bulkLoad(this.entries(0, 1000).iterator(), 1.0);
+         this.tree().checkIntegrity();
+         Assert.assertEquals(1000, this.tree().size());
+      }
+      this.setTree(BPlusTree.<Integer> forNodeSize(BPlusTree.DEFAULT_NODE_BYTES, 4, 12));
+      this.tree().insertAll(this.entries(0, 300));
+      this.tree().checkIntegrity();
+      Assert.assertEquals(300, this.tree().size());
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void nodeSizeTooSmall() {
+      BPlusTree.<Integer> forNodeSize(32, 8, 8);
+   }
+
+   @Test
+   public void leafMinimum() throws IntegrityException {
+      this.setTree(new BPlusTree<Integer>(4));
+      this.tree().insertAll(this.entries(0, 200));
+      this.tree().setLeafMinimum(1);
+      for (int i = 0; i < 200; i++) {
+         if (i % 7 != 0) {
+            this.tree().remove(i, i);
+         }
+      }
+      this.tree().checkIntegrity();
+      Assert.assertEquals(29, this.tree().size());
+      this.tree().rebalance();
+      this.tree().setLeafMinimum(3);
+      this.tree().checkIntegrity();
+      Assert.assertEquals(29, this.tree().size());
+      Assert.assertTrue(this.tree().contains(196));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void leafMinimumInvalid() {
+      this.setTree(new BPlusTree<Integer>(4));
+      this.tree().setLeafMinimum(4);
+   }
+
+   @Test
+   public void compact() throws IntegrityException {
+      for (int order = 2; order < 6; order++) {
+         this.setTree(new BPlusTree<Integer>(order));
+         for (int i = 0; i < 1000; i++) {
+            this.tree().insert(i, i);
+         }
+         for (int i = 0; i < 1000; i++) {
+            if (i % 5 != 0) {
+               this.tree().remove(i, i);
+            }
+         }
+         this.tree().compact();
+         this.tree().checkIntegrity();
+         Assert.assertEquals(200, this.tree().size());
+         Assert.assertEquals(100, this.printIterator(this.tree().greaterOrEqual(500)));
+         this.tree().compact(1.0);
+         this.tree().checkIntegrity();
+         Assert.assertEquals(200, this.tree().size());
+         // the tree must still be usable as usual afterwards
+         this.tree().insert(1, 1);
+         this.tree().remove(5, 5);
+         this.tree().checkIntegrity();
+         Assert.assertEquals(200, this.tree().size());
+      }
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void removeRangeInvalid() {
+      this.setTree(new BPlusTree<Integer>(2));
+      this.tree().removeRange(10, 5);
+   }
+
+   private List<Map.Entry<Integer, Object>> entries(final int from, final int to) {
+      final List<Map.Entry<Integer, Object>> entries = new ArrayList<Map.Entry<Integer, Object>>();
+      for (int i = from; i < to; i++) {
+         entries.add(new AbstractMap.SimpleEntry<Integer, Object>(i, i));
+      }
+      return entries;
+   }
+
    @Test
    public void randomisedTests() throws IntegrityException {
       // test small values for treeOrder thoroughly, as problems occur here more often
@@ -259,10 +602,210 @@ public class BPlusTreeTest extends AbstractBPlusTreeTest {
       }
    }
 
+   @Test
+   public void lookupActivations() {
+      this.setTree(new BPlusTree<Integer>(2));
+      final String dbFileName = "tree_test.db4o";
+      ObjectContainer db = Db4oEmbedded.openFile(this.configuration(), dbFileName);
+      try {
+         for (int i = 0; i < 1000; i++) {
+            this.tree().insert(i, i);
+         }
+         db.store(this.tree());
+         db.commit();
+         db.close();
+         this.setTree(null);
+
+         db = Db4oEmbedded.openFile(this.configuration(), dbFileName);
+         final Query query = db.query();
+         query.constrain(BPlusTree.class);
+         final ObjectSet<Object> result = query.execute();
+         this.setTree((BPlusTree<Integer>) result.next());
+
+         // a lookup reads one node per level, which are less than ten for order 2.
+         Assert.assertTrue(this.tree().contains(500));
+         Assert.assertTrue(this.tree().lastQueryVisits() <= 10);
+         Assert.assertTrue(this.tree().lastQueryActivations() > 0);
+         Assert.assertTrue(this.tree().lastQueryActivations() <= this.tree()
+               .lastQueryVisits());
+         // the nodes are active now.
+         Assert.assertTrue(this.tree().contains(500));
+         Assert.assertEquals(0, this.tree().lastQueryActivations());
+      } finally {
+         db.close();
+         new File(dbFileName).delete();
+      }
+   }
+
+   @Test
+   public void preload() {
+      this.setTree(new BPlusTree<Integer>(2));
+      final String dbFileName = "tree_test.db4o";
+      ObjectContainer db = Db4oEmbedded.openFile(this.configuration(), dbFileName);
+      try {
+         for (int i = 0; i < 1000; i++) {
+            this.tree().insert(i, i);
+         }
+         this.tree().setPreloadLevels(3);
+         db.store(this.tree());
+         db.commit();
+         db.close();
+         this.setTree(null);
+
+         db = Db4oEmbedded.openFile(this.configuration(), dbFileName);
+         final Query query = db.query();
+         query.constrain(BPlusTree.class);
+         final ObjectSet<Object> result = query.execute();
+         this.setTree((BPlusTree<Integer>) result.next());
+
+         // the top three levels have been activated with the tree.
+         Assert.assertTrue(this.tree().contains(500));
+         Assert.assertTrue(this.tree().lastQueryActivations() <= this.tree()
+               .lastQueryVisits() - 3);
+         // all levels.
+         Assert.assertTrue(this.tree().preload(64) > 0);
+         Assert.assertTrue(this.tree().contains(123));
+         Assert.assertEquals(0, this.tree().lastQueryActivations());
+      } finally {
+         db.close();
+         new File(dbFileName).delete();
+      }
+   }
+
+   @Test
+   public void flushChanges() throws IntegrityException {
+      this.setTree(new BPlusTree<Integer>(2));
+      final String dbFileName = "tree_test.db4o";
+      ObjectContainer db = Db4oEmbedded.openFile(this.configuration(), dbFileName);
+      try {
+         for (int i = 0; i < 1000; i += 2) {
+            this.tree().insert(i, i);
+         }
+         this.tree().flush(db);
+         db.commit();
+         // nothing has changed since.
+         Assert.assertEquals(0, this.tree().flush(db));
+
+         // another value for a key only changes the leaf of the key, also after a removal
+         // has reset the leaf the tree remembers.
+         this.tree().insert(0, -1);
+         Assert.assertEquals(1, this.tree().flush(db));
+         this.tree().remove(500, 500);
+         this.tree().flush(db);
+         this.tree().insert(2, -2);
+         Assert.assertEquals(1, this.tree().flush(db));
+         this.tree().remove(2, -2);
+         Assert.assertEquals(1, this.tree().flush(db));
+
+         // an insert changes the leaf and the nodes split on the way to the root.
+         this.tree().insert(501, 501);
+         Assert.assertTrue(this.tree().flush(db) > 0);
+         db.commit();
+         db.close();
+         this.setTree(null);
+
+         db = Db4oEmbedded.openFile(this.configuration(), dbFileName);
+         final Query query = db.query();
+         query.constrain(BPlusTree.class);
+         final ObjectSet<Object> result = query.execute();
+         this.setTree((BPlusTree<Integer>) result.next());
+         this.tree().checkIntegrity();
+         Assert.assertTrue(this.tree().contains(501));
+         Assert.assertEquals(502, this.tree().size());
+      } finally {
+         db.close();
+         new File(dbFileName).delete();
+      }
+   }
+
+   private int nodeCount(final ObjectContainer db) {
+      final Query query = db.query();
+      query.constrain(BPlusTreeNode.class);
+      return query.execute().size();
+   }
+
+   @Test
+   public void removeRangeDeletesNodes() throws IntegrityException {
+      this.setTree(new BPlusTree<Integer>(2));
+      final String dbFileName = "tree_test.db4o";
+      ObjectContainer db = Db4oEmbedded.openFile(this.configuration(), dbFileName);
+      try {
+         for (int i = 0; i < 1000; i++) {
+            this.tree().insert(i, i);
+         }
+         this.tree().flush(db);
+         db.commit();
+         final int nodes = this.nodeCount(db);
+
+         // the dropped subtrees are deleted with the next flush.
+         this.tree().removeRange(100, 900);
+         Assert.assertEquals(nodes, this.nodeCount(db));
+         this.tree().flush(db);
+         db.commit();
+         Assert.assertTrue(this.nodeCount(db) < nodes / 4);
+         db.close();
+         this.setTree(null);
+
+         db = Db4oEmbedded.openFile(this.configuration(), dbFileName);
+         final Query query = db.query();
+         query.constrain(BPlusTree.class);
+         final ObjectSet<Object> result = query.execute();
+         this.setTree((BPlusTree<Integer>) result.next());
+         this.tree().checkIntegrity();
+         Assert.assertEquals(200, this.tree().size());
+      } finally {
+         db.close();
+         new File(dbFileName).delete();
+      }
+   }
+
+   @Test
+   public void releaseNodes() throws IntegrityException {
+      this.setTree(new BPlusTree<Integer>(2));
+      final String dbFileName = "tree_test.db4o";
+      final ObjectContainer db = Db4oEmbedded.openFile(this.configuration(), dbFileName);
+      try {
+         for (int i = 0; i < 1000; i++) {
+            this.tree().insert(i, i);
+         }
+         // changed nodes are not released before they have been stored.
+         Assert.assertEquals(0, this.tree().release(db, 10));
+         this.tree().flush(db);
+         db.commit();
+         Assert.assertTrue(this.tree().release(db, 10) > 0);
+
+         // released nodes are activated again when they are needed.
+         for (int i = 0; i < 1000; i++) {
+            Assert.assertTrue(this.tree().contains(i));
+         }
+         this.tree().checkIntegrity();
+      } finally {
+         db.close();
+         new File(dbFileName).delete();
+      }
+   }
+
+   @Test
+   public void storedArrays() {
+      final BPlusTreeNode<Integer> leaf = new BPlusTreeNode<Integer>(3, true);
+      leaf.insert(2, "a");
+      leaf.insert(2, "b");
+      leaf.insert(null, "c");
+      leaf.insert(5, "d");
+      // db4o copies keys and values into arrays before storing the node and builds them
+      // up again after reading it.
+      leaf.objectCanNew(null);
+      leaf.objectOnActivate(null);
+      Assert.assertEquals(Arrays.asList("a", "b"), leaf.search(2));
+      Assert.assertEquals(Collections.singletonList("c"), leaf.search(null));
+      Assert.assertEquals(Collections.singletonList("d"), leaf.search(5));
+      Assert.assertEquals(3, leaf.keyCount());
+   }
+
    private EmbeddedConfiguration configuration() {
       final EmbeddedConfiguration configuration = Db4oEmbedded.newConfiguration();
       configuration.common().add(new TransparentPersistenceSupport());
-      configuration.common().objectClass(BPlusTree.class).callConstructor(true);
+      BPlusTree.configure(configuration);
       return configuration;
    }
 
@@ -275,6 +818,55 @@ public class BPlusTreeTest extends AbstractBPlusTreeTest {
       this.printIterator(iterator);
    }
 
+   @Test
+   public void separators() {
+      Assert.assertEquals("http://a.org/b", BPlusTreeKey.separator("http://a.org/abc",
+            "http://a.org/bcd"));
+      Assert.assertEquals("abc", BPlusTreeKey.separator("abc", "abcd"));
+      Assert.assertEquals("abcd", BPlusTreeKey.separator("abc", "abcde"));
+      Assert.assertEquals(Integer.valueOf(3), BPlusTreeKey.separator(3, 7));
+   }
+
+   @Test
+   public void shortenedSeparators() throws IntegrityException {
+      final BPlusTree<String> tree = new BPlusTree<String>(2, 3);
+      final List<String> keys = new ArrayList<String>();
+      for (int i = 0; i < 300; i++) {
+         keys.add("http://www.example.com/" + Integer.toString(i * 7 % 300, 3) + "/index");
+      }
+      for (final String key : keys) {
+         tree.insert(key, key);
+      }
+      tree.checkIntegrity();
+      final List<String> removed = new ArrayList<String>();
+      for (int i = 0; i < 300; i += 3) {
+         tree.remove(keys.get(i), keys.get(i));
+         removed.add(keys.get(i));
+      }
+      tree.checkIntegrity();
+      Assert.assertEquals(200, tree.size());
+      // keys that fall between the largest key of a leaf and the separator next to it
+      Assert.assertFalse(tree.contains("http://www.example.com/1"));
+      Assert.assertFalse(tree.contains("http://www.example.com/10/index0"));
+      final List<String> sorted = new ArrayList<String>(keys);
+      Collections.sort(sorted);
+      int expected = 0;
+      for (int i = 0; i < 300; i++) {
+         final String key = sorted.get(i);
+         Assert.assertEquals(!removed.contains(key), tree.contains(key));
+         if (i > 150 && !removed.contains(key)) {
+            expected++;
+         }
+      }
+      int count = 0;
+      final Iterator<Object> iterator = tree.greater(sorted.get(150));
+      while (iterator.hasNext()) {
+         iterator.next();
+         count++;
+      }
+      Assert.assertEquals(expected, count);
+   }
+
 
 
    @Test
@@ -319,6 +911,63 @@ public class BPlusTreeTest extends AbstractBPlusTreeTest {
       Assert.assertEquals(3, count);
    }
 
+   @Test
+   public void removeEntryOfPivot() throws IntegrityException {
+      this.setTree(new BPlusTree<Integer>(2));
+      for (int i = 0; i < 20; i++) {
+         this.tree().insert(i, i);
+         this.tree().insert(i, -i - 1);
+      }
+      // every key is removed while it still has a second entry, pivots included.
+      for (int i = 0; i < 20; i++) {
+         this.tree().remove(i, -i - 1);
+         this.tree().checkIntegrity();
+      }
+      Assert.assertEquals(20, this.tree().size());
+      for (int i = 0; i < 20; i++) {
+         this.tree().remove(i, i);
+         this.tree().checkIntegrity();
+      }
+      Assert.assertEquals(0, this.tree().size());
+   }
+
+   @Test
+   public void allocationFree() {
+      final java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+         return;
+      }
+      final com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+      final long thread = Thread.currentThread().getId();
+      this.setTree(new BPlusTree<Integer>(8));
+      final Integer[] keys = new Integer[1000];
+      final Integer[] others = new Integer[1000];
+      for (int i = 0; i < keys.length; i++) {
+         keys[i] = 2 * i;
+         others[i] = 2 * i + 1;
+         this.tree().insert(keys[i], keys[i]);
+         this.tree().insert(keys[i], others[i]);
+      }
+      // the least allocation of several rounds: the JIT compiler and the refill of the
+      // thread's allocation buffer may allocate in any round, the lookups must not allocate
+      // in all of them.
+      long allocated = Long.MAX_VALUE;
+      for (int round = 0; round < BPlusTreeTest.ALLOCATION_TEST_ROUNDS; round++) {
+         final long before = threads.getThreadAllocatedBytes(thread);
+         for (int i = 0; i < keys.length; i++) {
+            this.tree().contains(keys[i]);
+            this.tree().contains(others[i]);
+            this.tree().get(others[i]);
+            this.tree().remove(keys[i], others[i]);
+         }
+         allocated = Math.min(allocated, threads.getThreadAllocatedBytes(thread) - before);
+         for (int i = 0; i < keys.length; i++) {
+            this.tree().insert(keys[i], others[i]);
+         }
+      }
+      Assert.assertEquals(0, allocated);
+   }
+
    @Test
    public void nullKeys() {
       this.setTree(new BPlusTree<String>(2));
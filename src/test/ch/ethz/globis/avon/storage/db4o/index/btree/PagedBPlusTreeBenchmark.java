@@ -0,0 +1,119 @@
+/*
+ * @(#)PagedBPlusTreeBenchmark.java   1.0   Oct 19, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+import java.io.File;
+import java.io.IOException;
+
+import com.db4o.Db4oEmbedded;
+import com.db4o.ObjectContainer;
+import com.db4o.ObjectSet;
+import com.db4o.config.EmbeddedConfiguration;
+import com.db4o.query.Query;
+import com.db4o.ta.TransparentPersistenceSupport;
+
+
+/**
+ * Compares storing and querying a tree in db4o to a {@link PagedBPlusTree} in a page file.
+ * Not part of the unit tests; run it with <code>main</code>, optionally passing the number
+ * of keys. Both files are created in the temporary directory and deleted afterwards.
+ *
+ * @version 1.0
+ */
+public class PagedBPlusTreeBenchmark {
+
+   private final int count;
+
+   public static void main(final String[] args) throws IOException {
+      final int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+      final PagedBPlusTreeBenchmark benchmark = new PagedBPlusTreeBenchmark(count);
+      benchmark.db4o();
+      benchmark.pageFile();
+   }
+
+   public PagedBPlusTreeBenchmark(final int count) {
+      this.count = count;
+   }
+
+   @SuppressWarnings("unchecked")
+   private void db4o() throws IOException {
+      final File file = File.createTempFile("tree_benchmark", ".db4o");
+      // db4o creates the file itself.
+      file.delete();
+      final EmbeddedConfiguration configuration = Db4oEmbedded.newConfiguration();
+      configuration.common().add(new TransparentPersistenceSupport());
+      BPlusTree.configure(configuration);
+      final long start = System.currentTimeMillis();
+      ObjectContainer db = Db4oEmbedded.openFile(configuration, file.getPath());
+      try {
+         final BPlusTree<Integer> tree = new BPlusTree<Integer>(16);
+         db.store(tree);
+         for (int i = 0; i < this.count; i++) {
+            tree.insert(i * 7 % this.count, i);
+         }
+         db.commit();
+         db.close();
+         final long stored = System.currentTimeMillis();
+
+         db = Db4oEmbedded.openFile(configuration, file.getPath());
+         final Query query = db.query();
+         query.constrain(BPlusTree.class);
+         final ObjectSet<Object> result = query.execute();
+         final BPlusTree<Integer> loaded = (BPlusTree<Integer>) result.next();
+         for (int i = 0; i < this.count; i++) {
+            if (!loaded.contains(i)) {
+               throw new IllegalStateException("Key " + i + " is missing in db4o");
+            }
+         }
+         System.out.println("db4o: storing " + (stored - start) + "ms, querying "
+               + (System.currentTimeMillis() - stored) + "ms, file size " + file.length()
+               + " bytes");
+      } finally {
+         db.close();
+         file.delete();
+      }
+   }
+
+   private void pageFile() throws IOException {
+      final File file = File.createTempFile("tree_benchmark", ".pages");
+      try {
+         final long start = System.currentTimeMillis();
+         BPlusTreeFilePageStore store = new BPlusTreeFilePageStore(file, 4096);
+         final PagedBPlusTree<Integer> tree = this.integerTree(store);
+         for (int i = 0; i < this.count; i++) {
+            tree.insert(i * 7 % this.count, i);
+         }
+         store.close();
+         final long stored = System.currentTimeMillis();
+
+         store = new BPlusTreeFilePageStore(file, 4096);
+         final PagedBPlusTree<Integer> loaded = this.integerTree(store);
+         for (int i = 0; i < this.count; i++) {
+            if (!loaded.contains(i)) {
+               throw new IllegalStateException("Key " + i + " is missing in the page file");
+            }
+         }
+         System.out.println("page file: storing " + (stored - start) + "ms, querying "
+               + (System.currentTimeMillis() - stored) + "ms, file size " + file.length()
+               + " bytes, " + (double) store.reads() / this.count
+               + " page reads per lookup");
+         store.close();
+      } finally {
+         file.delete();
+      }
+   }
+
+   private PagedBPlusTree<Integer> integerTree(final BPlusTreePageStore store) {
+      return new PagedBPlusTree<Integer>(store, BPlusTreeSerializer.INTEGER,
+            BPlusTreeSerializer.INTEGER);
+   }
+
+}
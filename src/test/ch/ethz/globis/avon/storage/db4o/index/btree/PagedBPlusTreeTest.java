@@ -0,0 +1,654 @@
+/*
+ * @(#)PagedBPlusTreeTest.java   1.0   Oct 19, 2026
+ *
+ * Copyright 2000-2009 ETH Zurich. All Rights Reserved.
+ *
+ * This software is the proprietary information of ETH Zurich.
+ * Use is subject to license terms.
+ *
+ * @(#) $Id$
+ */
+package ch.ethz.globis.avon.storage.db4o.index.btree;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PagedBPlusTreeTest {
+
+   private PagedBPlusTree<Integer> integerTree(final BPlusTreePageStore store) {
+      return new PagedBPlusTree<Integer>(store, BPlusTreeSerializer.INTEGER,
+            BPlusTreeSerializer.INTEGER);
+   }
+
+   private List<Object> list(final Iterator<Object> iterator) {
+      final List<Object> list = new ArrayList<Object>();
+      while (iterator.hasNext()) {
+         list.add(iterator.next());
+      }
+      return list;
+   }
+
+   @Test
+   public void empty() throws IntegrityException {
+      final PagedBPlusTree<Integer> tree = this.integerTree(
+            new BPlusTreeMemoryPageStore(256));
+      Assert.assertFalse(tree.contains(0));
+      Assert.assertFalse(tree.get(0).hasNext());
+      Assert.assertFalse(tree.inOrder().hasNext());
+      Assert.assertEquals(0, tree.size());
+      tree.checkIntegrity();
+   }
+
+   @Test
+   public void queries() throws IntegrityException {
+      final PagedBPlusTree<Integer> tree = this.integerTree(
+            new BPlusTreeMemoryPageStore(256));
+      for (int i = 1000; i > 0; i--) {
+         tree.insert(i, i);
+      }
+      tree.checkIntegrity();
+      Assert.assertEquals(1000, tree.size());
+      Assert.assertTrue(tree.contains(500));
+      Assert.assertFalse(tree.contains(1001));
+      Assert.assertEquals(Collections.singletonList(500), this.list(tree.get(500)));
+      Assert.assertEquals(500, this.list(tree.greater(500)).size());
+      Assert.assertEquals(501, this.list(tree.greaterOrEqual(500)).size());
+      Assert.assertEquals(999, this.list(tree.notEqual(500)).size());
+      final List<Object> less = this.list(tree.less(500));
+      Assert.assertEquals(499, less.size());
+      Assert.assertEquals(499, less.get(0));
+      Assert.assertEquals(500, this.list(tree.lessOrEqual(500)).get(0));
+      final List<Object> all = this.list(tree.inOrder());
+      for (int i = 0; i < all.size(); i++) {
+         Assert.assertEquals(i + 1, all.get(i));
+      }
+   }
+
+   @Test
+   public void multipleEntries() throws IntegrityException {
+      final PagedBPlusTree<Integer> tree = this.integerTree(
+            new BPlusTreeMemoryPageStore(256));
+      for (int i = 0; i < 100; i++) {
+         tree.insert(1, i);
+         tree.insert(2, i);
+      }
+      tree.insert(1, 5);
+      tree.checkIntegrity();
+      Assert.assertEquals(200, tree.size());
+      Assert.assertEquals(100, this.list(tree.get(1)).size());
+      tree.remove(1, 5);
+      tree.remove(1, 1000);
+      Assert.assertEquals(99, this.list(tree.get(1)).size());
+      Assert.assertEquals(100, this.list(tree.greater(1)).size());
+      tree.checkIntegrity();
+   }
+
+   @Test
+   public void removeAll() throws IntegrityException {
+      final BPlusTreeMemoryPageStore store = new BPlusTreeMemoryPageStore(256);
+      final PagedBPlusTree<Integer> tree = this.integerTree(store);
+      for (int i = 0; i < 5000; i++) {
+         tree.insert(i, i);
+      }
+      Assert.assertTrue(store.usedPages() > 1);
+      for (int i = 0; i < 5000; i += 2) {
+         tree.remove(i, i);
+      }
+      tree.checkIntegrity();
+      for (int i = 1; i < 5000; i += 2) {
+         tree.remove(i, i);
+      }
+      tree.checkIntegrity();
+      Assert.assertEquals(0, tree.size());
+      Assert.assertEquals(1, store.usedPages());
+      tree.insert(1, 1);
+      tree.clear();
+      Assert.assertEquals(0, tree.size());
+      Assert.assertEquals(1, store.usedPages());
+   }
+
+   @Test
+   public void strings() throws IntegrityException {
+      final PagedBPlusTree<String> tree = new PagedBPlusTree<String>(
+            new BPlusTreeMemoryPageStore(1024), BPlusTreeSerializer.STRING,
+            BPlusTreeSerializer.STRING);
+      tree.insert(null, "null");
+      for (int i = 0; i < 2000; i++) {
+         tree.insert("key-" + i, "value-" + i);
+      }
+      tree.checkIntegrity();
+      Assert.assertEquals(Collections.singletonList("null"), this.list(tree.get(null)));
+      Assert.assertEquals(Collections.singletonList("value-1234"), this.list(tree
+            .get("key-1234")));
+      Assert.assertEquals("null", this.list(tree.inOrder()).get(0));
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void recordTooLarge() {
+      final PagedBPlusTree<String> tree = new PagedBPlusTree<String>(
+            new BPlusTreeMemoryPageStore(256), BPlusTreeSerializer.STRING,
+            BPlusTreeSerializer.INTEGER);
+      tree.insert("a key that is too long to fit into a page", 1);
+   }
+
+   @Test
+   public void reopen() {
+      final BPlusTreeMemoryPageStore store = new BPlusTreeMemoryPageStore(256);
+      PagedBPlusTree<Integer> tree = this.integerTree(store);
+      for (int i = 0; i < 1000; i++) {
+         tree.insert(i, i);
+      }
+      tree = this.integerTree(store);
+      Assert.assertEquals(1000, tree.size());
+   }
+
+   @Test
+   public void filePersistence() throws IOException, IntegrityException {
+      final File file = File.createTempFile("tree_test", ".pages");
+      try {
+         BPlusTreeFilePageStore store = new BPlusTreeFilePageStore(file, 256);
+         PagedBPlusTree<Integer> tree = this.integerTree(store);
+         for (int i = 0; i < 2000; i++) {
+            tree.insert(i, i);
+         }
+         for (int i = 0; i < 2000; i += 3) {
+            tree.remove(i, i);
+         }
+         final int size = tree.size();
+         store.close();
+
+         store = new BPlusTreeFilePageStore(file, 256);
+         tree = this.integerTree(store);
+         tree.checkIntegrity();
+         Assert.assertEquals(size, tree.size());
+         Assert.assertTrue(tree.contains(1));
+         Assert.assertFalse(tree.contains(3));
+
+         // freed pages are reused before the file grows.
+         final int pageCount = store.pageCount();
+         tree.clear();
+         for (int i = 0; i < 2000; i++) {
+            tree.insert(i, i);
+         }
+         Assert.assertTrue(store.pageCount() <= pageCount);
+         store.close();
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test(expected = IOException.class)
+   public void filePageSize() throws IOException {
+      final File file = File.createTempFile("tree_test", ".pages");
+      try {
+         new BPlusTreeFilePageStore(file, 256).close();
+         new BPlusTreeFilePageStore(file, 512);
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void bufferPool() throws IOException, IntegrityException {
+      final File file = File.createTempFile("tree_test", ".pages");
+      try {
+         final BPlusTreeBufferPool pool = new BPlusTreeBufferPool(
+               new BPlusTreeFilePageStore(file, 256), BPlusTreeBufferPool.MIN_FRAMES);
+         PagedBPlusTree<Integer> tree = this.integerTree(pool);
+         for (int i = 0; i < 3000; i++) {
+            tree.insert(i * 7 % 3000, i);
+         }
+         for (int i = 0; i < 3000; i += 2) {
+            tree.remove(i * 7 % 3000, i);
+         }
+         tree.checkIntegrity();
+         Assert.assertTrue(pool.hits() > 0);
+         Assert.assertTrue(pool.evictions() > 0);
+         Assert.assertTrue(pool.writeBacks() > 0);
+         pool.close();
+
+         // all modified pages have been written back.
+         final BPlusTreeFilePageStore store = new BPlusTreeFilePageStore(file, 256);
+         tree = this.integerTree(store);
+         tree.checkIntegrity();
+         Assert.assertEquals(1500, tree.size());
+         store.close();
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void bufferPoolFrameCount() throws IOException {
+      final File file = File.createTempFile("tree_test", ".pages");
+      try {
+         new BPlusTreeBufferPool(new BPlusTreeFilePageStore(file, 256), 1);
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void prefetch() throws IOException {
+      final File file = File.createTempFile("tree_test", ".pages");
+      try {
+         final BPlusTreeBufferPool pool = new BPlusTreeBufferPool(
+               new BPlusTreeFilePageStore(file, 256), 64);
+         final PagedBPlusTree<Integer> tree = this.integerTree(pool);
+         for (int i = 0; i < 5000; i++) {
+            tree.insert(i * 7 % 5000, i);
+         }
+         pool.sync();
+         // reads ahead in the thread of the scan, so that the counts are predictable.
+         tree.setPrefetch(new Executor() {
+            @Override
+            public void execute(final Runnable command) {
+               command.run();
+            }
+         }, 8);
+         pool.resetStatistics();
+         final Iterator<Object> values = tree.greaterOrEqual(1000);
+         // the value of a key k is the i with k = 7 * i modulo 5000.
+         for (int i = 1000; i < 5000; i++) {
+            Assert.assertTrue(values.hasNext());
+            Assert.assertEquals(Integer.valueOf(i * 2143 % 5000), values.next());
+         }
+         Assert.assertFalse(values.hasNext());
+         Assert.assertTrue(pool.prefetches() > 0);
+         Assert.assertTrue(pool.prefetchHits() > 0);
+         Assert.assertEquals(5000, tree.size());
+
+         // scans read their leaves themselves once the executor has been shut down.
+         final ExecutorService executor = Executors.newSingleThreadExecutor();
+         executor.shutdown();
+         tree.setPrefetch(executor, 8);
+         Assert.assertEquals(4000, this.list(tree.greater(999)).size());
+         pool.close();
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void preload() throws IOException {
+      final File file = File.createTempFile("tree_test", ".pages");
+      try {
+         BPlusTreeBufferPool pool = new BPlusTreeBufferPool(new BPlusTreeFilePageStore(file,
+               256), 1024);
+         PagedBPlusTree<Integer> tree = this.integerTree(pool);
+         for (int i = 0; i < 5000; i++) {
+            tree.insert(i * 7 % 5000, i);
+         }
+         pool.close();
+
+         pool = new BPlusTreeBufferPool(new BPlusTreeFilePageStore(file, 256), 1024);
+         tree = this.integerTree(pool);
+         Assert.assertEquals(1, tree.preload(1));
+         final ExecutorService executor = Executors.newFixedThreadPool(4);
+         try {
+            tree.setPrefetch(executor, 8);
+            // the whole tree fits into half of the frames.
+            Assert.assertTrue(tree.preload(64) > 1);
+         } finally {
+            executor.shutdown();
+         }
+         pool.resetStatistics();
+         for (int i = 0; i < 5000; i += 100) {
+            Assert.assertTrue(tree.get(i).hasNext());
+         }
+         Assert.assertEquals(0, pool.misses());
+         pool.close();
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void logRecovery() throws IOException, IntegrityException {
+      final File file = File.createTempFile("tree_test", ".pages");
+      final File logFile = File.createTempFile("tree_test", ".log");
+      try {
+         BPlusTreeBufferPool pool = new BPlusTreeBufferPool(new BPlusTreeFilePageStore(file,
+               256), BPlusTreeBufferPool.MIN_LOGGED_FRAMES);
+         BPlusTreeLog log = new BPlusTreeLog(logFile);
+         log.setSync(false);
+         PagedBPlusTree<Integer> tree = new PagedBPlusTree<Integer>(pool, log,
+               BPlusTreeSerializer.INTEGER, BPlusTreeSerializer.INTEGER);
+         for (int i = 0; i < 1000; i++) {
+            tree.insert(i, i);
+         }
+         tree.clear();
+         for (int i = 0; i < 5000; i++) {
+            tree.insert(i * 7 % 5000, i);
+         }
+         for (int i = 0; i < 5000; i += 2) {
+            tree.remove(i * 7 % 5000, i);
+         }
+         // the tree is abandoned without closing the pool, like in a crash. Checkpoints
+         // have written some of the pages to the file, the rest is only in the log.
+         Assert.assertTrue(logFile.length() > 0);
+
+         // a record that has been written only partly is ignored.
+         final FileOutputStream out = new FileOutputStream(logFile, true);
+         out.write(new byte[] { 0, 0, 1, 0, 17, 42 });
+         out.close();
+
+         pool = new BPlusTreeBufferPool(new BPlusTreeFilePageStore(file, 256),
+               BPlusTreeBufferPool.MIN_LOGGED_FRAMES);
+         log = new BPlusTreeLog(logFile);
+         tree = new PagedBPlusTree<Integer>(pool, log, BPlusTreeSerializer.INTEGER,
+               BPlusTreeSerializer.INTEGER);
+         tree.checkIntegrity();
+         Assert.assertEquals(2500, tree.size());
+         for (int i = 0; i < 5000; i++) {
+            Assert.assertEquals(i % 2 == 1, tree.contains(i * 7 % 5000));
+         }
+         // recovery ends with a checkpoint, after which the log is empty.
+         Assert.assertEquals(0, logFile.length());
+         tree.insert(5000, 5000);
+         pool.close();
+         log.close();
+
+         final BPlusTreeFilePageStore store = new BPlusTreeFilePageStore(file, 256);
+         tree = this.integerTree(store);
+         Assert.assertEquals(2501, tree.size());
+         store.close();
+      } finally {
+         file.delete();
+         logFile.delete();
+      }
+   }
+
+   /**
+    * Kills a process that inserts keys into a durable tree and checks that all insertions
+    * the process has reported as done survive.
+    */
+   @Test
+   public void logKillAndRecover() throws Exception {
+      final File file = File.createTempFile("tree_test", ".pages");
+      final File logFile = File.createTempFile("tree_test", ".log");
+      try {
+         int acknowledged = 0;
+         for (int round = 0; round < 3; round++) {
+            final Process process = new ProcessBuilder(System.getProperty("java.home")
+                  + File.separator + "bin" + File.separator + "java", "-cp", System
+                  .getProperty("java.class.path"), Writer.class.getName(), file.getPath(),
+                  logFile.getPath(), String.valueOf(acknowledged)).start();
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(process
+                  .getInputStream()));
+            final int target = acknowledged + 1500;
+            String line;
+            while (acknowledged < target && (line = reader.readLine()) != null) {
+               acknowledged = Integer.parseInt(line) + 1;
+            }
+            process.destroyForcibly();
+            process.waitFor();
+            Assert.assertEquals(target, acknowledged);
+
+            final BPlusTreeBufferPool pool = new BPlusTreeBufferPool(
+                  new BPlusTreeFilePageStore(file, 256),
+                  BPlusTreeBufferPool.MIN_LOGGED_FRAMES);
+            final BPlusTreeLog log = new BPlusTreeLog(logFile);
+            final PagedBPlusTree<Integer> tree = new PagedBPlusTree<Integer>(pool, log,
+                  BPlusTreeSerializer.INTEGER, BPlusTreeSerializer.INTEGER);
+            tree.checkIntegrity();
+            for (int i = 0; i < acknowledged; i++) {
+               Assert.assertTrue(tree.contains(i));
+            }
+            // keys inserted after the last acknowledgement may or may not have survived.
+            acknowledged = tree.size();
+            pool.close();
+            log.close();
+         }
+      } finally {
+         file.delete();
+         logFile.delete();
+      }
+   }
+
+   /**
+    * Inserts ascending keys into a durable tree and prints each key once it is durable,
+    * until it is killed.
+    */
+   public static class Writer {
+
+      public static void main(final String[] args) throws IOException {
+         final BPlusTreeBufferPool pool = new BPlusTreeBufferPool(
+               new BPlusTreeFilePageStore(new File(args[0]), 256),
+               BPlusTreeBufferPool.MIN_LOGGED_FRAMES);
+         final BPlusTreeLog log = new BPlusTreeLog(new File(args[1]));
+         final PagedBPlusTree<Integer> tree = new PagedBPlusTree<Integer>(pool, log,
+               BPlusTreeSerializer.INTEGER, BPlusTreeSerializer.INTEGER);
+         for (int i = Integer.parseInt(args[2]);; i++) {
+            tree.insert(i, i);
+            System.out.println(i);
+            System.out.flush();
+         }
+      }
+   }
+
+   @Test(expected = IllegalArgumentException.class)
+   public void logFrameCount() throws IOException {
+      final File file = File.createTempFile("tree_test", ".pages");
+      final File logFile = File.createTempFile("tree_test", ".log");
+      try {
+         final BPlusTreeBufferPool pool = new BPlusTreeBufferPool(
+               new BPlusTreeFilePageStore(file, 256), BPlusTreeBufferPool.MIN_FRAMES);
+         new PagedBPlusTree<Integer>(pool, new BPlusTreeLog(logFile),
+               BPlusTreeSerializer.INTEGER, BPlusTreeSerializer.INTEGER);
+      } finally {
+         file.delete();
+         logFile.delete();
+      }
+   }
+
+   @Test
+   public void bulkLoad() throws IntegrityException {
+      final Random random = new Random();
+      for (int test = 0; test < 10; test++) {
+         final int count = random.nextInt(5000);
+         final List<Map.Entry<Integer, Object>> entries =
+               new ArrayList<Map.Entry<Integer, Object>>();
+         final TreeMap<Integer, TreeSet<Integer>> expected =
+               new TreeMap<Integer, TreeSet<Integer>>();
+         for (int i = 0; i < count; i++) {
+            final Integer key = random.nextInt(count / 2 + 1);
+            final Integer value = random.nextInt(3);
+            entries.add(new AbstractMap.SimpleEntry<Integer, Object>(key, value));
+            if (!expected.containsKey(key)) {
+               expected.put(key, new TreeSet<Integer>());
+            }
+            expected.get(key).add(value);
+         }
+         Collections.sort(entries, BPlusTreeLoader.ENTRY_ORDER);
+         final PagedBPlusTree<Integer> tree = this.integerTree(new BPlusTreeMemoryPageStore(
+               256 + random.nextInt(768)));
+         tree.insert(-1, 0);
+         tree.bulkLoad(entries.iterator(), 0.5 + random.nextDouble() / 2);
+         tree.checkIntegrity();
+         Assert.assertEquals(this.values(expected, false), this.list(tree.inOrder()));
+
+         // the loaded tree can be modified like any other tree.
+         for (int i = 0; i < 500; i++) {
+            tree.insert(random.nextInt(count + 1), 7);
+            tree.remove(random.nextInt(count + 1), 0);
+         }
+         tree.checkIntegrity();
+      }
+   }
+
+   @Test
+   public void bulkLoadNotSorted() throws IntegrityException {
+      final BPlusTreeMemoryPageStore store = new BPlusTreeMemoryPageStore(256);
+      final PagedBPlusTree<Integer> tree = this.integerTree(store);
+      for (int i = 0; i < 100; i++) {
+         tree.insert(i, i);
+      }
+      final int usedPages = store.usedPages();
+      // many pages have been written when the unsorted pair comes up.
+      final List<Map.Entry<Integer, Object>> entries =
+            new ArrayList<Map.Entry<Integer, Object>>();
+      for (int i = 0; i < 5000; i++) {
+         entries.add(new AbstractMap.SimpleEntry<Integer, Object>(i, i));
+      }
+      entries.add(new AbstractMap.SimpleEntry<Integer, Object>(1, 1));
+      try {
+         tree.bulkLoad(entries.iterator(), 1);
+         Assert.fail("Unsorted input was accepted");
+      } catch (final IllegalArgumentException e) {
+         // expected
+      }
+      Assert.assertEquals(usedPages, store.usedPages());
+      tree.checkIntegrity();
+      Assert.assertEquals(100, tree.size());
+   }
+
+   @Test
+   public void packedLeaves() throws IntegrityException {
+      final List<Map.Entry<Long, Object>> entries = new ArrayList<Map.Entry<Long, Object>>();
+      final Random random = new Random();
+      long time = System.currentTimeMillis();
+      for (int i = 0; i < 100000; i++) {
+         time += 1 + random.nextInt(1000);
+         entries.add(new AbstractMap.SimpleEntry<Long, Object>(time, i));
+      }
+      final BPlusTreeMemoryPageStore store = new BPlusTreeMemoryPageStore(4096);
+      final PagedBPlusTree<Long> tree = new PagedBPlusTree<Long>(store,
+            BPlusTreeSerializer.LONG, BPlusTreeSerializer.INTEGER);
+      tree.bulkLoad(entries.iterator(), 1);
+      tree.checkIntegrity();
+      // unpacked, 100000 records of 18 bytes with their slots fill 443 leaves.
+      Assert.assertTrue(store.usedPages() < 443 / 2);
+      Assert.assertEquals(100000, tree.size());
+      for (int i = 0; i < 1000; i++) {
+         final Map.Entry<Long, Object> entry = entries.get(random.nextInt(entries.size()));
+         Assert.assertEquals(Collections.singletonList(entry.getValue()), this.list(tree
+               .get(entry.getKey())));
+      }
+      final int from = random.nextInt(entries.size());
+      Assert.assertEquals(entries.size() - from - 1, this.list(tree.greater(entries.get(
+            from).getKey())).size());
+
+      // modified leaves are unpacked.
+      for (int i = 0; i < 1000; i++) {
+         final Map.Entry<Long, Object> entry = entries.get(random.nextInt(entries.size()));
+         tree.insert(entry.getKey() + 1, -1);
+         tree.remove(entry.getKey(), entry.getValue());
+      }
+      tree.checkIntegrity();
+   }
+
+   @Test
+   public void mapped() throws IOException, IntegrityException {
+      final File file = File.createTempFile("tree_test", ".pages");
+      try {
+         final BPlusTree<Integer> source = new BPlusTree<Integer>(4);
+         for (int i = 0; i < 10000; i++) {
+            source.insert(i % 5000, i);
+         }
+         source.writeMapped(file, 4096, BPlusTreeSerializer.INTEGER,
+               BPlusTreeSerializer.INTEGER);
+         final BPlusTreeMappedPageStore store = new BPlusTreeMappedPageStore(file);
+         final PagedBPlusTree<Integer> tree = this.integerTree(store);
+         tree.checkIntegrity();
+         Assert.assertEquals(10000, tree.size());
+         Assert.assertEquals(this.list(source.get(42)), this.list(tree.get(42)));
+         Assert.assertEquals(this.list(source.greater(4997)), this
+               .list(tree.greater(4997)));
+         // 10000 records of 14 bytes fill 35 pages.
+         Assert.assertTrue(store.pageCount() <= 40);
+         try {
+            tree.insert(1, 2);
+            Assert.fail();
+         } catch (final UnsupportedOperationException e) {
+            // the tree is read-only.
+         }
+
+         // a new version of the file doesn't disturb readers of the old one.
+         source.insert(20000, 0);
+         source.writeMapped(file, 4096, BPlusTreeSerializer.INTEGER,
+               BPlusTreeSerializer.INTEGER);
+         Assert.assertEquals(10000, tree.size());
+         Assert.assertEquals(10001, this.integerTree(new BPlusTreeMappedPageStore(file))
+               .size());
+      } finally {
+         file.delete();
+      }
+   }
+
+   @Test
+   public void randomisedTests() throws IntegrityException {
+      final Random random = new Random();
+      for (int test = 0; test < 10; test++) {
+         final int maxKey = 100 + random.nextInt(2000);
+         final PagedBPlusTree<Integer> tree = this.integerTree(new BPlusTreeMemoryPageStore(
+               256 + random.nextInt(768)));
+         final TreeMap<Integer, TreeSet<Integer>> expected =
+               new TreeMap<Integer, TreeSet<Integer>>();
+         int size = 0;
+         for (int i = 0; i < 5 * maxKey; i++) {
+            final Integer key = random.nextInt(maxKey);
+            final Integer value = random.nextInt(3);
+            TreeSet<Integer> values = expected.get(key);
+            if (random.nextBoolean()) {
+               tree.insert(key, value);
+               if (values == null) {
+                  values = new TreeSet<Integer>();
+                  expected.put(key, values);
+               }
+               size += values.add(value) ? 1 : 0;
+            } else {
+               tree.remove(key, value);
+               if (values != null && values.remove(value)) {
+                  size--;
+                  if (values.isEmpty()) {
+                     expected.remove(key);
+                  }
+               }
+            }
+         }
+         tree.checkIntegrity();
+         Assert.assertEquals(size, tree.size());
+         Assert.assertEquals(this.values(expected, false), this.list(tree.inOrder()));
+         for (int i = 0; i < 50; i++) {
+            final Integer key = random.nextInt(maxKey);
+            Assert.assertEquals(this.values(expected.tailMap(key, false), false), this
+                  .list(tree.greater(key)));
+            Assert.assertEquals(this.values(expected.headMap(key, true), true), this
+                  .list(tree.lessOrEqual(key)));
+         }
+      }
+   }
+
+   private List<Object> values(final SortedMap<Integer, TreeSet<Integer>> map,
+         final boolean descending) {
+      final List<Object> values = new ArrayList<Object>();
+      for (final Map.Entry<Integer, TreeSet<Integer>> entry : map.entrySet()) {
+         values.addAll(entry.getValue());
+      }
+      if (descending) {
+         Collections.reverse(values);
+      }
+      return values;
+   }
+
+}